@@ -17,9 +17,10 @@
 
 package org.dmfs.android.cloudattach.demo;
 
+import org.dmfs.android.cloudattach.sdk.AttachmentOptions;
 import org.dmfs.android.cloudattach.sdk.AttachmentUtils;
 import org.dmfs.android.cloudattach.sdk.PreviewLoaderCallback;
-import org.dmfs.android.cloudattach.sdk.PreviewUtils;
+import org.dmfs.android.cloudattach.sdk.PreviewRequestFragment;
 
 import android.app.Activity;
 import android.content.Intent;
@@ -45,6 +46,30 @@ public class DemoActivity extends Activity implements OnClickListener
 
 	private TextView mUriView;
 	private ImageView mImageView;
+	private PreviewRequestFragment mPreviewRequests;
+
+	private final PreviewLoaderCallback mPreviewCallback = new PreviewLoaderCallback()
+	{
+
+		@Override
+		public void onPreviewLoaded(long id, Bitmap thumbnail)
+		{
+			mImageView.setImageBitmap(thumbnail);
+		}
+
+
+		@Override
+		public void onError(long id, Exception e)
+		{
+			Log.e(TAG, "failed to load attachment preview", e);
+		}
+
+
+		@Override
+		public void onNoPreviewAppFound(long id)
+		{
+		}
+	};
 
 
 	@Override
@@ -57,6 +82,13 @@ public class DemoActivity extends Activity implements OnClickListener
 
 		mUriView = (TextView) findViewById(R.id.tv_1);
 		mImageView = (ImageView) findViewById(R.id.img_1);
+
+		// look up the attachment apps now, so the buttons don't have to
+		AttachmentUtils.warmUp(this);
+
+		// previews that are still loading when the Activity is recreated will be delivered to the new callback
+		mPreviewRequests = PreviewRequestFragment.get(this);
+		mPreviewRequests.setCallback(mPreviewCallback);
 	}
 
 
@@ -71,33 +103,13 @@ public class DemoActivity extends Activity implements OnClickListener
 				mUriView.setText("attachment url: \n" + AttachmentUtils.getUrlFromResult(activityResultIntent));
 
 				// get a preview of the new attachment
-				PreviewUtils.getPreview(this, 0, activityResultIntent, new PreviewLoaderCallback()
-				{
-
-					@Override
-					public void onPreviewLoaded(long id, Bitmap thumbnail)
-					{
-						mImageView.setImageBitmap(thumbnail);
-					}
-
-
-					@Override
-					public void onError(long id, Exception e)
-					{
-						Log.e(TAG, "failed to load attachment preview", e);
-					}
-
-
-					@Override
-					public void onNoPreviewAppFound(long id)
-					{
-					}
-				});
+				mPreviewRequests.getPreview(0, activityResultIntent, null);
 			}
 			if (requestCode == REQUEST_CODE_URI_CHOOSER)
 			{
-				// called after user selected uri from another app
-				AttachmentUtils.startAttachmentActivityFromChooserResult(activityResultIntent, this, REQUEST_CODE_UPLOAD_ATTACHMENT);
+				// called after user selected uri from another app, scale large photos down before uploading them
+				AttachmentOptions options = new AttachmentOptions(1600, 1600);
+				AttachmentUtils.startAttachmentActivityFromChooserResult(activityResultIntent, this, REQUEST_CODE_UPLOAD_ATTACHMENT, options);
 			}
 		}
 	}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.dmfs.android.cloudattach.sdk.IAttachmentCallback;
+import org.dmfs.android.cloudattach.sdk.IAttachmentService;
+
+import android.app.Service;
+import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+
+/**
+ * A stand-in for the headless attachment service of an attachment app. It doesn't upload anything, it just reads the content, reports the progress and
+ * returns a fake url. Use it to exercise {@link org.dmfs.android.cloudattach.sdk.AttachmentServiceClient} without a real attachment app.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class DemoAttachmentService extends Service
+{
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Identifies an upload. Upload ids are only unique per client, so the key contains the binder of the client's callback as well.
+	 */
+	private final static class UploadKey
+	{
+		private final IBinder mClient;
+		private final long mUploadId;
+
+
+		public UploadKey(IAttachmentCallback callback, long uploadId)
+		{
+			mClient = callback.asBinder();
+			mUploadId = uploadId;
+		}
+
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof UploadKey))
+			{
+				return false;
+			}
+			UploadKey other = (UploadKey) o;
+			return mClient == other.mClient && mUploadId == other.mUploadId;
+		}
+
+
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode(mClient) * 31 + (int) (mUploadId ^ (mUploadId >>> 32));
+		}
+	}
+
+	private final ExecutorService mExecutor = Executors.newFixedThreadPool(3);
+	private final Map<UploadKey, Future<?>> mUploads = new ConcurrentHashMap<UploadKey, Future<?>>();
+
+	private final IAttachmentService.Stub mBinder = new IAttachmentService.Stub()
+	{
+		@Override
+		public void upload(final long uploadId, final Uri uri, final IAttachmentCallback callback)
+		{
+			final UploadKey key = new UploadKey(callback, uploadId);
+			FutureTask<Void> upload = new FutureTask<Void>(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						long total = getLength(uri);
+						long sent = 0;
+						InputStream in = getContentResolver().openInputStream(uri);
+						try
+						{
+							byte[] buffer = new byte[BUFFER_SIZE];
+							int read;
+							while ((read = in.read(buffer)) >= 0)
+							{
+								if (Thread.interrupted())
+								{
+									// cancelled
+									return;
+								}
+								sent += read;
+								callback.onProgress(uploadId, sent, total);
+							}
+						}
+						finally
+						{
+							in.close();
+						}
+						callback.onUploaded(uploadId, "https://example.com/demo/" + uploadId + "/" + uri.getLastPathSegment());
+					}
+					catch (Exception e)
+					{
+						try
+						{
+							callback.onError(uploadId, e.toString());
+						}
+						catch (RemoteException e1)
+						{
+							// the client is gone
+						}
+					}
+				}
+			}, null)
+			{
+				@Override
+				protected void done()
+				{
+					// don't remove a newer upload with the same key
+					mUploads.remove(key, this);
+				}
+			};
+
+			Future<?> previous = mUploads.put(key, upload);
+			if (previous != null)
+			{
+				// the client reused the id of an upload in flight
+				previous.cancel(true);
+			}
+			mExecutor.execute(upload);
+		}
+
+
+		@Override
+		public void cancel(long uploadId, IAttachmentCallback callback)
+		{
+			Future<?> upload = mUploads.remove(new UploadKey(callback, uploadId));
+			if (upload != null)
+			{
+				upload.cancel(true);
+			}
+		}
+	};
+
+
+	@Override
+	public IBinder onBind(Intent intent)
+	{
+		return mBinder;
+	}
+
+
+	@Override
+	public void onDestroy()
+	{
+		mExecutor.shutdownNow();
+		super.onDestroy();
+	}
+
+
+	private long getLength(Uri uri)
+	{
+		try
+		{
+			AssetFileDescriptor fd = getContentResolver().openAssetFileDescriptor(uri, "r");
+			try
+			{
+				return fd.getLength();
+			}
+			finally
+			{
+				fd.close();
+			}
+		}
+		catch (IOException e)
+		{
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+
+
+/**
+ * Caches the attachment apps that handle an attachment {@link Intent}, so starting an attachment app doesn't need to query the {@link PackageManager} every
+ * time. The cache is cleared whenever a package is installed, removed or changed.
+ * <p>
+ * Results are cached per action, scheme and MIME type of the {@link Intent}. The MIME type of a content {@link android.net.Uri} is resolved for the key,
+ * because attachment apps may only handle specific types, so the result for one type doesn't tell anything about another one.
+ * </p>
+ * <p>
+ * {@link #warmUp()} finds out whether there is any attachment app at all. If there is none, {@link #getApps(Intent)} returns an empty list right away.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class AttachmentAppCache
+{
+	/**
+	 * The schemes and MIME types of the {@link Intent}s used to find out whether there is any attachment app. <code>"*&#47;*"</code> matches every filter
+	 * that declares a MIME type.
+	 */
+	private final static String[] WARM_UP_SCHEMES = { null, "content", "file" };
+	private final static String[] WARM_UP_TYPES = { null, "*/*" };
+
+	private final Context mContext;
+	private final Map<String, List<ResolveInfo>> mApps = new HashMap<String, List<ResolveInfo>>();
+
+	/**
+	 * Whether any attachment app is installed or <code>null</code> if that's not known yet.
+	 */
+	private Boolean mAnyApps;
+
+	/**
+	 * Incremented whenever the cache is cleared, so queries that started before don't store outdated results.
+	 */
+	private int mGeneration;
+
+	private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver()
+	{
+		@Override
+		public void onReceive(Context context, Intent intent)
+		{
+			clear();
+		}
+	};
+
+
+	AttachmentAppCache(Context context)
+	{
+		mContext = context;
+
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+		filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+		filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+		filter.addDataScheme("package");
+		context.registerReceiver(mPackageReceiver, filter);
+	}
+
+
+	/**
+	 * Returns the activities that handle the given attachment {@link Intent}. Only the first call for a specific kind of {@link Intent} queries the
+	 * {@link PackageManager}.
+	 *
+	 * @param intent
+	 *            An attachment {@link Intent}.
+	 * @return An unmodifiable {@link List} of {@link ResolveInfo}s, may be empty.
+	 */
+	public List<ResolveInfo> getApps(Intent intent)
+	{
+		synchronized (this)
+		{
+			if (Boolean.FALSE.equals(mAnyApps))
+			{
+				return Collections.emptyList();
+			}
+		}
+
+		String key = key(intent);
+		int generation;
+		synchronized (this)
+		{
+			List<ResolveInfo> apps = mApps.get(key);
+			if (apps != null)
+			{
+				return apps;
+			}
+			generation = mGeneration;
+		}
+
+		List<ResolveInfo> apps = mContext.getPackageManager().queryIntentActivities(intent, PackageManager.GET_RESOLVED_FILTER);
+		apps = apps == null ? Collections.<ResolveInfo> emptyList() : Collections.unmodifiableList(apps);
+
+		synchronized (this)
+		{
+			if (generation == mGeneration)
+			{
+				mApps.put(key, apps);
+			}
+		}
+		return apps;
+	}
+
+
+	/**
+	 * Find out whether any attachment app is installed. This queries the {@link PackageManager} with attachment {@link Intent}s with and without a
+	 * {@link android.net.Uri} and a MIME type, so apps with and without MIME types in their filters are found. Must not be called on the main thread.
+	 */
+	public void warmUp()
+	{
+		int generation;
+		synchronized (this)
+		{
+			if (mAnyApps != null)
+			{
+				return;
+			}
+			generation = mGeneration;
+		}
+
+		boolean anyApps = false;
+		for (String scheme : WARM_UP_SCHEMES)
+		{
+			for (String type : WARM_UP_TYPES)
+			{
+				Intent intent = AttachmentUtils.getAttachmentIntent(mContext);
+				if (scheme == null)
+				{
+					intent.setType(type);
+				}
+				else
+				{
+					intent.setDataAndType(Uri.parse(scheme + "://"), type);
+				}
+				anyApps |= !getApps(intent).isEmpty();
+			}
+		}
+
+		synchronized (this)
+		{
+			if (generation == mGeneration)
+			{
+				mAnyApps = anyApps;
+			}
+		}
+	}
+
+
+	/**
+	 * Clear the cache.
+	 */
+	public synchronized void clear()
+	{
+		mApps.clear();
+		mAnyApps = null;
+		mGeneration++;
+	}
+
+
+	private String key(Intent intent)
+	{
+		return intent.getAction() + "|" + intent.getScheme() + "|" + intent.resolveTypeIfNeeded(mContext.getContentResolver());
+	}
+}
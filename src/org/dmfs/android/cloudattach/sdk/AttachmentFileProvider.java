@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.webkit.MimeTypeMap;
+
+
+/**
+ * Serves the transformed attachments created by {@link AttachmentTransformer} to attachment apps. Read access is granted per {@link Uri} by the attachment
+ * {@link android.content.Intent}, so the provider is not exported.
+ * <p>
+ * Apps that use {@link AttachmentOptions} must declare this provider in their manifest with the authority <code>&lt;package name&gt;.cloudattach.files</code>:
+ * </p>
+ *
+ * <pre>
+ * &lt;provider
+ *     android:name="org.dmfs.android.cloudattach.sdk.AttachmentFileProvider"
+ *     android:authorities="com.example.app.cloudattach.files"
+ *     android:exported="false"
+ *     android:grantUriPermissions="true" /&gt;
+ * </pre>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class AttachmentFileProvider extends ContentProvider
+{
+	private final static String DIRECTORY = "cloudattach";
+	private final static String AUTHORITY_SUFFIX = ".cloudattach.files";
+
+	private final static String[] DEFAULT_PROJECTION = { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+
+
+	/**
+	 * Returns the directory that holds the transformed attachments.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @return The directory.
+	 * @throws IOException
+	 *             if the directory can't be created.
+	 */
+	static File getDirectory(Context context) throws IOException
+	{
+		File directory = new File(context.getCacheDir(), DIRECTORY);
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Can't create directory " + directory);
+		}
+		return directory;
+	}
+
+
+	/**
+	 * Returns the content {@link Uri} of the given file in the directory of this provider.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @param file
+	 *            A file in {@link #getDirectory(Context)}.
+	 * @return The content {@link Uri}.
+	 */
+	static Uri getUri(Context context, File file)
+	{
+		return new Uri.Builder().scheme("content").authority(getAuthority(context)).appendPath(file.getName()).build();
+	}
+
+
+	/**
+	 * Returns the authority this provider must be declared with.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @return The authority.
+	 */
+	static String getAuthority(Context context)
+	{
+		return context.getPackageName() + AUTHORITY_SUFFIX;
+	}
+
+
+	/**
+	 * Returns whether the app has declared this provider in its manifest.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @return <code>true</code> if the {@link Uri}s returned by {@link #getUri(Context, File)} can be opened.
+	 */
+	static boolean isDeclared(Context context)
+	{
+		return context.getPackageManager().resolveContentProvider(getAuthority(context), 0) != null;
+	}
+
+
+	@Override
+	public boolean onCreate()
+	{
+		return true;
+	}
+
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder)
+	{
+		File file = getFile(uri);
+		if (!file.isFile())
+		{
+			return null;
+		}
+
+		String[] columns = projection == null ? DEFAULT_PROJECTION : projection;
+		Object[] values = new Object[columns.length];
+		for (int i = 0; i < columns.length; ++i)
+		{
+			if (OpenableColumns.DISPLAY_NAME.equals(columns[i]))
+			{
+				values[i] = file.getName();
+			}
+			else if (OpenableColumns.SIZE.equals(columns[i]))
+			{
+				values[i] = file.length();
+			}
+		}
+		MatrixCursor cursor = new MatrixCursor(columns, 1);
+		cursor.addRow(values);
+		return cursor;
+	}
+
+
+	@Override
+	public String getType(Uri uri)
+	{
+		String name = uri.getLastPathSegment();
+		int dot = name == null ? -1 : name.lastIndexOf('.');
+		if (dot >= 0)
+		{
+			String type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1));
+			if (type != null)
+			{
+				return type;
+			}
+		}
+		return "application/octet-stream";
+	}
+
+
+	@Override
+	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException
+	{
+		if (!"r".equals(mode))
+		{
+			throw new FileNotFoundException("Attachments can only be opened for reading.");
+		}
+		return ParcelFileDescriptor.open(getFile(uri), ParcelFileDescriptor.MODE_READ_ONLY);
+	}
+
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values)
+	{
+		throw new UnsupportedOperationException("Attachments are read only.");
+	}
+
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs)
+	{
+		throw new UnsupportedOperationException("Attachments are read only.");
+	}
+
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs)
+	{
+		throw new UnsupportedOperationException("Attachments are read only.");
+	}
+
+
+	private File getFile(Uri uri)
+	{
+		// only serve files from our own directory, the name must not contain a path
+		String name = uri.getLastPathSegment();
+		if (name == null || uri.getPathSegments().size() != 1 || name.contains("/") || name.startsWith("."))
+		{
+			throw new IllegalArgumentException("Invalid Uri " + uri);
+		}
+		return new File(new File(getContext().getCacheDir(), DIRECTORY), name);
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+
+/**
+ * A persistent index of content hashes to the urls of former uploads. It also remembers the attachments of pending requests, so the urls returned by the
+ * attachment app can be recorded and merged with the urls of deduplicated attachments.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class AttachmentIndex
+{
+	private final static String PREFERENCES = "org.dmfs.android.cloudattach.attachments";
+	private final static String PREFIX_HASH = "h:";
+	private final static String PREFIX_PENDING = "p:";
+	private final static String KEY_HASH = "hash";
+	private final static String KEY_URL = "url";
+
+	/**
+	 * The maximum number of urls to remember.
+	 */
+	private final static int MAX_ENTRIES = 256;
+
+	private final static int BUFFER_SIZE = 8192;
+	private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final SharedPreferences mPreferences;
+
+
+	/**
+	 * Constructor for {@link AttachmentIndex}.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 */
+	AttachmentIndex(Context context)
+	{
+		mPreferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+	}
+
+
+	/**
+	 * Returns the SHA-256 hash of the content of the given {@link Uri}. The content is read in a single pass with a fixed size buffer. This performs blocking
+	 * I/O, so it must not be called on the main thread.
+	 *
+	 * @param resolver
+	 *            A {@link ContentResolver}.
+	 * @param uri
+	 *            The {@link Uri} of the content.
+	 * @return The hash as a hex {@link String}.
+	 * @throws IOException
+	 *             if the content can't be read.
+	 */
+	static String hash(ContentResolver resolver, Uri uri) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException("SHA-256 not supported.");
+		}
+
+		InputStream in = resolver.openInputStream(uri);
+		if (in == null)
+		{
+			throw new FileNotFoundException("Can't open " + uri);
+		}
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+			{
+				digest.update(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		byte[] hash = digest.digest();
+		char[] result = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; ++i)
+		{
+			result[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+			result[i * 2 + 1] = HEX[hash[i] & 0x0f];
+		}
+		return new String(result);
+	}
+
+
+	/**
+	 * Returns the url of a former upload of the content with the given hash.
+	 *
+	 * @param hash
+	 *            The hash of the content.
+	 * @return The url or <code>null</code> if the content has not been uploaded before.
+	 */
+	public String getUrl(String hash)
+	{
+		String value = mPreferences.getString(PREFIX_HASH + hash, null);
+		return value == null ? null : value.substring(value.indexOf(' ') + 1);
+	}
+
+
+	/**
+	 * Remember the attachments of a request that has been sent to the attachment app.
+	 *
+	 * @param requestCode
+	 *            The request code of the request.
+	 * @param hashes
+	 *            The hashes of all attachments of the request, <code>null</code> for attachments that couldn't be hashed.
+	 * @param urls
+	 *            The urls of deduplicated attachments, <code>null</code> for attachments sent to the attachment app.
+	 */
+	public void putPending(int requestCode, List<String> hashes, List<String> urls)
+	{
+		JSONArray pending = new JSONArray();
+		try
+		{
+			for (int i = 0, count = hashes.size(); i < count; ++i)
+			{
+				JSONObject attachment = new JSONObject();
+				attachment.putOpt(KEY_HASH, hashes.get(i));
+				attachment.putOpt(KEY_URL, urls.get(i));
+				pending.put(attachment);
+			}
+		}
+		catch (JSONException e)
+		{
+			// can't happen, all values are Strings
+			throw new RuntimeException("Can't serialize pending attachments.", e);
+		}
+		mPreferences.edit().putString(PREFIX_PENDING + requestCode, pending.toString()).apply();
+	}
+
+
+	/**
+	 * Forget the pending attachments of the given request.
+	 *
+	 * @param requestCode
+	 *            The request code of the request.
+	 */
+	public void removePending(int requestCode)
+	{
+		mPreferences.edit().remove(PREFIX_PENDING + requestCode).apply();
+	}
+
+
+	/**
+	 * Record the urls returned by the attachment app for the pending attachments of the given request and merge them with the urls of the deduplicated
+	 * attachments.
+	 *
+	 * @param requestCode
+	 *            The request code of the request.
+	 * @param returnedUrls
+	 *            The urls returned by the attachment app.
+	 * @return The urls of all attachments of the request in their original order or <code>null</code> if there is no pending request with that request code.
+	 *         Attachments the attachment app didn't return a url for have a <code>null</code> entry, so the positions match the attachments.
+	 */
+	public synchronized List<Uri> completePending(int requestCode, List<Uri> returnedUrls)
+	{
+		String value = mPreferences.getString(PREFIX_PENDING + requestCode, null);
+		if (value == null)
+		{
+			return null;
+		}
+
+		SharedPreferences.Editor editor = mPreferences.edit();
+		editor.remove(PREFIX_PENDING + requestCode);
+
+		List<Uri> result = new ArrayList<Uri>();
+		try
+		{
+			JSONArray pending = new JSONArray(value);
+			Iterator<Uri> returned = returnedUrls.iterator();
+			long now = System.currentTimeMillis();
+			for (int i = 0, count = pending.length(); i < count; ++i)
+			{
+				JSONObject attachment = pending.getJSONObject(i);
+				String url = attachment.optString(KEY_URL, null);
+				if (url != null)
+				{
+					// deduplicated
+					result.add(Uri.parse(url));
+				}
+				else if (returned.hasNext())
+				{
+					Uri returnedUrl = returned.next();
+					result.add(returnedUrl);
+					String hash = attachment.optString(KEY_HASH, null);
+					if (hash != null)
+					{
+						editor.putString(PREFIX_HASH + hash, now + " " + returnedUrl.toString());
+					}
+				}
+				else
+				{
+					// the attachment app didn't return a url for this attachment, keep the positions of the following ones
+					result.add(null);
+				}
+			}
+		}
+		catch (JSONException e)
+		{
+			// corrupt pending request, just return what the attachment app returned
+			editor.apply();
+			return returnedUrls;
+		}
+
+		editor.apply();
+		trim();
+		return result;
+	}
+
+
+	/**
+	 * Remove the oldest urls if the index contains more than {@link #MAX_ENTRIES}.
+	 */
+	private void trim()
+	{
+		Map<String, ?> all = mPreferences.getAll();
+		List<String> keys = new ArrayList<String>();
+		List<Long> times = new ArrayList<Long>();
+		for (Map.Entry<String, ?> entry : all.entrySet())
+		{
+			if (entry.getKey().startsWith(PREFIX_HASH) && entry.getValue() instanceof String)
+			{
+				String value = (String) entry.getValue();
+				keys.add(entry.getKey());
+				times.add(Long.parseLong(value.substring(0, value.indexOf(' '))));
+			}
+		}
+
+		int excess = keys.size() - MAX_ENTRIES;
+		if (excess <= 0)
+		{
+			return;
+		}
+
+		SharedPreferences.Editor editor = mPreferences.edit();
+		while (excess-- > 0)
+		{
+			int oldest = 0;
+			for (int i = 1, count = times.size(); i < count; ++i)
+			{
+				if (times.get(i) < times.get(oldest))
+				{
+					oldest = i;
+				}
+			}
+			editor.remove(keys.remove(oldest));
+			times.remove(oldest);
+		}
+		editor.apply();
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Describes how attachments are prepared before they are handed to the attachment app. Images larger than the maximum dimensions are scaled down and
+ * recompressed, so less data has to be uploaded. Other attachments and images that are small enough are passed on unchanged.
+ * <p>
+ * With {@link #setDeduplicate(boolean)} attachments that have been uploaded before are not uploaded again. Instead the url of the former upload is returned.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class AttachmentOptions
+{
+	private final int mMaxWidth;
+	private final int mMaxHeight;
+	private int mQuality = 85;
+	private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.JPEG;
+	private boolean mDeduplicate;
+
+
+	/**
+	 * Constructor for {@link AttachmentOptions} that don't scale images.
+	 */
+	public AttachmentOptions()
+	{
+		mMaxWidth = 0;
+		mMaxHeight = 0;
+	}
+
+
+	/**
+	 * Constructor for {@link AttachmentOptions}.
+	 *
+	 * @param maxWidth
+	 *            The maximum width of image attachments in pixels.
+	 * @param maxHeight
+	 *            The maximum height of image attachments in pixels.
+	 */
+	public AttachmentOptions(int maxWidth, int maxHeight)
+	{
+		if (maxWidth <= 0 || maxHeight <= 0)
+		{
+			throw new IllegalArgumentException("Maximum dimensions must be positive.");
+		}
+		mMaxWidth = maxWidth;
+		mMaxHeight = maxHeight;
+	}
+
+
+	/**
+	 * Set the compression quality of scaled images. The default is 85.
+	 *
+	 * @param quality
+	 *            The quality from 0 to 100, ignored by lossless formats.
+	 * @return This instance.
+	 */
+	public AttachmentOptions setQuality(int quality)
+	{
+		if (quality < 0 || quality > 100)
+		{
+			throw new IllegalArgumentException("Quality must be in the range 0 to 100.");
+		}
+		mQuality = quality;
+		return this;
+	}
+
+
+	/**
+	 * Set the format of scaled images. The default is {@link Bitmap.CompressFormat#JPEG}.
+	 *
+	 * @param format
+	 *            The {@link Bitmap.CompressFormat}, must not be <code>null</code>.
+	 * @return This instance.
+	 */
+	public AttachmentOptions setFormat(Bitmap.CompressFormat format)
+	{
+		if (format == null)
+		{
+			throw new IllegalArgumentException("Format must not be null.");
+		}
+		mFormat = format;
+		return this;
+	}
+
+
+	/**
+	 * Set whether attachments with the same content as a former upload should be deduplicated. If enabled, the content of each attachment is hashed and the
+	 * url of a former upload of the same content is returned without starting the attachment app. The urls are only returned by
+	 * {@link AttachmentUtils#getUrlsFromResult(android.content.Context, int, android.content.Intent)} and
+	 * {@link AttachmentUtils#getUrlFromResult(android.content.Context, int, android.content.Intent)}, which also record the urls of new uploads. The default
+	 * is <code>false</code>.
+	 *
+	 * @param deduplicate
+	 *            Whether to deduplicate attachments.
+	 * @return This instance.
+	 */
+	public AttachmentOptions setDeduplicate(boolean deduplicate)
+	{
+		mDeduplicate = deduplicate;
+		return this;
+	}
+
+
+	/**
+	 * Returns the maximum width of image attachments in pixels.
+	 *
+	 * @return The maximum width or <code>0</code> if images are not scaled.
+	 */
+	public int getMaxWidth()
+	{
+		return mMaxWidth;
+	}
+
+
+	/**
+	 * Returns the maximum height of image attachments in pixels.
+	 *
+	 * @return The maximum height or <code>0</code> if images are not scaled.
+	 */
+	public int getMaxHeight()
+	{
+		return mMaxHeight;
+	}
+
+
+	/**
+	 * Returns the compression quality of scaled images.
+	 *
+	 * @return The quality from 0 to 100.
+	 */
+	public int getQuality()
+	{
+		return mQuality;
+	}
+
+
+	/**
+	 * Returns the format of scaled images.
+	 *
+	 * @return The {@link Bitmap.CompressFormat}.
+	 */
+	public Bitmap.CompressFormat getFormat()
+	{
+		return mFormat;
+	}
+
+
+	/**
+	 * Returns whether attachments with the same content as a former upload are deduplicated.
+	 *
+	 * @return <code>true</code> if attachments are deduplicated.
+	 */
+	public boolean isDeduplicate()
+	{
+		return mDeduplicate;
+	}
+
+
+	/**
+	 * Returns whether images are scaled.
+	 *
+	 * @return <code>true</code> if images larger than the maximum dimensions are scaled down.
+	 */
+	boolean scales()
+	{
+		return mMaxWidth > 0;
+	}
+
+
+	/**
+	 * Returns a {@link String} that identifies how these options transform attachments. The same content prepared with options returning the same key results
+	 * in the same upload.
+	 *
+	 * @return The key.
+	 */
+	String key()
+	{
+		return scales() ? mMaxWidth + "x" + mMaxHeight + ":" + mQuality + ":" + mFormat.name() : "";
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+
+
+/**
+ * A client of the headless attachment service of an attachment app. It uploads files in the background without any UI and delivers progress and the
+ * resulting urls to an {@link AttachmentUploadCallback}. Multiple uploads can be in flight at the same time.
+ * <p>
+ * The service is bound when the first upload starts and unbound when the last upload has finished. All methods must be called on the main thread.
+ * </p>
+ *
+ * <h2>Example</h2>
+ *
+ * <pre>
+ * <code>
+ * List&lt;String&gt; services = AttachmentServiceClient.getServicePackages(context);
+ * AttachmentServiceClient client = new AttachmentServiceClient(context, services.get(0));
+ * client.upload(0, fileUri, callback);
+ * </code>
+ * </pre>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class AttachmentServiceClient
+{
+	private final static Handler HANDLER = new Handler(Looper.getMainLooper());
+
+	private final Context mContext;
+	private final String mPackageName;
+
+	/**
+	 * The callbacks of the uploads in flight.
+	 */
+	private final Map<Long, AttachmentUploadCallback> mUploads = new HashMap<Long, AttachmentUploadCallback>();
+
+	/**
+	 * The {@link Uri}s the attachment app has been granted read access to, by upload id. The grants are revoked when the uploads are done.
+	 */
+	private final Map<Long, Uri> mGrantedUris = new HashMap<Long, Uri>();
+
+	/**
+	 * Calls waiting for the service to be connected.
+	 */
+	private final List<Runnable> mPendingCalls = new ArrayList<Runnable>();
+
+	private IAttachmentService mService;
+	private boolean mBound;
+
+	private final ServiceConnection mConnection = new ServiceConnection()
+	{
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder)
+		{
+			mService = IAttachmentService.Stub.asInterface(binder);
+			List<Runnable> calls = new ArrayList<Runnable>(mPendingCalls);
+			mPendingCalls.clear();
+			for (Runnable call : calls)
+			{
+				call.run();
+			}
+		}
+
+
+		@Override
+		public void onServiceDisconnected(ComponentName name)
+		{
+			// the service died, the uploads in flight are lost
+			failAll(new Exception("Attachment service disconnected."));
+		}
+	};
+
+	private final IAttachmentCallback.Stub mCallback = new IAttachmentCallback.Stub()
+	{
+		@Override
+		public void onProgress(final long uploadId, final long bytesSent, final long totalBytes)
+		{
+			HANDLER.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					AttachmentUploadCallback callback = mUploads.get(uploadId);
+					if (callback != null)
+					{
+						callback.onProgress(uploadId, bytesSent, totalBytes);
+					}
+				}
+			});
+		}
+
+
+		@Override
+		public void onUploaded(final long uploadId, final String url)
+		{
+			HANDLER.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					AttachmentUploadCallback callback = finish(uploadId);
+					if (callback != null)
+					{
+						callback.onUploaded(uploadId, Uri.parse(url));
+					}
+				}
+			});
+		}
+
+
+		@Override
+		public void onError(final long uploadId, final String message)
+		{
+			HANDLER.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					AttachmentUploadCallback callback = finish(uploadId);
+					if (callback != null)
+					{
+						callback.onError(uploadId, new Exception(message));
+					}
+				}
+			});
+		}
+	};
+
+
+	/**
+	 * Returns the packages of the installed attachment apps that provide a headless attachment service.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @return A {@link List} of package names, may be empty.
+	 */
+	public static List<String> getServicePackages(Context context)
+	{
+		List<ResolveInfo> services = context.getPackageManager().queryIntentServices(new Intent(AttachmentUtils.ACTION_ATTACHMENT_SERVICE), 0);
+		List<String> result = new ArrayList<String>();
+		if (services != null)
+		{
+			for (ResolveInfo service : services)
+			{
+				if (!result.contains(service.serviceInfo.packageName))
+				{
+					result.add(service.serviceInfo.packageName);
+				}
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Constructor for {@link AttachmentServiceClient}.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @param packageName
+	 *            The package name of the attachment app, see {@link #getServicePackages(Context)}.
+	 */
+	public AttachmentServiceClient(Context context, String packageName)
+	{
+		if (context == null)
+		{
+			throw new IllegalArgumentException("Context must not be null.");
+		}
+		if (packageName == null)
+		{
+			throw new IllegalArgumentException("Package name must not be null.");
+		}
+		mContext = context.getApplicationContext();
+		mPackageName = packageName;
+	}
+
+
+	/**
+	 * Upload the content of the given {@link Uri}. Read permission for the {@link Uri} is granted to the attachment app until the upload has been completed,
+	 * failed or cancelled. The progress and the result are delivered to the given callback.
+	 *
+	 * @param id
+	 *            An id to be used as a reference when progress and result are delivered. It must not be used by another upload in flight.
+	 * @param uri
+	 *            The content {@link Uri} to upload.
+	 * @param callback
+	 *            The {@link AttachmentUploadCallback}.
+	 * @throws IllegalArgumentException
+	 *             if one of the given parameters is invalid or <code>null</code>.
+	 */
+	public void upload(final long id, final Uri uri, final AttachmentUploadCallback callback)
+	{
+		if (uri == null)
+		{
+			throw new IllegalArgumentException("Uri must not be null.");
+		}
+		if (callback == null)
+		{
+			throw new IllegalArgumentException("Callback must not be null.");
+		}
+		if (mUploads.containsKey(id))
+		{
+			throw new IllegalArgumentException("Upload " + id + " is already in flight.");
+		}
+
+		mUploads.put(id, callback);
+		try
+		{
+			mContext.grantUriPermission(mPackageName, uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+			mGrantedUris.put(id, uri);
+		}
+		catch (SecurityException e)
+		{
+			// we can't grant access to this Uri, the service may still be able to read it
+		}
+
+		call(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (mUploads.get(id) != callback)
+				{
+					// cancelled before the service was connected
+					return;
+				}
+				try
+				{
+					mService.upload(id, uri, mCallback);
+				}
+				catch (RemoteException e)
+				{
+					finish(id);
+					callback.onError(id, e);
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Cancel the upload with the given id. The callback of the upload is not called anymore.
+	 *
+	 * @param id
+	 *            The id of the upload.
+	 */
+	public void cancel(final long id)
+	{
+		if (!mUploads.containsKey(id))
+		{
+			return;
+		}
+
+		if (mService != null)
+		{
+			try
+			{
+				mService.cancel(id, mCallback);
+			}
+			catch (RemoteException e)
+			{
+				// the service is gone anyway
+			}
+		}
+		// if the service is not connected yet, the upload won't be sent because it's not in flight anymore
+		finish(id);
+	}
+
+
+	/**
+	 * Returns whether any upload is in flight.
+	 *
+	 * @return <code>true</code> if at least one upload has not been completed yet.
+	 */
+	public boolean isUploading()
+	{
+		return !mUploads.isEmpty();
+	}
+
+
+	/**
+	 * Run the given call as soon as the service is connected.
+	 */
+	private void call(Runnable call)
+	{
+		if (mService != null)
+		{
+			call.run();
+			return;
+		}
+
+		mPendingCalls.add(call);
+		if (!mBound)
+		{
+			Intent intent = new Intent(AttachmentUtils.ACTION_ATTACHMENT_SERVICE);
+			intent.setPackage(mPackageName);
+			mBound = mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+			if (!mBound)
+			{
+				failAll(new Exception("Can't bind to the attachment service of " + mPackageName));
+			}
+		}
+	}
+
+
+	/**
+	 * Remove the given upload and unbind from the service if it was the last one.
+	 *
+	 * @return The callback of the upload or <code>null</code> if it was not in flight.
+	 */
+	private AttachmentUploadCallback finish(long id)
+	{
+		AttachmentUploadCallback callback = mUploads.remove(id);
+		revoke(id);
+		if (mUploads.isEmpty())
+		{
+			unbind();
+		}
+		return callback;
+	}
+
+
+	private void failAll(Exception e)
+	{
+		Map<Long, AttachmentUploadCallback> uploads = new HashMap<Long, AttachmentUploadCallback>(mUploads);
+		mUploads.clear();
+		// unbind() revokes all grants
+		unbind();
+		for (Map.Entry<Long, AttachmentUploadCallback> upload : uploads.entrySet())
+		{
+			upload.getValue().onError(upload.getKey(), e);
+		}
+	}
+
+
+	/**
+	 * Revoke the read permission granted for the upload with the given id, unless another upload in flight needs it.
+	 */
+	private void revoke(long id)
+	{
+		Uri uri = mGrantedUris.remove(id);
+		if (uri == null || mGrantedUris.containsValue(uri))
+		{
+			return;
+		}
+		try
+		{
+			mContext.revokeUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+		}
+		catch (SecurityException e)
+		{
+			// we don't own the grant anymore
+		}
+	}
+
+
+	private void unbind()
+	{
+		// the service won't upload anything anymore
+		for (Long id : new ArrayList<Long>(mGrantedUris.keySet()))
+		{
+			revoke(id);
+		}
+		mPendingCalls.clear();
+		if (mBound)
+		{
+			mContext.unbindService(mConnection);
+			mBound = false;
+		}
+		mService = null;
+	}
+}
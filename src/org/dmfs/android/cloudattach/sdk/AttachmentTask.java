@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
+
+
+/**
+ * Background task that prepares attachments according to {@link AttachmentOptions} and starts the attachment app with the result. Attachments that have been
+ * uploaded before are deduplicated if requested. If all attachments have been deduplicated the result is delivered without starting the attachment app.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class AttachmentTask extends AsyncTask<Void, Void, List<Uri>>
+{
+	private final Context mContext;
+	private final WeakReference<Activity> mActivity;
+	private final List<Uri> mUris;
+	private final AttachmentOptions mOptions;
+	private final int mRequestCode;
+
+	/**
+	 * The urls of the deduplicated attachments, <code>null</code> for attachments to upload.
+	 */
+	private final List<String> mKnownUrls = new ArrayList<String>();
+
+
+	/**
+	 * Constructor for {@link AttachmentTask}.
+	 *
+	 * @param activity
+	 *            The {@link Activity} to start the attachment app from.
+	 * @param uris
+	 *            The {@link Uri}s of the attachments.
+	 * @param options
+	 *            The {@link AttachmentOptions}.
+	 * @param requestCode
+	 *            The request code for reference in {@link Activity#onActivityResult(int, int, android.content.Intent)}.
+	 */
+	AttachmentTask(Activity activity, List<Uri> uris, AttachmentOptions options, int requestCode)
+	{
+		mContext = activity.getApplicationContext();
+		mActivity = new WeakReference<Activity>(activity);
+		mUris = uris;
+		mOptions = options;
+		mRequestCode = requestCode;
+	}
+
+
+	@Override
+	protected List<Uri> doInBackground(Void... params)
+	{
+		List<Uri> uploads = mUris;
+		if (mOptions.isDeduplicate())
+		{
+			uploads = deduplicate();
+		}
+		return uploads.isEmpty() ? uploads : AttachmentTransformer.transform(mContext, uploads, mOptions);
+	}
+
+
+	/**
+	 * Look up the hashes of the attachments in the {@link AttachmentIndex} and remember the attachments of this request.
+	 *
+	 * @return The {@link Uri}s of the attachments that have not been uploaded before.
+	 */
+	private List<Uri> deduplicate()
+	{
+		AttachmentIndex index = new AttachmentIndex(mContext);
+		List<String> hashes = new ArrayList<String>(mUris.size());
+		List<Uri> uploads = new ArrayList<Uri>(mUris.size());
+		for (Uri uri : mUris)
+		{
+			String hash;
+			try
+			{
+				// the same content prepared with different options results in a different upload
+				hash = AttachmentIndex.hash(mContext.getContentResolver(), uri) + "|" + mOptions.key();
+			}
+			catch (IOException e)
+			{
+				hash = null;
+			}
+
+			String url = hash == null ? null : index.getUrl(hash);
+			hashes.add(hash);
+			mKnownUrls.add(url);
+			if (url == null)
+			{
+				uploads.add(uri);
+			}
+		}
+
+		if (uploads.isEmpty())
+		{
+			index.removePending(mRequestCode);
+		}
+		else
+		{
+			index.putPending(mRequestCode, hashes, mKnownUrls);
+		}
+		return uploads;
+	}
+
+
+	@Override
+	protected void onPostExecute(List<Uri> uris)
+	{
+		Activity activity = mActivity.get();
+		if (activity == null || activity.isFinishing())
+		{
+			// the temporary files will be deleted later
+			return;
+		}
+
+		if (uris.isEmpty())
+		{
+			// all attachments have been uploaded before, return the result right away
+			deliverKnownUrls(activity);
+			return;
+		}
+		AttachmentUtils.startAttachmentActivity(uris, activity, mRequestCode);
+	}
+
+
+	private void deliverKnownUrls(Activity activity)
+	{
+		Intent result = new Intent();
+		result.putExtra(AttachmentUtils.EXTRAS_URL, mKnownUrls.get(0));
+		result.putStringArrayListExtra(AttachmentUtils.EXTRAS_URLS, new ArrayList<String>(mKnownUrls));
+		try
+		{
+			activity.createPendingResult(mRequestCode, result, PendingIntent.FLAG_ONE_SHOT).send(Activity.RESULT_OK);
+		}
+		catch (PendingIntent.CanceledException e)
+		{
+			// the activity is gone
+		}
+	}
+}
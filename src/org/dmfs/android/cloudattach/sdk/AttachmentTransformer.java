@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.webkit.MimeTypeMap;
+
+
+/**
+ * Scales down and recompresses image attachments according to {@link AttachmentOptions}. The results are stored in temporary files served by
+ * {@link AttachmentFileProvider}. This performs blocking I/O, so it must not be called on the main thread.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class AttachmentTransformer
+{
+	/**
+	 * The time in milliseconds after which temporary files are deleted. Attachment apps should have uploaded them by then.
+	 */
+	private final static long MAX_AGE = 24 * 60 * 60 * 1000;
+
+	private final static int JPEG_SOI = 0xffd8;
+	private final static int JPEG_APP1 = 0xffe1;
+	private final static int JPEG_SOS = 0xffda;
+	private final static int JPEG_EOI = 0xffd9;
+	private final static int EXIF_TAG_ORIENTATION = 0x0112;
+
+
+	/**
+	 * "No instances" constructor.
+	 */
+	private AttachmentTransformer()
+	{
+	}
+
+
+	/**
+	 * Transform the given attachments. Attachments that can't be transformed are passed on unchanged, all of them if the app doesn't declare an
+	 * {@link AttachmentFileProvider}.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @param uris
+	 *            The {@link Uri}s of the attachments.
+	 * @param options
+	 *            The {@link AttachmentOptions}.
+	 * @return The {@link Uri}s to hand to the attachment app, in the same order.
+	 */
+	static List<Uri> transform(Context context, List<Uri> uris, AttachmentOptions options)
+	{
+		if (!options.scales() || !AttachmentFileProvider.isDeclared(context))
+		{
+			// nothing to do or nothing to serve the results
+			return uris;
+		}
+		deleteOldFiles(context);
+
+		List<Uri> result = new ArrayList<Uri>(uris.size());
+		for (Uri uri : uris)
+		{
+			try
+			{
+				result.add(transform(context, uri, options));
+			}
+			catch (IOException e)
+			{
+				// upload the original
+				result.add(uri);
+			}
+			catch (OutOfMemoryError e)
+			{
+				// upload the original
+				result.add(uri);
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Transform a single attachment.
+	 *
+	 * @return The {@link Uri} of the transformed attachment or the given {@link Uri} if the attachment doesn't need to be transformed.
+	 */
+	private static Uri transform(Context context, Uri uri, AttachmentOptions options) throws IOException
+	{
+		ContentResolver resolver = context.getContentResolver();
+		String type = getType(resolver, uri);
+		if (type == null || !type.startsWith("image/") || "image/gif".equals(type))
+		{
+			// not an image or an image that might be animated
+			return uri;
+		}
+
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		decode(resolver, uri, opts);
+		int width = opts.outWidth;
+		int height = opts.outHeight;
+		if (width <= 0 || height <= 0)
+		{
+			// not decodable
+			return uri;
+		}
+
+		int orientation = getOrientation(context, uri, type);
+		if (orientation < 0)
+		{
+			// we can't tell which way is up, don't risk uploading a sideways image
+			return uri;
+		}
+
+		// the limits apply to the image as it's shown
+		boolean transposed = orientation == ExifInterface.ORIENTATION_TRANSPOSE || orientation == ExifInterface.ORIENTATION_ROTATE_90
+			|| orientation == ExifInterface.ORIENTATION_TRANSVERSE || orientation == ExifInterface.ORIENTATION_ROTATE_270;
+		int shownWidth = transposed ? height : width;
+		int shownHeight = transposed ? width : height;
+		if (shownWidth <= options.getMaxWidth() && shownHeight <= options.getMaxHeight())
+		{
+			// small enough
+			return uri;
+		}
+
+		float scale = Math.min((float) options.getMaxWidth() / shownWidth, (float) options.getMaxHeight() / shownHeight);
+		int targetWidth = Math.max(1, Math.round(width * scale));
+		int targetHeight = Math.max(1, Math.round(height * scale));
+
+		// subsample while decoding, so we never hold the full size image in memory
+		opts.inJustDecodeBounds = false;
+		opts.inSampleSize = 1;
+		while (width / (opts.inSampleSize * 2) >= targetWidth && height / (opts.inSampleSize * 2) >= targetHeight)
+		{
+			opts.inSampleSize *= 2;
+		}
+		Bitmap bitmap = decode(resolver, uri, opts);
+		if (bitmap == null)
+		{
+			return uri;
+		}
+
+		// the re-encoded image has no EXIF data, so scale and rotate the pixels in one step
+		Matrix matrix = orientationMatrix(orientation);
+		if (bitmap.getWidth() != targetWidth || bitmap.getHeight() != targetHeight || matrix != null)
+		{
+			Matrix transform = new Matrix();
+			transform.setScale((float) targetWidth / bitmap.getWidth(), (float) targetHeight / bitmap.getHeight());
+			if (matrix != null)
+			{
+				transform.postConcat(matrix);
+			}
+			Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), transform, true);
+			if (transformed != bitmap)
+			{
+				bitmap.recycle();
+			}
+			bitmap = transformed;
+		}
+
+		File file = File.createTempFile("attachment", extension(options.getFormat()), AttachmentFileProvider.getDirectory(context));
+		boolean success = false;
+		try
+		{
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+			try
+			{
+				if (!bitmap.compress(options.getFormat(), options.getQuality(), out))
+				{
+					throw new IOException("Can't compress " + uri);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			success = true;
+		}
+		finally
+		{
+			bitmap.recycle();
+			if (!success)
+			{
+				file.delete();
+			}
+		}
+		return AttachmentFileProvider.getUri(context, file);
+	}
+
+
+	private static String getType(ContentResolver resolver, Uri uri)
+	{
+		if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()))
+		{
+			String path = uri.getPath();
+			int dot = path == null ? -1 : path.lastIndexOf('.');
+			return dot < 0 ? null : MimeTypeMap.getSingleton().getMimeTypeFromExtension(path.substring(dot + 1).toLowerCase(Locale.US));
+		}
+		return resolver.getType(uri);
+	}
+
+
+	/**
+	 * Returns the EXIF orientation of the given image. The orientation is read from the stream, only the segments in front of the image data are read.
+	 *
+	 * @return One of the <code>ORIENTATION_*</code> values of {@link ExifInterface} or <code>-1</code> if the orientation could not be determined.
+	 */
+	private static int getOrientation(Context context, Uri uri, String type)
+	{
+		if (!"image/jpeg".equals(type) && !"image/jpg".equals(type))
+		{
+			// only JPEGs carry an orientation
+			return ExifInterface.ORIENTATION_NORMAL;
+		}
+
+		try
+		{
+			InputStream in = context.getContentResolver().openInputStream(uri);
+			if (in == null)
+			{
+				return -1;
+			}
+			try
+			{
+				int orientation = getOrientation(new DataInputStream(new BufferedInputStream(in)));
+				return orientation == ExifInterface.ORIENTATION_UNDEFINED ? ExifInterface.ORIENTATION_NORMAL : orientation;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			return -1;
+		}
+	}
+
+
+	/**
+	 * Read the orientation tag from the EXIF segment of a JPEG stream. ExifInterface can read only files before Nougat, this avoids copying the image to a
+	 * file.
+	 *
+	 * @return The orientation, {@link ExifInterface#ORIENTATION_UNDEFINED} if there is none or <code>-1</code> if the stream is not a valid JPEG.
+	 */
+	private static int getOrientation(DataInputStream in) throws IOException
+	{
+		if (in.readUnsignedShort() != JPEG_SOI)
+		{
+			return -1;
+		}
+
+		while (true)
+		{
+			int marker = in.readUnsignedShort();
+			if ((marker & 0xff00) != 0xff00 || marker == JPEG_SOS || marker == JPEG_EOI)
+			{
+				// the image data starts, there is no EXIF segment
+				return ExifInterface.ORIENTATION_UNDEFINED;
+			}
+			int length = in.readUnsignedShort() - 2;
+			if (length < 0)
+			{
+				return -1;
+			}
+			if (marker != JPEG_APP1)
+			{
+				skipFully(in, length);
+				continue;
+			}
+
+			byte[] segment = new byte[length];
+			in.readFully(segment);
+			if (length < 14 || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i' || segment[3] != 'f' || segment[4] != 0 || segment[5] != 0)
+			{
+				// XMP or something else, the EXIF segment may follow
+				continue;
+			}
+			return getOrientation(segment, 6);
+		}
+	}
+
+
+	/**
+	 * Returns the orientation tag of the first IFD of the TIFF structure at the given offset.
+	 */
+	private static int getOrientation(byte[] segment, int tiff)
+	{
+		boolean littleEndian;
+		if (segment[tiff] == 'I' && segment[tiff + 1] == 'I')
+		{
+			littleEndian = true;
+		}
+		else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M')
+		{
+			littleEndian = false;
+		}
+		else
+		{
+			return -1;
+		}
+
+		long ifd = tiff + readInt(segment, tiff + 4, littleEndian);
+		if (ifd < tiff || ifd + 2 > segment.length)
+		{
+			return -1;
+		}
+		int entries = readShort(segment, (int) ifd, littleEndian);
+		for (int i = 0; i < entries; ++i)
+		{
+			int entry = (int) ifd + 2 + i * 12;
+			if (entry + 12 > segment.length)
+			{
+				return -1;
+			}
+			if (readShort(segment, entry, littleEndian) == EXIF_TAG_ORIENTATION)
+			{
+				// a SHORT, stored in the first bytes of the value field
+				return readShort(segment, entry + 8, littleEndian);
+			}
+		}
+		return ExifInterface.ORIENTATION_UNDEFINED;
+	}
+
+
+	private static int readShort(byte[] data, int offset, boolean littleEndian)
+	{
+		int b0 = data[offset] & 0xff;
+		int b1 = data[offset + 1] & 0xff;
+		return littleEndian ? b1 << 8 | b0 : b0 << 8 | b1;
+	}
+
+
+	private static long readInt(byte[] data, int offset, boolean littleEndian)
+	{
+		long high = readShort(data, littleEndian ? offset + 2 : offset, littleEndian);
+		long low = readShort(data, littleEndian ? offset : offset + 2, littleEndian);
+		return high << 16 | low;
+	}
+
+
+	private static void skipFully(DataInputStream in, int count) throws IOException
+	{
+		while (count > 0)
+		{
+			int skipped = in.skipBytes(count);
+			if (skipped <= 0)
+			{
+				throw new EOFException();
+			}
+			count -= skipped;
+		}
+	}
+
+
+	/**
+	 * Returns the {@link Matrix} that turns an image with the given EXIF orientation upright.
+	 *
+	 * @return The {@link Matrix} or <code>null</code> if the image is upright already.
+	 */
+	private static Matrix orientationMatrix(int orientation)
+	{
+		Matrix matrix = new Matrix();
+		switch (orientation)
+		{
+			case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+				matrix.setScale(-1, 1);
+				return matrix;
+			case ExifInterface.ORIENTATION_ROTATE_180:
+				matrix.setRotate(180);
+				return matrix;
+			case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+				matrix.setScale(1, -1);
+				return matrix;
+			case ExifInterface.ORIENTATION_TRANSPOSE:
+				matrix.setRotate(90);
+				matrix.postScale(-1, 1);
+				return matrix;
+			case ExifInterface.ORIENTATION_ROTATE_90:
+				matrix.setRotate(90);
+				return matrix;
+			case ExifInterface.ORIENTATION_TRANSVERSE:
+				matrix.setRotate(270);
+				matrix.postScale(-1, 1);
+				return matrix;
+			case ExifInterface.ORIENTATION_ROTATE_270:
+				matrix.setRotate(270);
+				return matrix;
+			default:
+				return null;
+		}
+	}
+
+
+	private static Bitmap decode(ContentResolver resolver, Uri uri, BitmapFactory.Options opts) throws IOException
+	{
+		InputStream in = resolver.openInputStream(uri);
+		if (in == null)
+		{
+			throw new FileNotFoundException("Can't open " + uri);
+		}
+		try
+		{
+			return BitmapFactory.decodeStream(in, null, opts);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+
+	private static String extension(Bitmap.CompressFormat format)
+	{
+		if (format == Bitmap.CompressFormat.JPEG)
+		{
+			return ".jpg";
+		}
+		if (format == Bitmap.CompressFormat.PNG)
+		{
+			return ".png";
+		}
+		return ".webp";
+	}
+
+
+	private static void deleteOldFiles(Context context)
+	{
+		File[] files;
+		try
+		{
+			files = AttachmentFileProvider.getDirectory(context).listFiles();
+		}
+		catch (IOException e)
+		{
+			return;
+		}
+
+		if (files != null)
+		{
+			long now = System.currentTimeMillis();
+			for (File file : files)
+			{
+				if (now - file.lastModified() > MAX_AGE)
+				{
+					file.delete();
+				}
+			}
+		}
+	}
+}
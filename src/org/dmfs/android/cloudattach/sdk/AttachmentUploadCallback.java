@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import android.net.Uri;
+
+
+/**
+ * Interface of a callback that receives the progress and the result of an upload by an {@link AttachmentServiceClient}. All methods are called on the main
+ * thread.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public interface AttachmentUploadCallback
+{
+	/**
+	 * Called when the progress of an upload changes.
+	 *
+	 * @param id
+	 *            The id that has been passed to {@link AttachmentServiceClient#upload(long, Uri, AttachmentUploadCallback)}.
+	 * @param bytesSent
+	 *            The number of bytes uploaded so far.
+	 * @param totalBytes
+	 *            The total number of bytes or <code>-1</code> if unknown.
+	 */
+	abstract void onProgress(long id, long bytesSent, long totalBytes);
+
+
+	/**
+	 * Called when an upload has been completed.
+	 *
+	 * @param id
+	 *            The id that has been passed to {@link AttachmentServiceClient#upload(long, Uri, AttachmentUploadCallback)}.
+	 * @param url
+	 *            The url of the uploaded attachment.
+	 */
+	abstract void onUploaded(long id, Uri url);
+
+
+	/**
+	 * Called if an upload failed.
+	 *
+	 * @param id
+	 *            The id that has been passed to {@link AttachmentServiceClient#upload(long, Uri, AttachmentUploadCallback)}.
+	 * @param e
+	 *            The error.
+	 */
+	abstract void onError(long id, Exception e);
+
+}
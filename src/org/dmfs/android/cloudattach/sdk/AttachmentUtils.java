@@ -17,16 +17,18 @@
 
 package org.dmfs.android.cloudattach.sdk;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.dmfs.android.cloudattach.sdk.ui.AttachmentAppsDialog;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.MediaStore;
 
 
@@ -56,10 +58,20 @@ public final class AttachmentUtils
 	 * global action to call for attachment apps. Apps have to declare an intent-filter with this action
 	 */
 	public static final String ACTION_ATTACHMENT = "org.dmfs.android.cloudattach.action.ATTACH";
+	/**
+	 * global action of headless attachment services. Apps can declare a service with an intent-filter with this action that implements
+	 * {@link IAttachmentService} to upload attachments in the background, see {@link AttachmentServiceClient}.
+	 */
+	public static final String ACTION_ATTACHMENT_SERVICE = "org.dmfs.android.cloudattach.action.ATTACHMENT_SERVICE";
 	/**
 	 * global key to get url from intent extras.
 	 */
 	public static final String EXTRAS_URL = "org.dmfs.android.cloudattach.extras.URL";
+	/**
+	 * global key to get the urls from intent extras if multiple {@link Uri}s have been attached at once. The urls are returned in the order of the attached
+	 * {@link Uri}s.
+	 */
+	public static final String EXTRAS_URLS = "org.dmfs.android.cloudattach.extras.URLS";
 	/**
 	 * global key to get a state message from intent extras.
 	 */
@@ -107,6 +119,36 @@ public final class AttachmentUtils
 	}
 
 
+	/**
+	 * starts an attachment application with the content selected in the chooser, after transforming it according to the given {@link AttachmentOptions}.
+	 * Large images are scaled down and recompressed on a background thread, so less data needs to be uploaded. The attachment result will be returned in
+	 * {@link Activity#onActivityResult()}.
+	 * <p>
+	 * The app must declare an {@link AttachmentFileProvider} to use this, otherwise an {@link IllegalStateException} is thrown.
+	 * </p>
+	 * 
+	 * @param chooserActivityResult
+	 *            result of the former {@link #startChooserForAttachmentActivity(Activity, int)} call
+	 * @param activity
+	 *            Android {@link Activity} {@link Context}
+	 * @param requestCode
+	 *            this code will be returned in {@link Activity#onActivityResult()}
+	 * @param options
+	 *            The {@link AttachmentOptions} or <code>null</code> to attach the content unchanged.
+	 */
+	public static void startAttachmentActivityFromChooserResult(Intent chooserActivityResult, Activity activity, int requestCode, AttachmentOptions options)
+	{
+		List<Uri> uris = getUrisFromChooserResult(chooserActivityResult);
+		if (options == null || uris.isEmpty())
+		{
+			startAttachmentActivityFromChooserResult(chooserActivityResult, activity, requestCode);
+			return;
+		}
+		checkFileProvider(activity, options);
+		new AttachmentTask(activity, uris, options, requestCode).executeOnExecutor(CloudAttachClient.getDefault(activity).backgroundExecutor());
+	}
+
+
 	/**
 	 * starts an attachment application immediately. The {@link Uri uri} indicates the upload content. The attachment result will be returned in
 	 * {@link Activity#onActivityResult()}.
@@ -141,10 +183,75 @@ public final class AttachmentUtils
 	}
 
 
+	/**
+	 * starts an attachment application immediately with all of the given {@link Uri}s, so the attachment application can upload them in a single session. The
+	 * attachment result will be returned in {@link Activity#onActivityResult()}, use {@link #getUrlsFromResult(Intent)} to get the urls.
+	 * 
+	 * @param uris
+	 *            {@link Uri}s which point to the upload content
+	 * @param activity
+	 *            Android {@link Activity} {@link Context}
+	 * @param requestCode
+	 *            this code will be returned in {@link Activity#onActivityResult()}
+	 */
+	public static void startAttachmentActivity(List<Uri> uris, Activity activity, int requestCode)
+	{
+		startAttachmentActivity(AttachmentUtils.getAttachmentIntent(uris, activity), activity, requestCode);
+	}
+
+
+	/**
+	 * starts an attachment application with the given {@link Uri}s, after transforming them according to the given {@link AttachmentOptions}. Large images are
+	 * scaled down and recompressed on a background thread, so less data needs to be uploaded. The attachment result will be returned in
+	 * {@link Activity#onActivityResult()}.
+	 * <p>
+	 * The app must declare an {@link AttachmentFileProvider} to use this, otherwise an {@link IllegalStateException} is thrown.
+	 * </p>
+	 * 
+	 * @param uris
+	 *            {@link Uri}s which point to the upload content
+	 * @param activity
+	 *            Android {@link Activity} {@link Context}
+	 * @param requestCode
+	 *            this code will be returned in {@link Activity#onActivityResult()}
+	 * @param options
+	 *            The {@link AttachmentOptions} or <code>null</code> to attach the content unchanged.
+	 */
+	public static void startAttachmentActivity(List<Uri> uris, Activity activity, int requestCode, AttachmentOptions options)
+	{
+		if (options == null)
+		{
+			startAttachmentActivity(uris, activity, requestCode);
+			return;
+		}
+		if (uris == null || uris.isEmpty())
+		{
+			throw new IllegalArgumentException("Uris must not be empty.");
+		}
+		checkFileProvider(activity, options);
+		new AttachmentTask(activity, new ArrayList<Uri>(uris), options, requestCode).executeOnExecutor(CloudAttachClient.getDefault(activity).backgroundExecutor());
+	}
+
+
+	/**
+	 * Make sure transformed attachments can be served to the attachment app.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the given {@link AttachmentOptions} transform attachments, but the app doesn't declare an {@link AttachmentFileProvider}.
+	 */
+	private static void checkFileProvider(Context context, AttachmentOptions options)
+	{
+		if (options.scales() && !AttachmentFileProvider.isDeclared(context))
+		{
+			throw new IllegalStateException("AttachmentOptions need an AttachmentFileProvider with the authority " + AttachmentFileProvider.getAuthority(context)
+				+ " in the manifest.");
+		}
+	}
+
+
 	private static void startAttachmentActivity(Intent intent, Activity activity, int requestCode)
 	{
-		List<ResolveInfo> availableApps = activity.getPackageManager().queryIntentActivities(intent, PackageManager.GET_RESOLVED_FILTER);
-		if (availableApps == null || availableApps.size() == 0)
+		if (!CloudAttachClient.getDefault(activity).hasAttachmentApps(intent))
 		{
 			AttachmentAppsDialog.show(activity.getFragmentManager());
 			return;
@@ -153,6 +260,20 @@ public final class AttachmentUtils
 	}
 
 
+	/**
+	 * Looks up the installed attachment applications on a background thread, so {@link #startAttachmentActivity(Activity, int)} and its variants don't have to
+	 * query the {@link android.content.pm.PackageManager} on the UI thread. Call this once when your app starts. The result is cached until a package is
+	 * installed, removed or changed.
+	 * 
+	 * @param context
+	 *            A {@link Context}.
+	 */
+	public static void warmUp(Context context)
+	{
+		CloudAttachClient.getDefault(context).warmUp();
+	}
+
+
 	/**
 	 * calls the android chooser to select content for attachment applications immediately. Override {@link Activity#onActivityResult()} in your activity to get
 	 * the result of the chooser and forward it to {@link #startAttachmentActivityFromChooserResult(Intent, Activity, int)} to call for attachment applications.
@@ -169,6 +290,24 @@ public final class AttachmentUtils
 	}
 
 
+	/**
+	 * calls the android chooser to select content for attachment applications immediately. If <code>allowMultiple</code> is <code>true</code> the user may
+	 * select multiple files, which are all handed to the attachment application at once by
+	 * {@link #startAttachmentActivityFromChooserResult(Intent, Activity, int)}.
+	 * 
+	 * @param activity
+	 *            Android {@link Activity} {@link Context}
+	 * @param requestCode
+	 *            this code will be returned in {@link Activity#onActivityResult()}
+	 * @param allowMultiple
+	 *            Whether the user may select multiple files.
+	 */
+	public static void startChooserForAttachmentActivity(Activity activity, int requestCode, boolean allowMultiple)
+	{
+		activity.startActivityForResult(getChooserIntent(allowMultiple), requestCode);
+	}
+
+
 	/**
 	 * Returns an intent calling the android chooser. The chooser will provide apps, which listen to one of the following actions
 	 * {@link Intent#ACTION_GET_CONTENT} , {@link MediaStore#ACTION_IMAGE_CAPTURE}, {@link MediaStore#ACTION_VIDEO_CAPTURE},
@@ -177,12 +316,31 @@ public final class AttachmentUtils
 	 * @return Intent that opens the app chooser.
 	 */
 	public static Intent getChooserIntent()
+	{
+		return getChooserIntent(false);
+	}
+
+
+	/**
+	 * Returns an intent calling the android chooser. The chooser will provide apps, which listen to one of the following actions
+	 * {@link Intent#ACTION_GET_CONTENT} , {@link MediaStore#ACTION_IMAGE_CAPTURE}, {@link MediaStore#ACTION_VIDEO_CAPTURE},
+	 * {@link MediaStore.Audio.Media#RECORD_SOUND_ACTION}
+	 * 
+	 * @param allowMultiple
+	 *            Whether the user may select multiple files. This is supported by {@link Intent#ACTION_GET_CONTENT} apps on Android 4.3 and later.
+	 * @return Intent that opens the app chooser.
+	 */
+	public static Intent getChooserIntent(boolean allowMultiple)
 	{
 		// GET_CONTENT Apps
 		Intent getContentIntent = new Intent();
 		getContentIntent.setAction(Intent.ACTION_GET_CONTENT);
 		getContentIntent.setType("*/*");
 		getContentIntent.addCategory(Intent.CATEGORY_OPENABLE);
+		if (allowMultiple)
+		{
+			getContentIntent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+		}
 		// ACTION_IMAGE_CAPTURE Apps
 		Intent captureImageIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
 		// ACTION_VIDEO_CAPTURE Apps
@@ -248,6 +406,38 @@ public final class AttachmentUtils
 	}
 
 
+	/**
+	 * bundles multiple content:// or file:// {@link Uri}s and returns an intent to call for attachment applications. The first {@link Uri} is the data of the
+	 * {@link Intent}, all of them are passed in {@link Intent#EXTRA_STREAM} and, on Android 4.1 and later, in the {@link ClipData} of the {@link Intent}.
+	 * Attachment applications return a url for each {@link Uri} in {@link #EXTRAS_URLS}. Applications that don't support multiple {@link Uri}s only upload the
+	 * first one.
+	 * 
+	 * @param uris
+	 *            {@link Uri Uris} for attachment applications
+	 * @param ctx
+	 *            Android {@link Activity} {@link Context}
+	 * @return {@link Intent} to call for attachment application or null, if one of the uris is invalid
+	 */
+	public static Intent getAttachmentIntent(List<Uri> uris, Context ctx)
+	{
+		if (uris == null || uris.isEmpty())
+		{
+			throw new IllegalArgumentException("Uris must not be empty.");
+		}
+		for (Uri uri : uris)
+		{
+			if (!isValid(uri))
+			{
+				return null;
+			}
+		}
+		Intent intent = getAttachmentIntent(ctx);
+		putUris(intent, uris);
+		intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+		return intent;
+	}
+
+
 	/**
 	 * You can use this method in combination with {@link #startChooserForAttachmentActivity(Activity, int)}. This method bundles a {@link Uri} and returns an
 	 * intent to call for attachment applications. The Uri is part of the result {@link Intent} in {@link Activity#onActivityResult(int, int, Intent)}.
@@ -261,12 +451,86 @@ public final class AttachmentUtils
 	public static Intent getAttachmentIntentFromChooserResult(Intent activityResultIntent, Context ctx)
 	{
 		Intent intent = getAttachmentIntent(ctx);
-		intent.setData(activityResultIntent.getData());
+		List<Uri> uris = getUrisFromChooserResult(activityResultIntent);
+		if (uris.size() > 1)
+		{
+			putUris(intent, uris);
+		}
+		else if (uris.size() == 1)
+		{
+			intent.setData(uris.get(0));
+		}
 		intent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
 		return intent;
 	}
 
 
+	/**
+	 * Returns the {@link Uri}s the user has selected in the chooser. The result {@link Intent} contains multiple {@link Uri}s if the chooser has been started
+	 * with <code>allowMultiple</code> set to <code>true</code>.
+	 * 
+	 * @param activityResultIntent
+	 *            result {@link Intent} from {@link Activity#onActivityResult(int, int, Intent)}
+	 * @return A {@link List} of {@link Uri}s, may be empty.
+	 */
+	public static List<Uri> getUrisFromChooserResult(Intent activityResultIntent)
+	{
+		List<Uri> uris = new ArrayList<Uri>();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+		{
+			addClipDataUris(activityResultIntent, uris);
+		}
+		if (uris.isEmpty() && activityResultIntent.getData() != null)
+		{
+			uris.add(activityResultIntent.getData());
+		}
+		return uris;
+	}
+
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static void addClipDataUris(Intent intent, List<Uri> uris)
+	{
+		ClipData clipData = intent.getClipData();
+		if (clipData == null)
+		{
+			return;
+		}
+		for (int i = 0, count = clipData.getItemCount(); i < count; ++i)
+		{
+			Uri uri = clipData.getItemAt(i).getUri();
+			if (uri != null)
+			{
+				uris.add(uri);
+			}
+		}
+	}
+
+
+	private static void putUris(Intent intent, List<Uri> uris)
+	{
+		intent.setData(uris.get(0));
+		intent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, new ArrayList<Uri>(uris));
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+		{
+			setClipData(intent, uris);
+		}
+	}
+
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static void setClipData(Intent intent, List<Uri> uris)
+	{
+		// the ClipData grants read permission to all Uris, not just to the data Uri
+		ClipData clipData = ClipData.newRawUri(null, uris.get(0));
+		for (int i = 1, count = uris.size(); i < count; ++i)
+		{
+			clipData.addItem(new ClipData.Item(uris.get(i)));
+		}
+		intent.setClipData(clipData);
+	}
+
+
 	/**
 	 * Extracts the {@link Uri url} out of an attachment upload. The url is part of the result {@link Intent} in {@link Activity#onActivityResult()} of a former
 	 * {@link #startAttachmentActivity()} call.
@@ -289,6 +553,82 @@ public final class AttachmentUtils
 	}
 
 
+	/**
+	 * Extracts the {@link Uri url} out of an attachment upload started with {@link AttachmentOptions#setDeduplicate(boolean) deduplication}. The url of a new
+	 * upload is recorded, so uploading the same content again returns the same url without starting the attachment app.
+	 * 
+	 * @param context
+	 *            A {@link Context}.
+	 * @param requestCode
+	 *            The request code from {@link Activity#onActivityResult(int, int, Intent)}.
+	 * @param activityResultIntent
+	 *            Result {@link Intent} from {@link Activity#onActivityResult(int, int, Intent)}.
+	 * @return the upload url as {@link Uri} or null, if the result {@link Intent} contains no url.
+	 */
+	public static Uri getUrlFromResult(Context context, int requestCode, Intent activityResultIntent)
+	{
+		List<Uri> urls = getUrlsFromResult(context, requestCode, activityResultIntent);
+		return urls.isEmpty() ? null : urls.get(0);
+	}
+
+
+	/**
+	 * Extracts the {@link Uri urls} out of an attachment upload started with {@link AttachmentOptions#setDeduplicate(boolean) deduplication}. The urls
+	 * returned by the attachment application are merged with the urls of deduplicated attachments and recorded, so uploading the same content again returns
+	 * the same url without starting the attachment app. This reads and writes {@link android.content.SharedPreferences}.
+	 * <p>
+	 * Attachments are matched by the request code, so use a request code that's used for deduplicated uploads only.
+	 * </p>
+	 * 
+	 * @param context
+	 *            A {@link Context}.
+	 * @param requestCode
+	 *            The request code from {@link Activity#onActivityResult(int, int, Intent)}.
+	 * @param activityResultIntent
+	 *            Result {@link Intent} from {@link Activity#onActivityResult(int, int, Intent)}.
+	 * @return the upload urls as {@link Uri}s in the order of the attached {@link Uri}s, may be empty. If the attachment application didn't return a url for
+	 *         an attachment, for instance because it supports only a single {@link Uri}, the entry of that attachment is <code>null</code>.
+	 */
+	public static List<Uri> getUrlsFromResult(Context context, int requestCode, Intent activityResultIntent)
+	{
+		List<Uri> urls = getUrlsFromResult(activityResultIntent);
+		List<Uri> allUrls = new AttachmentIndex(context).completePending(requestCode, urls);
+		return allUrls == null ? urls : allUrls;
+	}
+
+
+	/**
+	 * Extracts the {@link Uri urls} out of an attachment upload of multiple {@link Uri}s. The urls are part of the result {@link Intent} in
+	 * {@link Activity#onActivityResult()} of a former {@link #startAttachmentActivity(List, Activity, int)} call. If the attachment application doesn't support
+	 * multiple {@link Uri}s, the result contains the url of the first {@link Uri} only.
+	 * 
+	 * @param activityResultIntent
+	 *            Result {@link Intent} from {@link Activity#onActivityResult(int, int, Intent)}.
+	 * @return the upload urls as {@link Uri}s in the order of the attached {@link Uri}s, may be empty.
+	 */
+	public static List<Uri> getUrlsFromResult(Intent activityResultIntent)
+	{
+		List<Uri> result = new ArrayList<Uri>();
+		ArrayList<String> urls = activityResultIntent.getStringArrayListExtra(EXTRAS_URLS);
+		if (urls != null)
+		{
+			for (String url : urls)
+			{
+				result.add(Uri.parse(url));
+			}
+		}
+		else
+		{
+			Uri url = getUrlFromResult(activityResultIntent);
+			if (url != null)
+			{
+				result.add(url);
+			}
+		}
+		return result;
+	}
+
+
 	private static boolean isValid(Uri uri)
 	{
 		return uri != null && (uri.getScheme().equalsIgnoreCase("file") || uri.getScheme().equalsIgnoreCase("content"));
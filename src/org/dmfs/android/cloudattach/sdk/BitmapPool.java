@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+
+/**
+ * A pool of mutable {@link Bitmap}s that can be reused by the decoder via {@link BitmapFactory.Options#inBitmap}. Only {@link Bitmap}s that are owned by the
+ * SDK (like intermediate results) are put into the pool, never {@link Bitmap}s that have been handed to a callback.
+ * <p>
+ * The {@link CloudAttachClient} registers the pool for {@link ComponentCallbacks2}, so it shrinks when the system is running low on memory.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class BitmapPool implements ComponentCallbacks2
+{
+	/**
+	 * The pooled bitmaps, least recently added first.
+	 */
+	private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+	private final int mMaxSize;
+	private int mSize;
+	private long mTrimmedBytes;
+
+
+	/**
+	 * Constructor for {@link BitmapPool}.
+	 *
+	 * @param maxSize
+	 *            The maximum number of bytes to keep in the pool.
+	 */
+	BitmapPool(int maxSize)
+	{
+		mMaxSize = maxSize;
+	}
+
+
+	/**
+	 * Take a {@link Bitmap} that can be used to decode an image of the given size with a sample size of <code>1</code>. The returned {@link Bitmap} is removed
+	 * from the pool.
+	 *
+	 * @param width
+	 *            The width of the decoded image.
+	 * @param height
+	 *            The height of the decoded image.
+	 * @param config
+	 *            The {@link Bitmap.Config} of the decoded image.
+	 * @return A reusable {@link Bitmap} or <code>null</code> if the pool doesn't contain a suitable {@link Bitmap}.
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+	{
+		Iterator<Bitmap> iterator = mBitmaps.iterator();
+		while (iterator.hasNext())
+		{
+			Bitmap bitmap = iterator.next();
+			if (canReuse(bitmap, width, height, config))
+			{
+				iterator.remove();
+				mSize -= allocationSize(bitmap);
+				return bitmap;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Put a {@link Bitmap} into the pool. The caller must not use the {@link Bitmap} after this call.
+	 *
+	 * @param bitmap
+	 *            The {@link Bitmap} to recycle.
+	 */
+	public synchronized void put(Bitmap bitmap)
+	{
+		int size = allocationSize(bitmap);
+		if (!bitmap.isMutable() || bitmap.isRecycled() || size > mMaxSize)
+		{
+			bitmap.recycle();
+			return;
+		}
+		mBitmaps.addLast(bitmap);
+		mSize += size;
+		trimToSize(mMaxSize);
+	}
+
+
+	/**
+	 * Drop the oldest {@link Bitmap}s until the pool size is at most the given number of bytes.
+	 *
+	 * @param size
+	 *            The maximum size of the pool after this call.
+	 * @return The number of bytes that have been dropped.
+	 */
+	public synchronized int trimToSize(int size)
+	{
+		int trimmed = 0;
+		while (mSize > size && !mBitmaps.isEmpty())
+		{
+			Bitmap bitmap = mBitmaps.removeFirst();
+			int bitmapSize = allocationSize(bitmap);
+			mSize -= bitmapSize;
+			trimmed += bitmapSize;
+			bitmap.recycle();
+		}
+		return trimmed;
+	}
+
+
+	public synchronized int size()
+	{
+		return mSize;
+	}
+
+
+	public int maxSize()
+	{
+		return mMaxSize;
+	}
+
+
+	/**
+	 * Returns the total number of bytes that have been released in response to memory trim requests.
+	 *
+	 * @return The number of trimmed bytes.
+	 */
+	public synchronized long trimmedBytes()
+	{
+		return mTrimmedBytes;
+	}
+
+
+	@Override
+	public synchronized void onTrimMemory(int level)
+	{
+		mTrimmedBytes += trimToSize((int) (mSize * PreviewCache.retainFraction(level)));
+	}
+
+
+	@Override
+	public synchronized void onLowMemory()
+	{
+		mTrimmedBytes += trimToSize(0);
+	}
+
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig)
+	{
+		// nothing to do
+	}
+
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static boolean canReuse(Bitmap bitmap, int width, int height, Bitmap.Config config)
+	{
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+		{
+			// since KitKat any Bitmap that's large enough can be reused
+			return bitmap.getAllocationByteCount() >= width * height * bytesPerPixel(config);
+		}
+		// before KitKat the dimensions must match exactly
+		return bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+	}
+
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static int allocationSize(Bitmap bitmap)
+	{
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+		{
+			return bitmap.getAllocationByteCount();
+		}
+		return bitmap.getByteCount();
+	}
+
+
+	private static int bytesPerPixel(Bitmap.Config config)
+	{
+		if (config == Bitmap.Config.ALPHA_8)
+		{
+			return 1;
+		}
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+		{
+			return 2;
+		}
+		return 4;
+	}
+}
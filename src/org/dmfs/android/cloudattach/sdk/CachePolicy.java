@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+/**
+ * Determines how cached previews that are past their freshness window are handled.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public enum CachePolicy
+{
+	/**
+	 * Revalidate a stale preview with the resolver and deliver it once it's known to be up to date. This is the default.
+	 */
+	REVALIDATE,
+
+	/**
+	 * Deliver a stale preview immediately and revalidate it in the background. The callback is called a second time only if the preview has changed. Errors
+	 * during revalidation are not reported, the stale preview is kept instead.
+	 */
+	STALE_WHILE_REVALIDATE;
+}
@@ -0,0 +1,1402 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Process;
+
+
+/**
+ * The shared state of the SDK: caches, executors, resolver statistics and configuration. All preview and attachment operations use a {@link CloudAttachClient}.
+ * The static methods of {@link PreviewUtils} and {@link AttachmentUtils} use the default instance returned by {@link #getDefault(Context)}.
+ * <p>
+ * Apps that want to configure the SDK should build their own instance in {@link android.app.Application#onCreate()} and make it the default:
+ * </p>
+ *
+ * <pre>
+ * <code>
+ * CloudAttachClient.setDefault(new CloudAttachClient.Builder(this).setMemoryCacheSize(8 * 1024 * 1024).setMetrics(metrics).build());
+ * </code>
+ * </pre>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class CloudAttachClient
+{
+	/**
+	 * The default size of the disk cache.
+	 */
+	private final static long DEFAULT_DISK_CACHE_SIZE = 20 * 1024 * 1024;
+
+	/**
+	 * The directory in the cache dir of the app that contains the persistent caches.
+	 */
+	private final static String CACHE_DIRECTORY = "cloudattach";
+	private final static String PREVIEW_DIRECTORY = "previews";
+	private final static String RESOLVED_URLS_INDEX = "resolved";
+
+	/**
+	 * The maximum time in milliseconds a background lookup waits for the persistent caches to be opened.
+	 */
+	private final static long PERSISTENT_CACHES_TIMEOUT = 5000;
+
+	private final static CloudAttachMetrics NO_METRICS = new CloudAttachMetrics()
+	{
+		@Override
+		public void onResolved(String packageName, long latency, boolean failed)
+		{
+		}
+
+
+		@Override
+		public void onPreviewLoaded(String authority, long latency, boolean failed)
+		{
+		}
+
+
+		@Override
+		public void onCacheLookup(boolean hit)
+		{
+		}
+	};
+
+	private static CloudAttachClient sDefault;
+
+	/**
+	 * The default {@link RetryPolicy}s of new clients, see {@link PreviewUtils#setRetryPolicies(RetryPolicy, RetryPolicy)}.
+	 */
+	private static RetryPolicy sDefaultResolveRetryPolicy = new RetryPolicy(3, 250, 2000, 5000);
+	private static RetryPolicy sDefaultLoadRetryPolicy = new RetryPolicy(3, 250, 2000, 5000);
+
+	/**
+	 * Builds {@link CloudAttachClient}s.
+	 */
+	public final static class Builder
+	{
+		private final Context mContext;
+		private int mMemoryCacheSize = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+		private int mCompressedCacheSize = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16);
+		private long mDiskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+		private int mBitmapPoolSize = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 32);
+		private int mMinConcurrentLoads = PreviewScheduler.MIN_CONCURRENT;
+		private int mMaxConcurrentLoads = PreviewScheduler.MAX_CONCURRENT;
+		private int mMaxLoadsPerProvider = PreviewScheduler.MAX_PER_KEY;
+		private ExecutorService mLoadExecutor;
+		private Executor mRevalidationExecutor;
+		private Executor mBackgroundExecutor = AsyncTask.THREAD_POOL_EXECUTOR;
+		private RetryPolicy mResolveRetryPolicy;
+		private RetryPolicy mLoadRetryPolicy;
+		private long mResolveTimeout = 10 * 1000;
+		private CloudAttachMetrics mMetrics = NO_METRICS;
+		private final List<PreviewDecoder> mDecoders = new ArrayList<PreviewDecoder>();
+
+
+		/**
+		 * Constructor for {@link Builder}.
+		 *
+		 * @param context
+		 *            A {@link Context}.
+		 */
+		public Builder(Context context)
+		{
+			if (context == null)
+			{
+				throw new IllegalArgumentException("Context must not be null.");
+			}
+			mContext = context.getApplicationContext();
+			synchronized (CloudAttachClient.class)
+			{
+				mResolveRetryPolicy = sDefaultResolveRetryPolicy;
+				mLoadRetryPolicy = sDefaultLoadRetryPolicy;
+			}
+		}
+
+
+		/**
+		 * Set the size of the preview memory cache. The default is an eighth of the available heap.
+		 *
+		 * @param bytes
+		 *            The maximum number of bytes of the memory cache.
+		 * @return This instance.
+		 */
+		public Builder setMemoryCacheSize(int bytes)
+		{
+			if (bytes < 0)
+			{
+				throw new IllegalArgumentException("Cache size must not be negative.");
+			}
+			mMemoryCacheSize = bytes;
+			return this;
+		}
+
+
+		/**
+		 * Set the size of the second tier of the memory cache, which keeps previews evicted from the memory cache in compressed form. The data is stored in a
+		 * direct buffer that's allocated at once, depending on the Android version it may count against the Java heap. The default is a 16th of the available
+		 * heap, <code>0</code> disables the second tier.
+		 *
+		 * @param bytes
+		 *            The maximum number of bytes of compressed previews.
+		 * @return This instance.
+		 */
+		public Builder setCompressedCacheSize(int bytes)
+		{
+			if (bytes < 0)
+			{
+				throw new IllegalArgumentException("Cache size must not be negative.");
+			}
+			mCompressedCacheSize = bytes;
+			return this;
+		}
+
+
+		/**
+		 * Set the size of the disk cache, which keeps previews across restarts of the app. The default is 20 MB, <code>0</code> disables the disk cache.
+		 *
+		 * @param bytes
+		 *            The maximum number of bytes of previews on disk.
+		 * @return This instance.
+		 */
+		public Builder setDiskCacheSize(long bytes)
+		{
+			if (bytes < 0)
+			{
+				throw new IllegalArgumentException("Cache size must not be negative.");
+			}
+			mDiskCacheSize = bytes;
+			return this;
+		}
+
+
+		/**
+		 * Set the size of the pool of bitmaps that are reused when decoding previews. The default is a 32nd of the available heap.
+		 *
+		 * @param bytes
+		 *            The maximum number of bytes of the bitmap pool.
+		 * @return This instance.
+		 */
+		public Builder setBitmapPoolSize(int bytes)
+		{
+			if (bytes < 0)
+			{
+				throw new IllegalArgumentException("Pool size must not be negative.");
+			}
+			mBitmapPoolSize = bytes;
+			return this;
+		}
+
+
+		/**
+		 * Set how many previews are loaded at the same time, in total and per preview provider. The total number is adapted to the observed latency and
+		 * throughput, between one and the given maximum.
+		 *
+		 * @param maxConcurrentLoads
+		 *            The maximum number of previews to load at the same time.
+		 * @param maxLoadsPerProvider
+		 *            The maximum number of previews to load from the same provider at the same time.
+		 * @return This instance.
+		 */
+		public Builder setLoadConcurrency(int maxConcurrentLoads, int maxLoadsPerProvider)
+		{
+			return setLoadConcurrency(PreviewScheduler.MIN_CONCURRENT, maxConcurrentLoads, maxLoadsPerProvider);
+		}
+
+
+		/**
+		 * Set how many previews are loaded at the same time, in total and per preview provider. The total number is adapted to the observed latency and
+		 * throughput within the given bounds. The defaults are {@value PreviewScheduler#MIN_CONCURRENT} to {@value PreviewScheduler#MAX_CONCURRENT} in total
+		 * and {@value PreviewScheduler#MAX_PER_KEY} per provider.
+		 *
+		 * @param minConcurrentLoads
+		 *            The minimum number of previews to load at the same time.
+		 * @param maxConcurrentLoads
+		 *            The maximum number of previews to load at the same time.
+		 * @param maxLoadsPerProvider
+		 *            The maximum number of previews to load from the same provider at the same time.
+		 * @return This instance.
+		 */
+		public Builder setLoadConcurrency(int minConcurrentLoads, int maxConcurrentLoads, int maxLoadsPerProvider)
+		{
+			if (minConcurrentLoads < 1 || maxLoadsPerProvider < 1)
+			{
+				throw new IllegalArgumentException("Concurrency must be at least 1.");
+			}
+			if (maxConcurrentLoads < minConcurrentLoads)
+			{
+				throw new IllegalArgumentException("Maximum concurrency must not be less than the minimum concurrency.");
+			}
+			mMinConcurrentLoads = minConcurrentLoads;
+			mMaxConcurrentLoads = maxConcurrentLoads;
+			mMaxLoadsPerProvider = maxLoadsPerProvider;
+			return this;
+		}
+
+
+		/**
+		 * Set the {@link ExecutorService} that runs preview loading tasks. Tasks are still scheduled fairly across providers, so the {@link ExecutorService}
+		 * should be able to run at least as many tasks at the same time as set by {@link #setLoadConcurrency(int, int)}. By default a cached thread pool with
+		 * background priority is used.
+		 *
+		 * @param executor
+		 *            The {@link ExecutorService}.
+		 * @return This instance.
+		 */
+		public Builder setLoadExecutor(ExecutorService executor)
+		{
+			if (executor == null)
+			{
+				throw new IllegalArgumentException("Executor must not be null.");
+			}
+			mLoadExecutor = executor;
+			return this;
+		}
+
+
+		/**
+		 * Set the {@link Executor} that revalidates stale previews in the background. By default a single thread with the lowest priority is used.
+		 *
+		 * @param executor
+		 *            The {@link Executor}.
+		 * @return This instance.
+		 */
+		public Builder setRevalidationExecutor(Executor executor)
+		{
+			if (executor == null)
+			{
+				throw new IllegalArgumentException("Executor must not be null.");
+			}
+			mRevalidationExecutor = executor;
+			return this;
+		}
+
+
+		/**
+		 * Set the {@link Executor} for other background work, like preparing attachments or looking up attachment apps. The default is
+		 * {@link AsyncTask#THREAD_POOL_EXECUTOR}.
+		 *
+		 * @param executor
+		 *            The {@link Executor}.
+		 * @return This instance.
+		 */
+		public Builder setBackgroundExecutor(Executor executor)
+		{
+			if (executor == null)
+			{
+				throw new IllegalArgumentException("Executor must not be null.");
+			}
+			mBackgroundExecutor = executor;
+			return this;
+		}
+
+
+		/**
+		 * Set the {@link RetryPolicy}s for the two stages of loading a preview. By default each stage is tried up to three times within five seconds.
+		 *
+		 * @param resolveRetryPolicy
+		 *            The {@link RetryPolicy} for errors returned by a resolver.
+		 * @param loadRetryPolicy
+		 *            The {@link RetryPolicy} for errors when reading the preview from the provider.
+		 * @return This instance.
+		 */
+		public Builder setRetryPolicies(RetryPolicy resolveRetryPolicy, RetryPolicy loadRetryPolicy)
+		{
+			if (resolveRetryPolicy == null || loadRetryPolicy == null)
+			{
+				throw new IllegalArgumentException("RetryPolicy must not be null.");
+			}
+			mResolveRetryPolicy = resolveRetryPolicy;
+			mLoadRetryPolicy = loadRetryPolicy;
+			return this;
+		}
+
+
+		/**
+		 * Set the time after which a resolver that didn't respond is skipped. The default is ten seconds.
+		 *
+		 * @param millis
+		 *            The timeout in milliseconds.
+		 * @return This instance.
+		 */
+		public Builder setResolveTimeout(long millis)
+		{
+			if (millis <= 0)
+			{
+				throw new IllegalArgumentException("Timeout must be positive.");
+			}
+			mResolveTimeout = millis;
+			return this;
+		}
+
+
+		/**
+		 * Set the sink for metrics. By default metrics are discarded.
+		 *
+		 * @param metrics
+		 *            The {@link CloudAttachMetrics}.
+		 * @return This instance.
+		 */
+		public Builder setMetrics(CloudAttachMetrics metrics)
+		{
+			if (metrics == null)
+			{
+				throw new IllegalArgumentException("Metrics must not be null.");
+			}
+			mMetrics = metrics;
+			return this;
+		}
+
+
+		/**
+		 * Add a {@link PreviewDecoder} for previews of other types than images, videos and PDF documents (on Lollipop and newer), which are supported by
+		 * default. Decoders added here take precedence over the default decoders and over decoders added before.
+		 *
+		 * @param decoder
+		 *            The {@link PreviewDecoder}.
+		 * @return This instance.
+		 */
+		public Builder addDecoder(PreviewDecoder decoder)
+		{
+			if (decoder == null)
+			{
+				throw new IllegalArgumentException("Decoder must not be null.");
+			}
+			mDecoders.add(0, decoder);
+			return this;
+		}
+
+
+		/**
+		 * Build the {@link CloudAttachClient}.
+		 *
+		 * @return A new {@link CloudAttachClient}.
+		 */
+		public CloudAttachClient build()
+		{
+			return new CloudAttachClient(this);
+		}
+	}
+
+	private final Context mContext;
+	private final PreviewCache mPreviewCache;
+	private final CompressedPreviewCache mCompressedCache;
+	private final DiskPreviewCache mDiskCache;
+	private final BitmapPool mBitmapPool;
+	private final ResolvedUrlCache mResolvedUrls = new ResolvedUrlCache();
+	private final ResolverCircuitBreaker mCircuitBreaker = new ResolverCircuitBreaker();
+	private final PreviewScheduler mScheduler;
+	private final Executor mRevalidationExecutor;
+	private final boolean mOwnsRevalidationExecutor;
+	private final Executor mBackgroundExecutor;
+	private final AttachmentAppCache mAttachmentApps;
+	private final long mResolveTimeout;
+	private final CloudAttachMetrics mMetrics;
+	private final List<PreviewDecoder> mDecoders;
+	private volatile RetryPolicy mResolveRetryPolicy;
+
+	/**
+	 * Released once the persistent caches have been opened or failed to open. Until then, lookups take the background path and wait for them.
+	 */
+	private final CountDownLatch mPersistentCachesOpened = new CountDownLatch(1);
+
+	/**
+	 * The requests that came in while loading was paused, by callback and id. A new request with the same callback and id replaces the previous one.
+	 */
+	private final Map<PreviewLoaderCallback, Map<Long, Runnable>> mParkedRequests = new WeakHashMap<PreviewLoaderCallback, Map<Long, Runnable>>();
+	private boolean mPaused;
+	private volatile RetryPolicy mLoadRetryPolicy;
+
+
+	private CloudAttachClient(Builder builder)
+	{
+		mContext = builder.mContext;
+		mPreviewCache = new PreviewCache(builder.mMemoryCacheSize);
+		mBitmapPool = new BitmapPool(builder.mBitmapPoolSize);
+		mCompressedCache = new CompressedPreviewCache(builder.mCompressedCacheSize);
+		mDiskCache = new DiskPreviewCache(builder.mDiskCacheSize);
+		mContext.registerComponentCallbacks(mPreviewCache);
+		mContext.registerComponentCallbacks(mCompressedCache);
+		mContext.registerComponentCallbacks(mBitmapPool);
+		mScheduler = builder.mLoadExecutor == null ? new PreviewScheduler(builder.mMinConcurrentLoads, builder.mMaxConcurrentLoads,
+			builder.mMaxLoadsPerProvider) : new PreviewScheduler(builder.mMinConcurrentLoads, builder.mMaxConcurrentLoads, builder.mMaxLoadsPerProvider,
+			builder.mLoadExecutor);
+		mOwnsRevalidationExecutor = builder.mRevalidationExecutor == null;
+		mRevalidationExecutor = mOwnsRevalidationExecutor ? createRevalidationExecutor() : builder.mRevalidationExecutor;
+		mBackgroundExecutor = builder.mBackgroundExecutor;
+		if (builder.mCompressedCacheSize >= CompressedPreviewCache.CHUNK_SIZE)
+		{
+			mPreviewCache.setEvictionListener(new PreviewCache.EvictionListener()
+			{
+				@Override
+				public void onEvicted(final String key, final PreviewCache.Entry entry)
+				{
+					compress(key, entry);
+				}
+			});
+		}
+		mAttachmentApps = new AttachmentAppCache(mContext);
+		mResolveTimeout = builder.mResolveTimeout;
+		mMetrics = builder.mMetrics;
+		mDecoders = new ArrayList<PreviewDecoder>(builder.mDecoders);
+		mDecoders.add(new ImagePreviewDecoder(mBitmapPool));
+		mDecoders.add(new VideoPreviewDecoder());
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+		{
+			mDecoders.add(new PdfPreviewDecoder());
+		}
+		mResolveRetryPolicy = builder.mResolveRetryPolicy;
+		mLoadRetryPolicy = builder.mLoadRetryPolicy;
+
+		try
+		{
+			mBackgroundExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						openPersistentCaches();
+					}
+					finally
+					{
+						mPersistentCachesOpened.countDown();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// no persistent caches
+			mPersistentCachesOpened.countDown();
+		}
+	}
+
+
+	/**
+	 * Returns the default {@link CloudAttachClient}. It's created with the default configuration unless {@link #setDefault(CloudAttachClient)} has been called
+	 * before.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @return The default {@link CloudAttachClient}.
+	 */
+	public static synchronized CloudAttachClient getDefault(Context context)
+	{
+		if (sDefault == null)
+		{
+			sDefault = new Builder(context).build();
+		}
+		return sDefault;
+	}
+
+
+	/**
+	 * Set the default {@link CloudAttachClient} that's used by the static methods of {@link PreviewUtils} and {@link AttachmentUtils}. Call this before any
+	 * other method of the SDK, usually in {@link android.app.Application#onCreate()}. A previous default client is shut down, see {@link #shutdown()}.
+	 *
+	 * @param client
+	 *            The new default {@link CloudAttachClient}.
+	 */
+	public static synchronized void setDefault(CloudAttachClient client)
+	{
+		if (client == null)
+		{
+			throw new IllegalArgumentException("Client must not be null.");
+		}
+		if (sDefault != null && sDefault != client)
+		{
+			sDefault.shutdown();
+		}
+		sDefault = client;
+	}
+
+
+	/**
+	 * Set the {@link RetryPolicy}s of the default client and of clients built afterwards.
+	 */
+	static synchronized void setDefaultRetryPolicies(RetryPolicy resolveRetryPolicy, RetryPolicy loadRetryPolicy)
+	{
+		sDefaultResolveRetryPolicy = resolveRetryPolicy;
+		sDefaultLoadRetryPolicy = loadRetryPolicy;
+		if (sDefault != null)
+		{
+			sDefault.mResolveRetryPolicy = resolveRetryPolicy;
+			sDefault.mLoadRetryPolicy = loadRetryPolicy;
+		}
+	}
+
+
+	/**
+	 * Loads a preview for the given attachment URL. The result will be delivered to the given callback, along with the id provided to this method. See
+	 * {@link PreviewUtils#getPreview(Context, long, Uri, PreviewOptions, CachePolicy, PreviewLoaderCallback)} for details.
+	 *
+	 * @param id
+	 *            An id to be used as a reference when the result is delivered.
+	 * @param url
+	 *            URL of the attachment.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> to load the preview in full size.
+	 * @param cachePolicy
+	 *            The {@link CachePolicy} for stale cached previews.
+	 * @param callback
+	 *            A callback to handle result and errors.
+	 * @throws IllegalArgumentException
+	 *             if one of the given parameters is invalid or <code>null</code>.
+	 */
+	public void getPreview(long id, final Uri url, final PreviewOptions options, CachePolicy cachePolicy, final PreviewLoaderCallback callback)
+	{
+		if (url == null)
+		{
+			throw new IllegalArgumentException("Url must not be null");
+		}
+		if (cachePolicy == null)
+		{
+			throw new IllegalArgumentException("CachePolicy must not be null");
+		}
+		if (callback == null)
+		{
+			throw new IllegalArgumentException("Callback must not be null");
+		}
+		getPreview(id, url, options, cachePolicy, callback, true);
+	}
+
+
+	/**
+	 * Load a preview, optionally without looking at the compressed previews.
+	 */
+	private void getPreview(long id, final Uri url, final PreviewOptions options, CachePolicy cachePolicy, final PreviewLoaderCallback callback,
+		boolean useCompressed)
+	{
+		if (LocalThumbnails.isLocal(url))
+		{
+			getLocalPreview(id, url, options, cachePolicy, callback, useCompressed);
+			return;
+		}
+
+		final String urlKey = mResolvedUrls.key(url);
+		final PreviewCache.Entry cached = getCached(id, urlKey, options, callback);
+		if (cached != null && cached.isFresh())
+		{
+			// no need to resolve and load the preview again
+			callback.onPreviewLoaded(id, cached.bitmap);
+			return;
+		}
+
+		if (cached != null && cachePolicy == CachePolicy.STALE_WHILE_REVALIDATE)
+		{
+			callback.onPreviewLoaded(id, cached.bitmap);
+			if (!mPaused)
+			{
+				// when paused the preview is revalidated the next time it's requested
+				revalidate(id, url, urlKey, options, cached, callback);
+			}
+			return;
+		}
+
+		if (mPaused)
+		{
+			park(id, url, options, cachePolicy, callback);
+			return;
+		}
+
+		if (cached == null && useCompressed && getCompressed(id, url, urlKey, options, cachePolicy, callback))
+		{
+			// the compressed preview is decoded in the background
+			return;
+		}
+
+		ResolvedUrlCache.Entry resolved = mResolvedUrls.get(urlKey);
+		if (cached == null && resolved != null && resolved.isFresh())
+		{
+			// the URL (or one of its aliases) has been resolved recently, no need to ask the resolver again
+			loadPreview(id, resolved.contentUri, options, urlKey, resolved.version, callback);
+			return;
+		}
+
+		// if we have a stale preview, ask the resolver whether it's still valid
+		resolveUrl(id, url, cached == null ? null : cached.version, new VersionedResolveUrlCallback()
+		{
+
+			@Override
+			public void onResult(long id, Uri uri)
+			{
+				onResult(id, uri, null);
+			}
+
+
+			@Override
+			public void onResult(long id, Uri uri, String version)
+			{
+				// the resolver may have told us the canonical URL, so the key may have changed
+				String resultUrlKey = mResolvedUrls.key(url);
+				mResolvedUrls.put(resultUrlKey, uri, version);
+
+				if (!resultUrlKey.equals(urlKey))
+				{
+					// this URL is an alias, check if we already have a preview of the canonical URL
+					PreviewCache.Entry canonical = mPreviewCache.get(PreviewCache.key(resultUrlKey, options));
+					if (canonical != null && (canonical.isFresh() || (version != null && version.equals(canonical.version))))
+					{
+						canonical.validate();
+						callback.onPreviewLoaded(id, canonical.bitmap);
+						return;
+					}
+				}
+
+				// we got a content Uri, continue loading the preview
+				loadPreview(id, uri, options, resultUrlKey, version, callback);
+			}
+
+
+			@Override
+			public void onNotModified(long id)
+			{
+				cached.validate();
+				callback.onPreviewLoaded(id, cached.bitmap);
+			}
+
+
+			@Override
+			public void onError(long id, Exception e)
+			{
+				callback.onError(id, e);
+			}
+
+
+			@Override
+			public void onNoPreviewAppFound(long id)
+			{
+				callback.onNoPreviewAppFound(id);
+			}
+		});
+	}
+
+
+	/**
+	 * Load the preview of local content. There is nothing to resolve, the content is loaded directly.
+	 */
+	private void getLocalPreview(long id, Uri uri, PreviewOptions options, CachePolicy cachePolicy, PreviewLoaderCallback callback, boolean useCompressed)
+	{
+		String urlKey = uri.toString();
+		PreviewCache.Entry cached = getCached(id, urlKey, options, callback);
+		if (cached != null && (cached.isFresh() || mPaused && cachePolicy == CachePolicy.STALE_WHILE_REVALIDATE))
+		{
+			callback.onPreviewLoaded(id, cached.bitmap);
+			return;
+		}
+		if (mPaused)
+		{
+			park(id, uri, options, cachePolicy, callback);
+			return;
+		}
+		if (cached == null && useCompressed && getCompressed(id, uri, urlKey, options, cachePolicy, callback))
+		{
+			return;
+		}
+		loadPreview(id, uri, options, urlKey, null, callback);
+	}
+
+
+	/**
+	 * Decode the compressed preview of the given URL in the background, if there is one in the compressed tier or on disk. Once it's back in the memory cache,
+	 * the request is started again. While the persistent caches are being opened, there might be such a preview, so the background task waits for them.
+	 *
+	 * @return <code>false</code> if there is no such compressed preview.
+	 */
+	private boolean getCompressed(final long id, final Uri url, String urlKey, final PreviewOptions options, final CachePolicy cachePolicy,
+		PreviewLoaderCallback callback)
+	{
+		final String key = PreviewCache.key(urlKey, options);
+		final boolean opening = mPersistentCachesOpened.getCount() > 0;
+		final boolean inMemory = !opening && mCompressedCache.probe(key);
+		if (!opening && !inMemory && !mDiskCache.probe(key))
+		{
+			return false;
+		}
+
+		final WeakReference<PreviewLoaderCallback> callbackRef = new WeakReference<PreviewLoaderCallback>(callback);
+		AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>()
+		{
+			@Override
+			protected Void doInBackground(Void... params)
+			{
+				String compressedKey = key;
+				if (opening)
+				{
+					awaitPersistentCaches();
+					if (!LocalThumbnails.isLocal(url))
+					{
+						// the persisted aliases are available now, the key may have changed
+						compressedKey = PreviewCache.key(mResolvedUrls.key(url), options);
+					}
+				}
+
+				boolean fromMemory = inMemory;
+				CompressedPreviewCache.Compressed compressed = inMemory ? mCompressedCache.get(compressedKey) : mDiskCache.get(compressedKey);
+				if (compressed == null && opening)
+				{
+					fromMemory = true;
+					compressed = mCompressedCache.get(compressedKey);
+				}
+				if (compressed == null)
+				{
+					// evicted in the meantime
+					return null;
+				}
+
+				Bitmap bitmap;
+				try
+				{
+					bitmap = BitmapFactory.decodeByteArray(compressed.data, 0, compressed.data.length);
+				}
+				catch (OutOfMemoryError e)
+				{
+					bitmap = null;
+				}
+
+				if (bitmap == null || !mPreviewCache.restore(compressed.urlKey, compressed.options, bitmap, compressed.version, compressed.validated))
+				{
+					if (fromMemory)
+					{
+						mCompressedCache.remove(compressedKey);
+					}
+					else
+					{
+						mDiskCache.remove(compressedKey);
+					}
+				}
+				return null;
+			}
+
+
+			@Override
+			protected void onPostExecute(Void result)
+			{
+				PreviewLoaderCallback callback = callbackRef.get();
+				if (callback != null)
+				{
+					// the preview is in the memory cache now, unless something went wrong
+					getPreview(id, url, options, cachePolicy, callback, false);
+				}
+			}
+		};
+
+		try
+		{
+			task.executeOnExecutor(mBackgroundExecutor);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// too busy or shut down, load the preview the normal way
+			return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Open the disk cache and the persistent index of resolved URLs. All clients of the process share the same files, the indexes are shared as well. Must not
+	 * be called on the main thread.
+	 */
+	private void openPersistentCaches()
+	{
+		File cacheDir = mContext.getCacheDir();
+		if (cacheDir == null)
+		{
+			return;
+		}
+		File directory = new File(cacheDir, CACHE_DIRECTORY);
+		if (directory.isDirectory() || directory.mkdirs())
+		{
+			mResolvedUrls.open(new File(directory, RESOLVED_URLS_INDEX), mBackgroundExecutor);
+			mDiskCache.open(new File(directory, PREVIEW_DIRECTORY));
+		}
+	}
+
+
+	/**
+	 * Wait until the persistent caches have been opened. Must not be called on the main thread.
+	 */
+	private void awaitPersistentCaches()
+	{
+		try
+		{
+			mPersistentCachesOpened.await(PERSISTENT_CACHES_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Compress a freshly loaded preview and write it to the disk cache in the background.
+	 *
+	 * @param urlKey
+	 *            The key of the URL of the preview.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code>.
+	 * @param bitmap
+	 *            The preview {@link Bitmap}, as put into the memory cache.
+	 * @param version
+	 *            The version of the preview or <code>null</code>.
+	 */
+	void persist(final String urlKey, PreviewOptions options, final Bitmap bitmap, final String version)
+	{
+		if (!mDiskCache.isEnabled())
+		{
+			return;
+		}
+
+		// keep a copy, the options of the caller may change
+		final PreviewOptions optionsCopy = options == null ? null : new PreviewOptions(options.getWidth(), options.getHeight()).setCropMode(options
+			.getCropMode());
+		final long validated = System.currentTimeMillis();
+		try
+		{
+			mBackgroundExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					byte[] data = CompressedPreviewCache.compress(bitmap);
+					if (data != null)
+					{
+						awaitPersistentCaches();
+						mDiskCache.put(PreviewCache.key(urlKey, optionsCopy), new CompressedPreviewCache.Compressed(urlKey, optionsCopy, version, validated,
+							data));
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// too busy, the preview is just not persisted
+		}
+	}
+
+
+	/**
+	 * Compress a preview that has been evicted from the memory cache in the background.
+	 */
+	private void compress(final String key, final PreviewCache.Entry entry)
+	{
+		if (mCompressedCache.contains(key, entry.version))
+		{
+			return;
+		}
+
+		try
+		{
+			mBackgroundExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					mCompressedCache.put(key, entry);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// too busy, just drop the preview
+		}
+	}
+
+
+	/**
+	 * Returns the cached preview of the given URL in the size of the given {@link PreviewOptions}. If that size is not cached, it's scaled down from a larger
+	 * variant. If there is no larger variant, the best smaller variant is delivered to the callback as an interim result.
+	 */
+	private PreviewCache.Entry getCached(long id, String urlKey, PreviewOptions options, PreviewLoaderCallback callback)
+	{
+		PreviewCache.Entry cached = mPreviewCache.get(PreviewCache.key(urlKey, options));
+		if (cached == null && options != null)
+		{
+			cached = mPreviewCache.getScaledVariant(urlKey, options);
+			if (cached == null)
+			{
+				PreviewCache.Entry smaller = mPreviewCache.getSmallerVariant(urlKey, options);
+				if (smaller != null && callback instanceof InterimPreviewLoaderCallback)
+				{
+					// show the smaller variant until the requested size has been loaded
+					((InterimPreviewLoaderCallback) callback).onInterimPreviewLoaded(id, smaller.bitmap);
+				}
+			}
+		}
+		mMetrics.onCacheLookup(cached != null);
+		return cached;
+	}
+
+
+	/**
+	 * Keep the given request until loading is resumed. Any earlier request of the same callback is dropped.
+	 */
+	private void park(final long id, final Uri url, final PreviewOptions options, final CachePolicy cachePolicy, PreviewLoaderCallback callback)
+	{
+		// don't let the request keep the callback alive
+		final WeakReference<PreviewLoaderCallback> callbackRef = new WeakReference<PreviewLoaderCallback>(callback);
+		Map<Long, Runnable> requests = mParkedRequests.get(callback);
+		if (requests == null)
+		{
+			requests = new LinkedHashMap<Long, Runnable>();
+			mParkedRequests.put(callback, requests);
+		}
+		// remove first, so a replaced request moves to the end
+		requests.remove(id);
+		requests.put(id, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				PreviewLoaderCallback callback = callbackRef.get();
+				if (callback != null)
+				{
+					getPreview(id, url, options, cachePolicy, callback);
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Pause loading previews, for instance while a list is flung. Previews in the memory cache are still delivered right away. Other requests are held back
+	 * until {@link #resume()} is called, only the last request of each callback and id is kept. Loads that have been queued already don't start until then either.
+	 * <p>
+	 * Must be called on the main thread.
+	 * </p>
+	 *
+	 * @see PreviewScrollListener
+	 */
+	public void pause()
+	{
+		mPaused = true;
+		mScheduler.setPaused(true);
+	}
+
+
+	/**
+	 * Resume loading previews after {@link #pause()}. The held back requests are started now. Must be called on the main thread.
+	 */
+	public void resume()
+	{
+		if (!mPaused)
+		{
+			return;
+		}
+		mPaused = false;
+		mScheduler.setPaused(false);
+
+		List<Runnable> requests = new ArrayList<Runnable>();
+		for (Map<Long, Runnable> callbackRequests : mParkedRequests.values())
+		{
+			requests.addAll(callbackRequests.values());
+		}
+		mParkedRequests.clear();
+		for (Runnable request : requests)
+		{
+			request.run();
+		}
+	}
+
+
+	/**
+	 * Release the resources of this client. Requests in progress are completed, held back requests are started, but the caches stop listening for memory
+	 * pressure and the threads created by this client end once they are idle. The client must not be used anymore afterwards. Executors passed to the
+	 * {@link Builder} are not shut down. Must be called on the main thread.
+	 */
+	public void shutdown()
+	{
+		resume();
+		mContext.unregisterComponentCallbacks(mPreviewCache);
+		mContext.unregisterComponentCallbacks(mCompressedCache);
+		mContext.unregisterComponentCallbacks(mBitmapPool);
+		mScheduler.shutdown();
+		if (mOwnsRevalidationExecutor)
+		{
+			((ExecutorService) mRevalidationExecutor).shutdown();
+		}
+	}
+
+
+	/**
+	 * Drop a request that's held back while loading is paused, for instance because its view has been recycled. The callback is not called for a dropped
+	 * request. Must be called on the main thread.
+	 * <p>
+	 * Use {@link PreviewRequestFragment#cancelPending(long)} for requests of a {@link PreviewRequestFragment}, so it doesn't consider them in flight anymore.
+	 * </p>
+	 *
+	 * @param callback
+	 *            The {@link PreviewLoaderCallback} of the request.
+	 * @param id
+	 *            The id of the request.
+	 * @return <code>true</code> if a request has been dropped, <code>false</code> if there was no such request held back.
+	 */
+	public boolean cancelPending(PreviewLoaderCallback callback, long id)
+	{
+		Map<Long, Runnable> requests = mParkedRequests.get(callback);
+		if (requests == null)
+		{
+			return false;
+		}
+		boolean dropped = requests.remove(id) != null;
+		if (requests.isEmpty())
+		{
+			mParkedRequests.remove(callback);
+		}
+		return dropped;
+	}
+
+
+	/**
+	 * Returns whether loading is paused.
+	 *
+	 * @return <code>true</code> if {@link #pause()} has been called without calling {@link #resume()}.
+	 */
+	public boolean isPaused()
+	{
+		return mPaused;
+	}
+
+
+	/**
+	 * Revalidate a stale preview in the background. The callback is only called if the preview has changed.
+	 */
+	private void revalidate(long id, Uri url, final String urlKey, final PreviewOptions options, final PreviewCache.Entry stale,
+		final PreviewLoaderCallback callback)
+	{
+		resolveUrl(id, url, stale.version, new VersionedResolveUrlCallback()
+		{
+
+			@Override
+			public void onResult(long id, Uri uri)
+			{
+				onResult(id, uri, null);
+			}
+
+
+			@Override
+			public void onResult(long id, Uri uri, String version)
+			{
+				mResolvedUrls.put(urlKey, uri, version);
+				if (version != null && version.equals(stale.version))
+				{
+					// the resolver doesn't support RESULT_NOT_MODIFIED but the version didn't change
+					stale.validate();
+					return;
+				}
+
+				try
+				{
+					new PreviewLoaderTask(mContext, options, callback).setClient(CloudAttachClient.this).setUrlKey(urlKey, version).setStaleEntry(stale)
+						.setRetryPolicy(mLoadRetryPolicy).execute(mRevalidationExecutor, id, uri);
+				}
+				catch (Exception e)
+				{
+					// keep the stale preview
+				}
+			}
+
+
+			@Override
+			public void onNotModified(long id)
+			{
+				stale.validate();
+			}
+
+
+			@Override
+			public void onError(long id, Exception e)
+			{
+				// keep the stale preview
+			}
+
+
+			@Override
+			public void onNoPreviewAppFound(long id)
+			{
+				// keep the stale preview
+			}
+		});
+	}
+
+
+	/**
+	 * Resolve the given attachment URL to a content {@link Uri} that points to a preview of the attachment, unless the preview has not changed since the given
+	 * version. See {@link PreviewUtils#resolveUrl(Context, long, Uri, String, ResolveUrlCallback)} for details.
+	 *
+	 * @param id
+	 *            An id to be used as a reference when the result is delivered.
+	 * @param url
+	 *            URL of the attachment.
+	 * @param cachedVersion
+	 *            The version of a cached preview of the attachment or <code>null</code>.
+	 * @param callback
+	 *            Interface to handle result and errors.
+	 * @throws IllegalArgumentException
+	 *             if one of the given parameters is invalid or <code>null</code>.
+	 */
+	public void resolveUrl(final long id, final Uri url, String cachedVersion, final ResolveUrlCallback callback)
+	{
+		if (url == null)
+		{
+			throw new IllegalArgumentException("Url must not be null.");
+		}
+		if (callback == null)
+		{
+			throw new IllegalArgumentException("Callback must not be null.");
+		}
+		if (cachedVersion != null && !(callback instanceof VersionedResolveUrlCallback))
+		{
+			throw new IllegalArgumentException("Callback must be a VersionedResolveUrlCallback to revalidate a cached version.");
+		}
+
+		try
+		{
+			if (!"https".equalsIgnoreCase(url.getScheme()) && !"http".equalsIgnoreCase(url.getScheme()))
+			{
+				throw new IllegalArgumentException("Unsupported URL schema. Only http and https URLs are supported.");
+			}
+
+			new ResolveRequest(this, id, url, cachedVersion, callback).start();
+		}
+		catch (Exception e)
+		{
+			callback.onError(id, e);
+		}
+	}
+
+
+	/**
+	 * Load the preview from the given content {@link Uri}. The preview is loaded asynchronously and the result is delivered to the given
+	 * {@link PreviewLoaderCallback}.
+	 *
+	 * @param id
+	 *            An id to be used as a reference when the result is delivered.
+	 * @param uri
+	 *            The content {@link Uri} of the preview provider.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> to load the preview in full size.
+	 * @param callback
+	 *            Interface to handle result and errors.
+	 * @return The background task.
+	 * @throws IllegalArgumentException
+	 *             if one of the given parameters is invalid or <code>null</code>.
+	 */
+	public PreviewLoaderTask loadPreview(long id, Uri uri, PreviewOptions options, PreviewLoaderCallback callback)
+	{
+		return loadPreview(id, uri, options, null, null, callback);
+	}
+
+
+	/**
+	 * Load the preview from the given content {@link Uri} and store the result in the {@link PreviewCache} under the given URL key and version.
+	 */
+	PreviewLoaderTask loadPreview(long id, Uri uri, PreviewOptions options, String urlKey, String version, PreviewLoaderCallback callback)
+	{
+		if (uri == null)
+		{
+			throw new IllegalArgumentException("Uri must not be null.");
+		}
+		if (callback == null)
+		{
+			throw new IllegalArgumentException("Callback must not be null.");
+		}
+
+		try
+		{
+			PreviewLoaderTask task = new PreviewLoaderTask(mContext, options, callback);
+			task.setClient(this);
+			task.setUrlKey(urlKey, version);
+			task.setRetryPolicy(mLoadRetryPolicy);
+			// schedule per provider, so a slow provider doesn't block all the others
+			task.execute(mScheduler.forKey(uri.getAuthority() == null ? uri.getScheme() : uri.getAuthority()), id, uri);
+			return task;
+		}
+		catch (Exception e)
+		{
+			callback.onError(id, e);
+		}
+		return null;
+	}
+
+
+	/**
+	 * Returns a snapshot of the current state of the preview memory cache, the bitmap pool and the preview loader.
+	 *
+	 * @return A {@link PreviewCacheStats} instance.
+	 */
+	public PreviewCacheStats getCacheStats()
+	{
+		return new PreviewCacheStats(mPreviewCache, mCompressedCache, mDiskCache, mBitmapPool, mScheduler);
+	}
+
+
+	/**
+	 * Looks up the installed attachment applications in the background, so starting an attachment app doesn't have to query the
+	 * {@link android.content.pm.PackageManager} on the UI thread.
+	 */
+	public void warmUp()
+	{
+		try
+		{
+			mBackgroundExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					mAttachmentApps.warmUp();
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// too busy, the apps are looked up when they are needed
+		}
+	}
+
+
+	/**
+	 * Returns whether any attachment app handles the given attachment {@link Intent}.
+	 *
+	 * @param intent
+	 *            An attachment {@link Intent}.
+	 * @return <code>true</code> if at least one attachment app has been found.
+	 */
+	public boolean hasAttachmentApps(Intent intent)
+	{
+		return !mAttachmentApps.getApps(intent).isEmpty();
+	}
+
+
+	Context context()
+	{
+		return mContext;
+	}
+
+
+	PreviewCache previewCache()
+	{
+		return mPreviewCache;
+	}
+
+
+	BitmapPool bitmapPool()
+	{
+		return mBitmapPool;
+	}
+
+
+	ResolvedUrlCache resolvedUrls()
+	{
+		return mResolvedUrls;
+	}
+
+
+	ResolverCircuitBreaker circuitBreaker()
+	{
+		return mCircuitBreaker;
+	}
+
+
+	Executor backgroundExecutor()
+	{
+		return mBackgroundExecutor;
+	}
+
+
+	RetryPolicy resolveRetryPolicy()
+	{
+		return mResolveRetryPolicy;
+	}
+
+
+	long resolveTimeout()
+	{
+		return mResolveTimeout;
+	}
+
+
+	CloudAttachMetrics metrics()
+	{
+		return mMetrics;
+	}
+
+
+	/**
+	 * Returns the {@link PreviewDecoder} for content of the given MIME type or <code>null</code> if the type is not supported.
+	 */
+	PreviewDecoder decoderFor(String mimeType)
+	{
+		for (PreviewDecoder decoder : mDecoders)
+		{
+			if (decoder.canDecode(mimeType))
+			{
+				return decoder;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Returns an {@link Executor} for background revalidation of stale previews. It runs a single thread at the lowest priority, so revalidation doesn't
+	 * compete with loading previews that are actually missing.
+	 */
+	private static ExecutorService createRevalidationExecutor()
+	{
+		return Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+						runnable.run();
+					}
+				}, "CloudAttach preview revalidation");
+			}
+		});
+	}
+}
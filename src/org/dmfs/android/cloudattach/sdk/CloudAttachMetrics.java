@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+/**
+ * Interface of a sink for metrics of a {@link CloudAttachClient}. Methods may be called on any thread and should return quickly.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public interface CloudAttachMetrics
+{
+	/**
+	 * Called when a resolver responded to a resolve request or timed out.
+	 *
+	 * @param packageName
+	 *            The package name of the resolver.
+	 * @param latency
+	 *            The response time in milliseconds.
+	 * @param failed
+	 *            Whether the resolver returned an error or timed out.
+	 */
+	abstract void onResolved(String packageName, long latency, boolean failed);
+
+
+	/**
+	 * Called when a preview has been loaded from a preview provider or failed to load.
+	 *
+	 * @param authority
+	 *            The authority of the preview provider.
+	 * @param latency
+	 *            The time in milliseconds it took to read and decode the preview, including retries.
+	 * @param failed
+	 *            Whether loading the preview failed.
+	 */
+	abstract void onPreviewLoaded(String authority, long latency, boolean failed);
+
+
+	/**
+	 * Called when a preview has been looked up in the memory cache.
+	 *
+	 * @param hit
+	 *            Whether the preview was found in the cache, fresh or stale.
+	 */
+	abstract void onCacheLookup(boolean hit);
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+
+
+/**
+ * The second tier of the preview memory cache. It keeps previews that have been evicted from the {@link PreviewCache} as compressed image data, which is
+ * 10 to 50 times smaller than the decoded {@link Bitmap}. Decoding a compressed preview is much cheaper than resolving and reading it from the provider again.
+ * <p>
+ * The data is stored in a single direct {@link ByteBuffer} that's split into chunks of {@link #CHUNK_SIZE} bytes, so previews don't need a buffer each and
+ * don't fragment the heap. Android doesn't guarantee that direct buffers are allocated outside of the Java heap, so the buffer may count against it. The
+ * buffer is allocated when the first preview is added and released when the system is running out of memory.
+ * </p>
+ * <p>
+ * Opaque previews are compressed as JPEG, so they lose a little quality. Previews with transparency are compressed as PNG.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class CompressedPreviewCache implements ComponentCallbacks2
+{
+	final static int CHUNK_SIZE = 8 * 1024;
+
+	private final static int JPEG_QUALITY = 85;
+
+	/**
+	 * A compressed preview, as returned by {@link CompressedPreviewCache#get(String)} and {@link DiskPreviewCache#get(String)}.
+	 */
+	final static class Compressed
+	{
+		public final String urlKey;
+		public final PreviewOptions options;
+		public final String version;
+		public final long validated;
+		public final byte[] data;
+
+
+		public Compressed(String urlKey, PreviewOptions options, String version, long validated, byte[] data)
+		{
+			this.urlKey = urlKey;
+			this.options = options;
+			this.version = version;
+			this.validated = validated;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * The location of a compressed preview in the buffer.
+	 */
+	private final static class Slot
+	{
+		final String urlKey;
+		final PreviewOptions options;
+		final String version;
+		final long validated;
+		final int[] chunks;
+		final int length;
+
+
+		Slot(String urlKey, PreviewOptions options, String version, long validated, int[] chunks, int length)
+		{
+			this.urlKey = urlKey;
+			this.options = options;
+			this.version = version;
+			this.validated = validated;
+			this.chunks = chunks;
+			this.length = length;
+		}
+	}
+
+	private final LinkedHashMap<String, Slot> mSlots = new LinkedHashMap<String, Slot>(32, 0.75f, true);
+	private final int mChunkCount;
+	private ByteBuffer mBuffer;
+	private final int[] mFreeChunks;
+	private int mFreeCount;
+	private int mSize;
+	private int mHitCount;
+	private int mMissCount;
+	private long mTrimmedBytes;
+
+
+	/**
+	 * Constructor for {@link CompressedPreviewCache}.
+	 *
+	 * @param maxSize
+	 *            The maximum number of bytes to cache, will be rounded down to a multiple of {@link #CHUNK_SIZE}.
+	 */
+	CompressedPreviewCache(int maxSize)
+	{
+		mChunkCount = maxSize / CHUNK_SIZE;
+		mFreeChunks = new int[mChunkCount];
+	}
+
+
+	/**
+	 * Returns whether this cache holds the given version of the preview with the given key. Doesn't count as a lookup.
+	 *
+	 * @param key
+	 *            The cache key, see {@link PreviewCache#key(String, PreviewOptions)}.
+	 * @param version
+	 *            The version of the preview, may be <code>null</code>.
+	 * @return <code>true</code> if the preview doesn't need to be compressed again.
+	 */
+	public synchronized boolean contains(String key, String version)
+	{
+		Slot slot = mSlots.get(key);
+		return slot != null && (version == null ? slot.version == null : version.equals(slot.version));
+	}
+
+
+	/**
+	 * Look up the preview with the given key and count the result in the hit rate.
+	 *
+	 * @param key
+	 *            The cache key, see {@link PreviewCache#key(String, PreviewOptions)}.
+	 * @return <code>true</code> if the preview is in this cache.
+	 */
+	public synchronized boolean probe(String key)
+	{
+		if (mSlots.containsKey(key))
+		{
+			mHitCount++;
+			return true;
+		}
+		mMissCount++;
+		return false;
+	}
+
+
+	/**
+	 * Returns a copy of the compressed preview with the given key.
+	 *
+	 * @param key
+	 *            The cache key, see {@link PreviewCache#key(String, PreviewOptions)}.
+	 * @return The {@link Compressed} preview or <code>null</code> if it's not in this cache (anymore).
+	 */
+	public synchronized Compressed get(String key)
+	{
+		Slot slot = mSlots.get(key);
+		if (slot == null)
+		{
+			return null;
+		}
+
+		byte[] data = new byte[slot.length];
+		int offset = 0;
+		for (int chunk : slot.chunks)
+		{
+			int length = Math.min(CHUNK_SIZE, slot.length - offset);
+			mBuffer.position(chunk * CHUNK_SIZE);
+			mBuffer.get(data, offset, length);
+			offset += length;
+		}
+		return new Compressed(slot.urlKey, slot.options, slot.version, slot.validated, data);
+	}
+
+
+	/**
+	 * Compress the given preview and add it to the cache. This takes a while, call it on a background thread.
+	 *
+	 * @param key
+	 *            The cache key, see {@link PreviewCache#key(String, PreviewOptions)}.
+	 * @param entry
+	 *            The evicted {@link PreviewCache.Entry}.
+	 */
+	public void put(String key, PreviewCache.Entry entry)
+	{
+		if (mChunkCount == 0 || contains(key, entry.version))
+		{
+			return;
+		}
+
+		byte[] data = compress(entry.bitmap);
+		if (data == null)
+		{
+			return;
+		}
+		int chunkCount = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if (chunkCount > mChunkCount / 4)
+		{
+			// this would evict too many other previews
+			return;
+		}
+
+		synchronized (this)
+		{
+			if (mBuffer == null)
+			{
+				allocate();
+			}
+
+			Slot previous = mSlots.remove(key);
+			if (previous != null)
+			{
+				free(previous);
+			}
+
+			// evict the least recently used previews until there is enough space
+			Iterator<Map.Entry<String, Slot>> iterator = mSlots.entrySet().iterator();
+			while (mFreeCount < chunkCount && iterator.hasNext())
+			{
+				Slot slot = iterator.next().getValue();
+				iterator.remove();
+				free(slot);
+			}
+
+			int[] chunks = new int[chunkCount];
+			int offset = 0;
+			for (int i = 0; i < chunkCount; ++i)
+			{
+				chunks[i] = mFreeChunks[--mFreeCount];
+				int length = Math.min(CHUNK_SIZE, data.length - offset);
+				mBuffer.position(chunks[i] * CHUNK_SIZE);
+				mBuffer.put(data, offset, length);
+				offset += length;
+			}
+			mSlots.put(key, new Slot(entry.urlKey(), entry.options(), entry.version, entry.validated(), chunks, data.length));
+			mSize += data.length;
+		}
+	}
+
+
+	/**
+	 * Compress the given preview {@link Bitmap}. Opaque previews are compressed as JPEG, previews with transparency as PNG.
+	 *
+	 * @param bitmap
+	 *            The {@link Bitmap} to compress.
+	 * @return The compressed image data or <code>null</code> if the {@link Bitmap} could not be compressed.
+	 */
+	static byte[] compress(Bitmap bitmap)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(CHUNK_SIZE, bitmap.getByteCount() / 16));
+		if (!bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out))
+		{
+			return null;
+		}
+		return out.toByteArray();
+	}
+
+
+	/**
+	 * Remove the preview with the given key, for instance because it could not be decoded.
+	 *
+	 * @param key
+	 *            The cache key.
+	 */
+	public synchronized void remove(String key)
+	{
+		Slot slot = mSlots.remove(key);
+		if (slot != null)
+		{
+			free(slot);
+		}
+	}
+
+
+	/**
+	 * Evict the least recently used previews until the cache size is at most the given number of bytes.
+	 *
+	 * @param size
+	 *            The maximum size of the cache after this call.
+	 * @return The number of bytes that have been evicted.
+	 */
+	public synchronized int trimToSize(int size)
+	{
+		int trimmed = 0;
+		Iterator<Map.Entry<String, Slot>> iterator = mSlots.entrySet().iterator();
+		while (mSize > size && iterator.hasNext())
+		{
+			Slot slot = iterator.next().getValue();
+			iterator.remove();
+			free(slot);
+			trimmed += slot.length;
+		}
+
+		if (mSlots.isEmpty())
+		{
+			// release the buffer, it's allocated again when needed
+			mBuffer = null;
+		}
+		return trimmed;
+	}
+
+
+	public synchronized int size()
+	{
+		return mSize;
+	}
+
+
+	public int maxSize()
+	{
+		return mChunkCount * CHUNK_SIZE;
+	}
+
+
+	public synchronized int hitCount()
+	{
+		return mHitCount;
+	}
+
+
+	public synchronized int missCount()
+	{
+		return mMissCount;
+	}
+
+
+	/**
+	 * Returns the total number of bytes that have been released in response to memory trim requests.
+	 *
+	 * @return The number of trimmed bytes.
+	 */
+	public synchronized long trimmedBytes()
+	{
+		return mTrimmedBytes;
+	}
+
+
+	@Override
+	public synchronized void onTrimMemory(int level)
+	{
+		mTrimmedBytes += trimToSize((int) (mSize * PreviewCache.retainFraction(level)));
+	}
+
+
+	@Override
+	public synchronized void onLowMemory()
+	{
+		mTrimmedBytes += trimToSize(0);
+	}
+
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig)
+	{
+		// nothing to do
+	}
+
+
+	private void allocate()
+	{
+		mBuffer = ByteBuffer.allocateDirect(mChunkCount * CHUNK_SIZE);
+		for (int i = 0; i < mChunkCount; ++i)
+		{
+			mFreeChunks[i] = i;
+		}
+		mFreeCount = mChunkCount;
+	}
+
+
+	private void free(Slot slot)
+	{
+		for (int chunk : slot.chunks)
+		{
+			mFreeChunks[mFreeCount++] = chunk;
+		}
+		mSize -= slot.length;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+/**
+ * An adaptive limit for the number of tasks that run at the same time. The limit is adjusted in an additive-increase/multiplicative-decrease (AIMD) fashion
+ * after each window of completed tasks:
+ * <ul>
+ * <li>If the average latency of the window rose well above the baseline latency, the limit is cut by a quarter. Running more tasks at the same time only
+ * made each one slower.</li>
+ * <li>If the limit was increased after the previous window but the throughput didn't improve, the increase is taken back.</li>
+ * <li>Otherwise, if tasks had to wait for the limit during the window, the limit is increased by one.</li>
+ * </ul>
+ * The baseline is the lowest window latency seen so far. It slowly follows higher latencies, so a permanently slower provider doesn't keep the limit at the
+ * minimum.
+ * <p>
+ * This class is not thread safe. The caller must synchronize access.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class ConcurrencyLimiter
+{
+	/**
+	 * The minimum number of completed tasks per window.
+	 */
+	private final static int MIN_WINDOW = 4;
+
+	/**
+	 * The factor by which the window latency must exceed the baseline to decrease the limit.
+	 */
+	private final static float LATENCY_TOLERANCE = 2f;
+
+	/**
+	 * The fraction of the difference between window latency and baseline by which the baseline moves up after each window.
+	 */
+	private final static float BASELINE_DRIFT = 1f / 16;
+
+	private final int mMinLimit;
+	private final int mMaxLimit;
+	private int mLimit;
+
+	private float mBaselineLatency = -1;
+	private float mPreviousThroughput = -1;
+	private boolean mIncreased;
+
+	private int mWindowCount;
+	private long mWindowLatency;
+	private long mWindowStart = -1;
+	private boolean mWindowSaturated;
+
+
+	/**
+	 * Constructor for {@link ConcurrencyLimiter}.
+	 *
+	 * @param minLimit
+	 *            The lower bound of the limit.
+	 * @param maxLimit
+	 *            The upper bound of the limit.
+	 * @param initialLimit
+	 *            The limit to start with, will be clamped to the bounds.
+	 */
+	public ConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit)
+	{
+		mMinLimit = minLimit;
+		mMaxLimit = maxLimit;
+		mLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+	}
+
+
+	/**
+	 * Returns the current limit.
+	 *
+	 * @return The number of tasks that may run at the same time.
+	 */
+	public int limit()
+	{
+		return mLimit;
+	}
+
+
+	/**
+	 * Report that a task had to wait because the limit was reached.
+	 */
+	public void onLimited()
+	{
+		mWindowSaturated = true;
+	}
+
+
+	/**
+	 * Report that a task has been completed.
+	 *
+	 * @param latency
+	 *            The time in milliseconds the task has been running.
+	 * @param now
+	 *            The current time in milliseconds, from a monotonic clock.
+	 */
+	public void onCompleted(long latency, long now)
+	{
+		if (mWindowStart < 0)
+		{
+			mWindowStart = now - latency;
+		}
+		mWindowCount++;
+		mWindowLatency += latency;
+
+		if (mWindowCount < Math.max(MIN_WINDOW, mLimit))
+		{
+			return;
+		}
+
+		float latencyAverage = (float) mWindowLatency / mWindowCount;
+		float throughput = mWindowCount * 1000f / Math.max(1, now - mWindowStart);
+		adjust(latencyAverage, throughput);
+
+		mWindowCount = 0;
+		mWindowLatency = 0;
+		mWindowStart = now;
+		mWindowSaturated = false;
+	}
+
+
+	private void adjust(float latency, float throughput)
+	{
+		if (mBaselineLatency < 0 || latency < mBaselineLatency)
+		{
+			mBaselineLatency = latency;
+		}
+		else
+		{
+			mBaselineLatency += (latency - mBaselineLatency) * BASELINE_DRIFT;
+		}
+
+		boolean increased = false;
+		if (latency > mBaselineLatency * LATENCY_TOLERANCE)
+		{
+			// congestion, back off
+			mLimit = Math.max(mMinLimit, Math.min(mLimit - 1, mLimit * 3 / 4));
+		}
+		else if (mIncreased && throughput <= mPreviousThroughput)
+		{
+			// the last increase didn't pay off
+			mLimit = Math.max(mMinLimit, mLimit - 1);
+		}
+		else if (mWindowSaturated && mLimit < mMaxLimit)
+		{
+			mLimit++;
+			increased = true;
+		}
+		mIncreased = increased;
+		mPreviousThroughput = throughput;
+	}
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.dmfs.android.cloudattach.sdk.CompressedPreviewCache.Compressed;
+
+
+/**
+ * The persistent tier of the preview cache. It keeps compressed previews in files and finds them through a {@link MappedIndex}, so previews are available
+ * right after a cold start without scanning the cache directory or replaying a journal.
+ * <p>
+ * A preview is written to a temporary file that's synced and renamed before the index record is published. The index is synced after that, without holding
+ * its lock. A record is unpublished before its file is deleted. Each file starts with the key of its preview, so files that don't match their record are
+ * detected and dropped.
+ * </p>
+ * <p>
+ * All instances that use the same directory share the {@link MappedIndex} and synchronize on it, so multiple clients in the same process don't get in each
+ * other's way.
+ * </p>
+ * <p>
+ * Note: {@link #open(File)}, {@link #get(String)} and {@link #put(String, Compressed)} perform I/O and must not be called on the main thread.
+ * {@link #probe(String)} reads the index without taking any lock that's held during I/O, so it can be called on the main thread.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class DiskPreviewCache
+{
+	private final static int FILE_MAGIC = 0x43415046;
+
+	/**
+	 * The expected average size of a compressed preview, used to size the index.
+	 */
+	private final static int AVERAGE_SIZE = 8 * 1024;
+
+	/**
+	 * The largest image data size that's accepted when reading a file. Anything larger must be garbage.
+	 */
+	private final static int MAX_DATA_SIZE = 16 * 1024 * 1024;
+
+	private final static String INDEX_FILE = "index";
+
+	/**
+	 * The directory of files that are being written. It's kept apart, so cleaning up after a crash doesn't need to scan the cache.
+	 */
+	private final static String TEMP_DIRECTORY = "tmp";
+	private final static String TEMP_SUFFIX = ".tmp";
+
+	private final long mMaxSize;
+	private File mDirectory;
+	private File mTempDirectory;
+	private MappedIndex mIndex;
+	private int mHitCount;
+	private int mMissCount;
+
+
+	/**
+	 * Constructor for {@link DiskPreviewCache}. The cache is not usable before {@link #open(File)} has been called.
+	 *
+	 * @param maxSize
+	 *            The maximum number of bytes to store, <code>0</code> disables the cache.
+	 */
+	DiskPreviewCache(long maxSize)
+	{
+		mMaxSize = maxSize;
+	}
+
+
+	/**
+	 * Open the cache in the given directory. Lookups miss until this has been called.
+	 *
+	 * @param directory
+	 *            The cache directory, will be created if it doesn't exist.
+	 */
+	public void open(File directory)
+	{
+		File tempDirectory = new File(directory, TEMP_DIRECTORY);
+		if (mMaxSize <= 0 || (!tempDirectory.isDirectory() && !tempDirectory.mkdirs()))
+		{
+			return;
+		}
+
+		MappedIndex index;
+		try
+		{
+			index = MappedIndex.open(new File(directory, INDEX_FILE), (int) Math.max(MappedIndex.WAYS, Math.min(Integer.MAX_VALUE, mMaxSize / AVERAGE_SIZE)), 0);
+		}
+		catch (IOException e)
+		{
+			// no disk cache this time
+			return;
+		}
+
+		synchronized (index)
+		{
+			// only the first user of the index cleans up, nobody has published a record at this point
+			if (index.claimCleanup())
+			{
+				// left-overs of interrupted writes
+				delete(tempDirectory.listFiles());
+				if (index.isCreated())
+				{
+					// files of a previous index, the new index doesn't refer to them
+					File[] files = directory.listFiles();
+					if (files != null)
+					{
+						for (File file : files)
+						{
+							if (file.isFile() && !INDEX_FILE.equals(file.getName()))
+							{
+								file.delete();
+							}
+						}
+					}
+				}
+			}
+		}
+
+		synchronized (this)
+		{
+			mDirectory = directory;
+			mTempDirectory = tempDirectory;
+			mIndex = index;
+		}
+	}
+
+
+	/**
+	 * Returns whether this cache has been configured with a size greater than <code>0</code>.
+	 *
+	 * @return <code>true</code> if the cache is enabled.
+	 */
+	public boolean isEnabled()
+	{
+		return mMaxSize > 0;
+	}
+
+
+	/**
+	 * Look up the preview with the given key in the index and count the result in the hit rate.
+	 *
+	 * @param key
+	 *            The cache key, see {@link PreviewCache#key(String, PreviewOptions)}.
+	 * @return <code>true</code> if the preview is probably in this cache.
+	 */
+	public boolean probe(String key)
+	{
+		MappedIndex index;
+		synchronized (this)
+		{
+			index = mIndex;
+		}
+		// the index may change while it's being read, that's fine for a hint
+		boolean hit = index != null && index.get(MappedIndex.hash(key)) != null;
+		synchronized (this)
+		{
+			if (hit)
+			{
+				mHitCount++;
+			}
+			else
+			{
+				mMissCount++;
+			}
+		}
+		return hit;
+	}
+
+
+	/**
+	 * Read the preview with the given key.
+	 *
+	 * @param key
+	 *            The cache key, see {@link PreviewCache#key(String, PreviewOptions)}.
+	 * @return The {@link Compressed} preview or <code>null</code> if it's not in this cache.
+	 */
+	public Compressed get(String key)
+	{
+		long hash = MappedIndex.hash(key);
+		MappedIndex index;
+		File file;
+		synchronized (this)
+		{
+			if (mIndex == null)
+			{
+				return null;
+			}
+			index = mIndex;
+			file = file(hash);
+		}
+
+		synchronized (index)
+		{
+			if (index.find(hash) < 0)
+			{
+				return null;
+			}
+		}
+
+		// files are only ever replaced by renaming, so it's safe to read them without holding the lock
+		Compressed preview = null;
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try
+			{
+				preview = read(in, key);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// missing or damaged
+		}
+
+		synchronized (index)
+		{
+			int record = index.find(hash);
+			if (record >= 0)
+			{
+				if (preview == null)
+				{
+					index.remove(record);
+					file.delete();
+				}
+				else
+				{
+					index.touch(record, System.currentTimeMillis());
+				}
+			}
+		}
+		return preview;
+	}
+
+
+	/**
+	 * Store the given preview, replacing any previous version.
+	 *
+	 * @param key
+	 *            The cache key, see {@link PreviewCache#key(String, PreviewOptions)}.
+	 * @param preview
+	 *            The {@link Compressed} preview.
+	 */
+	public void put(String key, Compressed preview)
+	{
+		long hash = MappedIndex.hash(key);
+		MappedIndex index;
+		File tempDirectory;
+		synchronized (this)
+		{
+			if (mIndex == null)
+			{
+				return;
+			}
+			index = mIndex;
+			tempDirectory = mTempDirectory;
+		}
+
+		File temp;
+		try
+		{
+			temp = File.createTempFile(Long.toHexString(hash), TEMP_SUFFIX, tempDirectory);
+			FileOutputStream fileOut = new FileOutputStream(temp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			try
+			{
+				write(out, key, preview);
+				out.flush();
+				// make sure the data is on disk before the index refers to it
+				fileOut.getFD().sync();
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// no space left or the directory has been removed
+			return;
+		}
+
+		synchronized (index)
+		{
+			File file = file(hash);
+			if (!temp.renameTo(file))
+			{
+				temp.delete();
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			long replaced = index.put(hash, preview.validated, (int) file.length(), null, now);
+			if (replaced != MappedIndex.EMPTY)
+			{
+				file(replaced).delete();
+			}
+
+			if (index.totalLength() > mMaxSize)
+			{
+				// evict the least recently used previews, leave some room for the next ones
+				long targetSize = mMaxSize * 7 / 8;
+				while (index.totalLength() > targetSize)
+				{
+					int eldest = index.eldest();
+					if (eldest < 0)
+					{
+						break;
+					}
+					long eldestHash = index.hash(eldest);
+					index.remove(eldest);
+					file(eldestHash).delete();
+				}
+			}
+		}
+		index.force();
+	}
+
+
+	/**
+	 * Remove the preview with the given key, for instance because it could not be decoded.
+	 *
+	 * @param key
+	 *            The cache key.
+	 */
+	public void remove(String key)
+	{
+		long hash = MappedIndex.hash(key);
+		MappedIndex index;
+		File file;
+		synchronized (this)
+		{
+			if (mIndex == null)
+			{
+				return;
+			}
+			index = mIndex;
+			file = file(hash);
+		}
+
+		synchronized (index)
+		{
+			int record = index.find(hash);
+			if (record >= 0)
+			{
+				index.remove(record);
+				file.delete();
+			}
+		}
+	}
+
+
+	public long size()
+	{
+		MappedIndex index;
+		synchronized (this)
+		{
+			index = mIndex;
+		}
+		return index == null ? 0 : index.totalLength();
+	}
+
+
+	public long maxSize()
+	{
+		return mMaxSize;
+	}
+
+
+	public synchronized int hitCount()
+	{
+		return mHitCount;
+	}
+
+
+	public synchronized int missCount()
+	{
+		return mMissCount;
+	}
+
+
+	private File file(long hash)
+	{
+		return new File(mDirectory, Long.toHexString(hash));
+	}
+
+
+	private static void delete(File[] files)
+	{
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+	}
+
+
+	private static void write(DataOutputStream out, String key, Compressed preview) throws IOException
+	{
+		out.writeInt(FILE_MAGIC);
+		out.writeUTF(key);
+		out.writeUTF(preview.urlKey);
+		if (preview.options == null)
+		{
+			out.writeInt(-1);
+		}
+		else
+		{
+			out.writeInt(preview.options.getWidth());
+			out.writeInt(preview.options.getHeight());
+			out.writeUTF(preview.options.getCropMode().name());
+		}
+		out.writeBoolean(preview.version != null);
+		if (preview.version != null)
+		{
+			out.writeUTF(preview.version);
+		}
+		out.writeLong(preview.validated);
+		out.writeInt(preview.data.length);
+		out.write(preview.data);
+	}
+
+
+	private static Compressed read(DataInputStream in, String key) throws IOException
+	{
+		if (in.readInt() != FILE_MAGIC || !key.equals(in.readUTF()))
+		{
+			// a hash collision or garbage
+			return null;
+		}
+
+		String urlKey = in.readUTF();
+		PreviewOptions options = null;
+		int width = in.readInt();
+		if (width >= 0)
+		{
+			int height = in.readInt();
+			try
+			{
+				options = new PreviewOptions(width, height).setCropMode(PreviewOptions.CropMode.valueOf(in.readUTF()));
+			}
+			catch (IllegalArgumentException e)
+			{
+				return null;
+			}
+		}
+		String version = in.readBoolean() ? in.readUTF() : null;
+		long validated = in.readLong();
+		int length = in.readInt();
+		if (length < 0 || length > MAX_DATA_SIZE)
+		{
+			return null;
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return new Compressed(urlKey, options, version, validated, data);
+	}
+}
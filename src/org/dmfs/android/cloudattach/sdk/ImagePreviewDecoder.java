@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.dmfs.android.cloudattach.sdk.PreviewOptions.CropMode;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+
+
+/**
+ * The {@link PreviewDecoder} for images. If {@link PreviewOptions} are given, the image is subsampled to the requested size and, depending on the
+ * {@link CropMode}, only the visible region is decoded using a {@link BitmapRegionDecoder}.
+ * <p>
+ * Note: the decoding methods perform I/O and must not be called on the main thread.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class ImagePreviewDecoder implements PreviewDecoder
+{
+	private final BitmapPool mPool;
+
+
+	/**
+	 * Constructor for {@link ImagePreviewDecoder}.
+	 *
+	 * @param pool
+	 *            A {@link BitmapPool} to take reusable {@link Bitmap}s from and to return intermediate {@link Bitmap}s to.
+	 */
+	public ImagePreviewDecoder(BitmapPool pool)
+	{
+		mPool = pool;
+	}
+
+
+	@Override
+	public boolean canDecode(String mimeType)
+	{
+		return mimeType.startsWith("image/");
+	}
+
+
+	@Override
+	public Bitmap decode(Context context, Uri uri, String mimeType, PreviewOptions options) throws IOException, DecodingBitmapException
+	{
+		return decode(new PreviewSource(context.getContentResolver(), uri, options), options, mPool);
+	}
+
+
+	/**
+	 * Decode the image of the given {@link PreviewSource}.
+	 *
+	 * @param source
+	 *            The {@link PreviewSource} of the image.
+	 * @param options
+	 *            The {@link PreviewOptions} or <code>null</code> to decode the image in full size.
+	 * @param pool
+	 *            A {@link BitmapPool} to take reusable {@link Bitmap}s from and to return intermediate {@link Bitmap}s to.
+	 * @return The decoded {@link Bitmap}, never <code>null</code>.
+	 * @throws IOException
+	 *             if the image could not be read.
+	 * @throws DecodingBitmapException
+	 *             if the image could not be decoded.
+	 */
+	public static Bitmap decode(PreviewSource source, PreviewOptions options, BitmapPool pool) throws IOException, DecodingBitmapException
+	{
+		if (options == null)
+		{
+			return checkResult(decodeStream(source, null));
+		}
+
+		// read the image dimensions first, this reads only the header of the image
+		BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		decodeStream(source, bounds);
+
+		if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+		{
+			throw new DecodingBitmapException("Could not determine the image dimensions.");
+		}
+
+		Rect region = cropRegion(bounds.outWidth, bounds.outHeight, options);
+
+		BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+		decodeOptions.inSampleSize = sampleSize(region.width(), region.height(), options.getWidth(), options.getHeight());
+		decodeOptions.inMutable = true;
+
+		if (region.width() < bounds.outWidth || region.height() < bounds.outHeight)
+		{
+			return checkResult(decodeRegion(source, bounds.outWidth, bounds.outHeight, region, decodeOptions, pool));
+		}
+		return checkResult(decodePooled(source, bounds.outWidth, bounds.outHeight, decodeOptions, pool));
+	}
+
+
+	/**
+	 * Returns the region of an image of the given size that has to be decoded to satisfy the given {@link PreviewOptions}.
+	 *
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @param options
+	 *            The {@link PreviewOptions}.
+	 * @return A {@link Rect} containing the region to decode.
+	 */
+	static Rect cropRegion(int width, int height, PreviewOptions options)
+	{
+		if (options.getCropMode() == CropMode.NONE)
+		{
+			return new Rect(0, 0, width, height);
+		}
+
+		// find the largest region with the aspect ratio of the preview
+		int regionWidth = width;
+		int regionHeight = (int) ((long) width * options.getHeight() / options.getWidth());
+		if (regionHeight > height)
+		{
+			regionHeight = height;
+			regionWidth = (int) ((long) height * options.getWidth() / options.getHeight());
+		}
+
+		int left = (width - regionWidth) / 2;
+		int top = options.getCropMode() == CropMode.TOP ? 0 : (height - regionHeight) / 2;
+		return new Rect(left, top, left + regionWidth, top + regionHeight);
+	}
+
+
+	/**
+	 * Returns the largest power of two sample size that still results in an image covering the requested dimensions.
+	 *
+	 * @param width
+	 *            The width of the source.
+	 * @param height
+	 *            The height of the source.
+	 * @param requestedWidth
+	 *            The requested width.
+	 * @param requestedHeight
+	 *            The requested height.
+	 * @return The sample size.
+	 */
+	static int sampleSize(int width, int height, int requestedWidth, int requestedHeight)
+	{
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= requestedWidth && height / (sampleSize * 2) >= requestedHeight)
+		{
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+
+	/**
+	 * Crop and scale the given {@link Bitmap} to satisfy the given {@link PreviewOptions}. The result covers the requested size but is not larger than
+	 * necessary. This is meant for decoders that can't subsample while decoding, like video frames or rendered documents.
+	 *
+	 * @param bitmap
+	 *            The {@link Bitmap} to crop and scale. It's recycled if a new {@link Bitmap} is returned.
+	 * @param options
+	 *            The {@link PreviewOptions} or <code>null</code> to return the given {@link Bitmap} as is.
+	 * @return The resulting {@link Bitmap}.
+	 */
+	static Bitmap fit(Bitmap bitmap, PreviewOptions options)
+	{
+		if (options == null)
+		{
+			return bitmap;
+		}
+
+		Rect region = cropRegion(bitmap.getWidth(), bitmap.getHeight(), options);
+		Bitmap result = scale(bitmap, region, options);
+		if (result != bitmap)
+		{
+			bitmap.recycle();
+		}
+		return result;
+	}
+
+
+	/**
+	 * Crop the given region of the given {@link Bitmap} and scale it down to the smallest size that covers the given {@link PreviewOptions}. The given
+	 * {@link Bitmap} is not modified.
+	 *
+	 * @param bitmap
+	 *            The source {@link Bitmap}.
+	 * @param region
+	 *            The region of the source {@link Bitmap} to keep.
+	 * @param options
+	 *            The {@link PreviewOptions}.
+	 * @return The resulting {@link Bitmap}, which may be the source {@link Bitmap} itself if there is nothing to crop or scale.
+	 */
+	static Bitmap scale(Bitmap bitmap, Rect region, PreviewOptions options)
+	{
+		float scale = Math.min(1f, Math.max((float) options.getWidth() / region.width(), (float) options.getHeight() / region.height()));
+		if (scale == 1f && region.width() == bitmap.getWidth() && region.height() == bitmap.getHeight())
+		{
+			return bitmap;
+		}
+
+		Matrix matrix = new Matrix();
+		matrix.setScale(scale, scale);
+		return Bitmap.createBitmap(bitmap, region.left, region.top, region.width(), region.height(), matrix, true);
+	}
+
+
+	private static Bitmap decodeRegion(PreviewSource source, int imageWidth, int imageHeight, Rect region, BitmapFactory.Options options,
+		BitmapPool pool) throws IOException
+	{
+		InputStream in = source.open();
+		try
+		{
+			BitmapRegionDecoder regionDecoder;
+			try
+			{
+				regionDecoder = BitmapRegionDecoder.newInstance(in, false);
+			}
+			catch (IOException e)
+			{
+				// the image format is not supported by BitmapRegionDecoder, decode and crop the entire image instead
+				regionDecoder = null;
+			}
+
+			if (regionDecoder != null)
+			{
+				try
+				{
+					return regionDecoder.decodeRegion(region, options);
+				}
+				finally
+				{
+					regionDecoder.recycle();
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		Bitmap bitmap = decodePooled(source, imageWidth, imageHeight, options, pool);
+		if (bitmap == null)
+		{
+			return null;
+		}
+
+		int sampleSize = options.inSampleSize;
+		int left = Math.min(region.left / sampleSize, bitmap.getWidth() - 1);
+		int top = Math.min(region.top / sampleSize, bitmap.getHeight() - 1);
+		int width = Math.max(1, Math.min(region.width() / sampleSize, bitmap.getWidth() - left));
+		int height = Math.max(1, Math.min(region.height() / sampleSize, bitmap.getHeight() - top));
+
+		Bitmap result = Bitmap.createBitmap(bitmap, left, top, width, height);
+		if (result != bitmap)
+		{
+			// the full image is no longer needed, keep it for reuse
+			if (pool != null)
+			{
+				pool.put(bitmap);
+			}
+			else
+			{
+				bitmap.recycle();
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Decode the image of the given {@link PreviewSource} into a {@link Bitmap} from the {@link BitmapPool}, if the pool contains a suitable one.
+	 */
+	private static Bitmap decodePooled(PreviewSource source, int width, int height, BitmapFactory.Options options, BitmapPool pool)
+		throws IOException
+	{
+		int sampleSize = options.inSampleSize;
+		Bitmap reusable = null;
+		if (pool != null && (sampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT))
+		{
+			reusable = pool.get((width + sampleSize - 1) / sampleSize, (height + sampleSize - 1) / sampleSize, Bitmap.Config.ARGB_8888);
+		}
+
+		if (reusable != null)
+		{
+			options.inBitmap = reusable;
+			try
+			{
+				return decodeStream(source, options);
+			}
+			catch (IllegalArgumentException e)
+			{
+				// the bitmap can't be reused for this image, decode into a new bitmap
+				options.inBitmap = null;
+				pool.put(reusable);
+			}
+		}
+		return decodeStream(source, options);
+	}
+
+
+	private static Bitmap decodeStream(PreviewSource source, BitmapFactory.Options options) throws IOException
+	{
+		InputStream in = source.open();
+		try
+		{
+			return BitmapFactory.decodeStream(in, null, options);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+
+	private static Bitmap checkResult(Bitmap bitmap) throws DecodingBitmapException
+	{
+		if (bitmap == null)
+		{
+			throw new DecodingBitmapException("Could not decode image data to Bitmap.");
+		}
+		return bitmap;
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * A {@link PreviewLoaderCallback} that receives interim previews. If only a smaller preview of the same attachment is in the memory cache, it's delivered to
+ * {@link #onInterimPreviewLoaded(long, Bitmap)} while the requested size is loaded. The request is not complete until one of the methods of
+ * {@link PreviewLoaderCallback} has been called.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public interface InterimPreviewLoaderCallback extends PreviewLoaderCallback
+{
+	/**
+	 * Called with a smaller stand-in preview while the preview in the requested size is loaded.
+	 *
+	 * @param id
+	 *            The id that has been passed to the loader method.
+	 * @param preview
+	 *            The interim preview, smaller than requested.
+	 */
+	abstract void onInterimPreviewLoaded(long id, Bitmap preview);
+}
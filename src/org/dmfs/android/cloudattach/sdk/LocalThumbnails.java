@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+
+
+/**
+ * Loads precomputed thumbnails of local content. Thumbnails of the {@link MediaStore} and of document providers (via
+ * {@link DocumentsContract#getDocumentThumbnail(ContentResolver, Uri, Point, android.os.CancellationSignal)}) are much cheaper than decoding the original.
+ * <p>
+ * Note: all methods perform I/O and must not be called on the main thread.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class LocalThumbnails
+{
+	/**
+	 * The size of {@link MediaStore.Images.Thumbnails#MINI_KIND} thumbnails.
+	 */
+	private final static int MINI_WIDTH = 512;
+	private final static int MINI_HEIGHT = 384;
+
+	/**
+	 * The size of {@link MediaStore.Images.Thumbnails#MICRO_KIND} thumbnails. They are square crops of the center of the image.
+	 */
+	private final static int MICRO_SIZE = 96;
+
+
+	/**
+	 * "No instances" constructor.
+	 */
+	private LocalThumbnails()
+	{
+	}
+
+
+	/**
+	 * Returns whether the given {@link Uri} points to local content that doesn't need to be resolved.
+	 *
+	 * @param uri
+	 *            A {@link Uri}.
+	 * @return <code>true</code> if the {@link Uri} has a <code>content</code> or <code>file</code> scheme.
+	 */
+	public static boolean isLocal(Uri uri)
+	{
+		return ContentResolver.SCHEME_CONTENT.equals(uri.getScheme()) || ContentResolver.SCHEME_FILE.equals(uri.getScheme());
+	}
+
+
+	/**
+	 * Returns a precomputed thumbnail of the given local content that covers the given {@link PreviewOptions}.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @param uri
+	 *            The {@link Uri} of the content.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview.
+	 * @return A {@link Bitmap} or <code>null</code> if there is no suitable thumbnail.
+	 */
+	public static Bitmap load(Context context, Uri uri, PreviewOptions options)
+	{
+		if (options == null || !ContentResolver.SCHEME_CONTENT.equals(uri.getScheme()))
+		{
+			// full size previews can't be served by thumbnails
+			return null;
+		}
+
+		try
+		{
+			Bitmap thumbnail = null;
+			if (MediaStore.AUTHORITY.equals(uri.getAuthority()))
+			{
+				thumbnail = loadMediaStoreThumbnail(context.getContentResolver(), uri, options);
+			}
+			else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+			{
+				thumbnail = loadDocumentThumbnail(context, uri, options);
+			}
+
+			if (thumbnail == null)
+			{
+				return null;
+			}
+			if (thumbnail.getWidth() < options.getWidth() || thumbnail.getHeight() < options.getHeight())
+			{
+				// too small in at least one dimension, decode the original instead of upscaling
+				thumbnail.recycle();
+				return null;
+			}
+			return ImagePreviewDecoder.fit(thumbnail, options);
+		}
+		catch (RuntimeException e)
+		{
+			// the thumbnail is not available, decode the original instead
+			return null;
+		}
+	}
+
+
+	private static Bitmap loadMediaStoreThumbnail(ContentResolver resolver, Uri uri, PreviewOptions options)
+	{
+		if (options.getWidth() > MINI_WIDTH || options.getHeight() > MINI_HEIGHT)
+		{
+			return null;
+		}
+
+		long id;
+		try
+		{
+			id = ContentUris.parseId(uri);
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+		if (id < 0)
+		{
+			return null;
+		}
+
+		// micro thumbnails are cropped, they can only serve square previews that are cropped the same way
+		boolean micro = options.getCropMode() == PreviewOptions.CropMode.CENTER && options.getWidth() == options.getHeight()
+			&& options.getWidth() <= MICRO_SIZE;
+		int kind = micro ? MediaStore.Images.Thumbnails.MICRO_KIND : MediaStore.Images.Thumbnails.MINI_KIND;
+		String path = uri.getPath();
+		if (path.contains("/images/"))
+		{
+			return MediaStore.Images.Thumbnails.getThumbnail(resolver, id, kind, null);
+		}
+		if (path.contains("/video/"))
+		{
+			return MediaStore.Video.Thumbnails.getThumbnail(resolver, id, kind, null);
+		}
+		return null;
+	}
+
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static Bitmap loadDocumentThumbnail(Context context, Uri uri, PreviewOptions options)
+	{
+		if (!DocumentsContract.isDocumentUri(context, uri))
+		{
+			return null;
+		}
+		return DocumentsContract.getDocumentThumbnail(context.getContentResolver(), uri, new Point(options.getWidth(), options.getHeight()), null);
+	}
+}
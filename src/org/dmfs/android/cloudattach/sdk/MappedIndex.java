@@ -0,0 +1,543 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/**
+ * A persistent hash table of fixed size records in a memory-mapped file. Opening an index maps the file and doesn't load anything, lookups read the mapping
+ * directly, so an index can be used right away regardless of the amount of data it refers to.
+ * <p>
+ * The table is set associative: a key hash selects a bucket of {@link #WAYS} records. If a bucket is full, its least recently used record is replaced, so the
+ * index never needs to be rehashed or compacted. Each record holds a 64 bit key hash, a time stamp, the time of the last access, a length, an optional
+ * payload of a fixed maximum size and a checksum of all of that but the time of the last access. Callers must verify that a record actually belongs to their
+ * key, for instance by storing the key in the payload.
+ * </p>
+ * <p>
+ * A record is published by writing its hash after all other fields and unpublished by clearing the hash before anything else is changed. The mapping is not
+ * synced by the methods that change it, callers {@link #force()} it after publishing a record, preferably without holding the lock. Records that have been
+ * torn by a crash or a power loss fail their checksum and are dropped when the index is opened, at worst a record is lost. The total length in the header
+ * is recounted at the same time. The order of the records by their last access is kept in memory, so finding the least recently used record doesn't scan
+ * the index.
+ * </p>
+ * <p>
+ * There is only one instance per file in a process, see {@link #open(File, int, int)}. This class is not thread safe. Callers must synchronize on the index,
+ * except for {@link #get(long)}, {@link #totalLength()} and {@link #force()}, which can be called without the lock, for instance on the main thread.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class MappedIndex
+{
+	/**
+	 * The number of records per bucket.
+	 */
+	final static int WAYS = 8;
+
+	/**
+	 * The hash of an empty record. {@link #hash(String)} never returns this value.
+	 */
+	final static long EMPTY = 0;
+
+	private final static int MAGIC = 0x43414958;
+	private final static int FORMAT_VERSION = 3;
+
+	/**
+	 * The page size the records are aligned to. Records are a power of two in size, so they never straddle a page.
+	 */
+	private final static int PAGE_SIZE = 4096;
+
+	/**
+	 * The header takes the entire first page.
+	 */
+	private final static int HEADER_SIZE = PAGE_SIZE;
+	private final static int HEADER_MAGIC = 0;
+	private final static int HEADER_FORMAT = 4;
+	private final static int HEADER_BUCKETS = 8;
+	private final static int HEADER_PAYLOAD_SIZE = 12;
+	private final static int HEADER_TOTAL_LENGTH = 16;
+
+	private final static int RECORD_HASH = 0;
+	private final static int RECORD_STAMP = 8;
+	private final static int RECORD_ACCESSED = 16;
+	private final static int RECORD_LENGTH = 24;
+	private final static int RECORD_PAYLOAD_LENGTH = 28;
+	private final static int RECORD_CHECKSUM = 32;
+	private final static int RECORD_PAYLOAD = 36;
+
+	/**
+	 * The smallest record size, a power of two.
+	 */
+	private final static int MIN_RECORD_SIZE = 64;
+
+	/**
+	 * A snapshot of a record.
+	 */
+	final static class Record
+	{
+		public final long stamp;
+		public final int length;
+		public final byte[] payload;
+
+
+		Record(long stamp, int length, byte[] payload)
+		{
+			this.stamp = stamp;
+			this.length = length;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * The open indexes of this process, by path.
+	 */
+	private final static Map<String, MappedIndex> sOpenIndexes = new HashMap<String, MappedIndex>();
+
+	private final MappedByteBuffer mBuffer;
+	private final int mBucketCount;
+	private final int mPayloadSize;
+	private final int mRecordSize;
+	private final boolean mCreated;
+	private boolean mCleanupClaimed;
+
+	/**
+	 * The positions of all published records, least recently used first.
+	 */
+	private final LinkedHashMap<Integer, Boolean> mAccessOrder = new LinkedHashMap<Integer, Boolean>(64, 0.75f, true);
+
+
+	/**
+	 * Returns the index in the given file, opening or creating it if it's not open in this process yet. An existing file with a different layout is cleared.
+	 * All callers that open the same file share the returned instance, the capacity and payload size of the first call win.
+	 * <p>
+	 * Note: this performs I/O and must not be called on the main thread.
+	 * </p>
+	 *
+	 * @param file
+	 *            The index file.
+	 * @param capacity
+	 *            The number of records, will be rounded up to a multiple of {@link #WAYS}.
+	 * @param payloadSize
+	 *            The maximum payload size of a record in bytes, may be <code>0</code>.
+	 * @return The {@link MappedIndex}.
+	 * @throws IOException
+	 *             If the file could not be mapped.
+	 */
+	public static MappedIndex open(File file, int capacity, int payloadSize) throws IOException
+	{
+		synchronized (sOpenIndexes)
+		{
+			String path = file.getAbsolutePath();
+			MappedIndex index = sOpenIndexes.get(path);
+			if (index == null)
+			{
+				index = new MappedIndex(file, capacity, payloadSize);
+				sOpenIndexes.put(path, index);
+			}
+			return index;
+		}
+	}
+
+
+	private MappedIndex(File file, int capacity, int payloadSize) throws IOException
+	{
+		if (capacity <= 0 || payloadSize < 0 || RECORD_PAYLOAD + payloadSize > PAGE_SIZE)
+		{
+			throw new IllegalArgumentException("Invalid index size.");
+		}
+		mBucketCount = (capacity + WAYS - 1) / WAYS;
+		mPayloadSize = payloadSize;
+		// a power of two, so records never straddle a page
+		int recordSize = MIN_RECORD_SIZE;
+		while (recordSize < RECORD_PAYLOAD + payloadSize)
+		{
+			recordSize *= 2;
+		}
+		mRecordSize = recordSize;
+		int size = HEADER_SIZE + mBucketCount * WAYS * mRecordSize;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			boolean created = raf.length() != size;
+			if (created)
+			{
+				// start with a zeroed file
+				raf.setLength(0);
+				raf.setLength(size);
+			}
+			mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			// the mapping stays valid after the file has been closed
+
+			if (!created
+				&& (mBuffer.getInt(HEADER_MAGIC) != MAGIC || mBuffer.getInt(HEADER_FORMAT) != FORMAT_VERSION || mBuffer.getInt(HEADER_BUCKETS) != mBucketCount || mBuffer
+					.getInt(HEADER_PAYLOAD_SIZE) != payloadSize))
+			{
+				// not our index or written by another version, start over
+				for (int i = 0; i < size; i += 8)
+				{
+					mBuffer.putLong(i, 0);
+				}
+				created = true;
+			}
+
+			if (created)
+			{
+				mBuffer.putInt(HEADER_FORMAT, FORMAT_VERSION);
+				mBuffer.putInt(HEADER_BUCKETS, mBucketCount);
+				mBuffer.putInt(HEADER_PAYLOAD_SIZE, payloadSize);
+				mBuffer.putLong(HEADER_TOTAL_LENGTH, 0);
+				// the magic goes last, the header is valid only if it's complete
+				mBuffer.putInt(HEADER_MAGIC, MAGIC);
+				mBuffer.force();
+			}
+			else
+			{
+				// drop torn records, the total may be off after a crash as well
+				mBuffer.putLong(HEADER_TOTAL_LENGTH, check());
+				mBuffer.force();
+			}
+			mCreated = created;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Returns the 64 bit hash of the given key.
+	 *
+	 * @param key
+	 *            A key.
+	 * @return The hash, never {@link #EMPTY}.
+	 */
+	public static long hash(String key)
+	{
+		// FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0, len = key.length(); i < len; ++i)
+		{
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash == EMPTY ? 1 : hash;
+	}
+
+
+	/**
+	 * Returns whether the index has been created (or cleared) when it was opened. Any data that belongs to previous records is stale in that case.
+	 *
+	 * @return <code>true</code> if the index is new.
+	 */
+	public boolean isCreated()
+	{
+		return mCreated;
+	}
+
+
+	/**
+	 * Returns <code>true</code> for the first caller only. Lets the first user of an index clean up data of a previous run.
+	 *
+	 * @return <code>true</code> if the caller is the first one to claim the cleanup.
+	 */
+	public boolean claimCleanup()
+	{
+		boolean first = !mCleanupClaimed;
+		mCleanupClaimed = true;
+		return first;
+	}
+
+
+	/**
+	 * Find the record with the given hash.
+	 *
+	 * @param hash
+	 *            The key hash as returned by {@link #hash(String)}.
+	 * @return The position of the record or <code>-1</code> if there is no such record.
+	 */
+	public int find(long hash)
+	{
+		int bucket = bucket(hash);
+		for (int i = 0; i < WAYS; ++i)
+		{
+			int record = bucket + i * mRecordSize;
+			if (mBuffer.getLong(record + RECORD_HASH) == hash)
+			{
+				return record;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Returns a snapshot of the record with the given hash. This doesn't need the lock of the index. A record that's changed while it's being read fails its
+	 * checksum and is reported as missing, so the result is only a hint if the lock is not held. Note that this doesn't mark the record as recently used.
+	 *
+	 * @param hash
+	 *            The key hash as returned by {@link #hash(String)}.
+	 * @return The {@link Record} or <code>null</code> if there is no such record or it's being changed.
+	 */
+	public Record get(long hash)
+	{
+		int bucket = bucket(hash);
+		for (int i = 0; i < WAYS; ++i)
+		{
+			int record = bucket + i * mRecordSize;
+			if (mBuffer.getLong(record + RECORD_HASH) == hash)
+			{
+				int checksum = mBuffer.getInt(record + RECORD_CHECKSUM);
+				long stamp = mBuffer.getLong(record + RECORD_STAMP);
+				int length = mBuffer.getInt(record + RECORD_LENGTH);
+				int payloadLength = mBuffer.getInt(record + RECORD_PAYLOAD_LENGTH);
+				if (payloadLength < 0 || payloadLength > mPayloadSize)
+				{
+					return null;
+				}
+				byte[] payload = new byte[payloadLength];
+				for (int j = 0; j < payloadLength; ++j)
+				{
+					payload[j] = mBuffer.get(record + RECORD_PAYLOAD + j);
+				}
+				return checksum(hash, stamp, length, payload) == checksum ? new Record(stamp, length, payload) : null;
+			}
+		}
+		return null;
+	}
+
+
+	public long hash(int record)
+	{
+		return mBuffer.getLong(record + RECORD_HASH);
+	}
+
+
+	/**
+	 * Mark the given record as recently used.
+	 *
+	 * @param record
+	 *            The position of the record.
+	 * @param now
+	 *            The current time in milliseconds.
+	 */
+	public void touch(int record, long now)
+	{
+		mBuffer.putLong(record + RECORD_ACCESSED, now);
+		mAccessOrder.get(record);
+	}
+
+
+	/**
+	 * Add or replace the record with the given hash. If the bucket is full, its least recently used record is replaced.
+	 *
+	 * @param hash
+	 *            The key hash as returned by {@link #hash(String)}.
+	 * @param stamp
+	 *            A time stamp to store with the record.
+	 * @param length
+	 *            The length of the data that belongs to the record.
+	 * @param payload
+	 *            The payload or <code>null</code>, must not be larger than the payload size of this index.
+	 * @param now
+	 *            The current time in milliseconds.
+	 * @return The hash of the record that has been replaced to make room or {@link #EMPTY}.
+	 */
+	public long put(long hash, long stamp, int length, byte[] payload, long now)
+	{
+		if (payload != null && payload.length > mPayloadSize)
+		{
+			throw new IllegalArgumentException("Payload too large.");
+		}
+
+		int bucket = bucket(hash);
+		int target = -1;
+		long oldest = Long.MAX_VALUE;
+		for (int i = 0; i < WAYS; ++i)
+		{
+			int record = bucket + i * mRecordSize;
+			long recordHash = mBuffer.getLong(record + RECORD_HASH);
+			if (recordHash == hash || recordHash == EMPTY)
+			{
+				target = record;
+				break;
+			}
+			long accessed = mBuffer.getLong(record + RECORD_ACCESSED);
+			if (accessed < oldest)
+			{
+				oldest = accessed;
+				target = record;
+			}
+		}
+
+		long replaced = mBuffer.getLong(target + RECORD_HASH);
+		if (replaced != EMPTY)
+		{
+			remove(target);
+		}
+
+		mBuffer.putLong(target + RECORD_STAMP, stamp);
+		mBuffer.putLong(target + RECORD_ACCESSED, now);
+		mBuffer.putInt(target + RECORD_LENGTH, length);
+		if (payload == null)
+		{
+			payload = new byte[0];
+		}
+		for (int i = 0; i < payload.length; ++i)
+		{
+			mBuffer.put(target + RECORD_PAYLOAD + i, payload[i]);
+		}
+		mBuffer.putInt(target + RECORD_PAYLOAD_LENGTH, payload.length);
+		mBuffer.putInt(target + RECORD_CHECKSUM, checksum(hash, stamp, length, payload));
+		mBuffer.putLong(target + RECORD_HASH, hash);
+		mBuffer.putLong(HEADER_TOTAL_LENGTH, mBuffer.getLong(HEADER_TOTAL_LENGTH) + length);
+		mAccessOrder.put(target, Boolean.TRUE);
+
+		return replaced == hash ? EMPTY : replaced;
+	}
+
+
+	/**
+	 * Remove the given record.
+	 *
+	 * @param record
+	 *            The position of the record.
+	 */
+	public void remove(int record)
+	{
+		// unpublish first
+		mBuffer.putLong(record + RECORD_HASH, EMPTY);
+		mBuffer.putLong(HEADER_TOTAL_LENGTH, Math.max(0, mBuffer.getLong(HEADER_TOTAL_LENGTH) - mBuffer.getInt(record + RECORD_LENGTH)));
+		mAccessOrder.remove(record);
+	}
+
+
+	/**
+	 * Returns the sum of the lengths of all records.
+	 *
+	 * @return The total length.
+	 */
+	public long totalLength()
+	{
+		return mBuffer.getLong(HEADER_TOTAL_LENGTH);
+	}
+
+
+	/**
+	 * Returns the least recently used record.
+	 *
+	 * @return The position of the record or <code>-1</code> if the index is empty.
+	 */
+	public int eldest()
+	{
+		return mAccessOrder.isEmpty() ? -1 : mAccessOrder.keySet().iterator().next();
+	}
+
+
+	/**
+	 * Sync the mapping to disk. Call this after publishing records. This doesn't need the lock of the index.
+	 */
+	public void force()
+	{
+		mBuffer.force();
+	}
+
+
+	/**
+	 * Clear all torn records and put the others in the order of their last access.
+	 *
+	 * @return The total length of the remaining records.
+	 */
+	private long check()
+	{
+		long total = 0;
+		List<Integer> records = new ArrayList<Integer>();
+		for (int record = HEADER_SIZE, end = mBuffer.capacity(); record < end; record += mRecordSize)
+		{
+			long hash = mBuffer.getLong(record + RECORD_HASH);
+			if (hash != EMPTY)
+			{
+				if (get(hash) == null || find(hash) != record)
+				{
+					// torn or a duplicate
+					mBuffer.putLong(record + RECORD_HASH, EMPTY);
+				}
+				else
+				{
+					total += mBuffer.getInt(record + RECORD_LENGTH);
+					records.add(record);
+				}
+			}
+		}
+
+		Collections.sort(records, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer lhs, Integer rhs)
+			{
+				long left = mBuffer.getLong(lhs + RECORD_ACCESSED);
+				long right = mBuffer.getLong(rhs + RECORD_ACCESSED);
+				return left < right ? -1 : (left == right ? 0 : 1);
+			}
+		});
+		for (Integer record : records)
+		{
+			mAccessOrder.put(record, Boolean.TRUE);
+		}
+		return total;
+	}
+
+
+	private static int checksum(long hash, long stamp, int length, byte[] payload)
+	{
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < 8; ++i)
+		{
+			crc.update((int) (hash >>> (i * 8)));
+			crc.update((int) (stamp >>> (i * 8)));
+		}
+		for (int i = 0; i < 4; ++i)
+		{
+			crc.update(length >>> (i * 8));
+			crc.update(payload.length >>> (i * 8));
+		}
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+
+	private int bucket(long hash)
+	{
+		int bucket = (int) ((hash ^ (hash >>> 32)) & 0x7fffffff) % mBucketCount;
+		return HEADER_SIZE + bucket * WAYS * mRecordSize;
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+
+/**
+ * Determines the MIME type of the content of a preview {@link Uri}. The type reported by the provider via {@link ContentResolver#getType(Uri)} is used if
+ * it's specific. Otherwise the first few bytes of the content are compared to the signatures of the supported formats. Nothing else of the content is read.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class MimeTypeSniffer
+{
+	/**
+	 * The MIME type returned if the type could not be determined.
+	 */
+	final static String UNKNOWN = "application/octet-stream";
+
+	private final static int HEADER_SIZE = 16;
+
+
+	/**
+	 * "No instances" constructor.
+	 */
+	private MimeTypeSniffer()
+	{
+	}
+
+
+	/**
+	 * Returns the MIME type of the content of the given {@link Uri}.
+	 *
+	 * @param resolver
+	 *            A {@link ContentResolver}.
+	 * @param uri
+	 *            The content {@link Uri}.
+	 * @return The MIME type in lower case or {@link #UNKNOWN}, never <code>null</code>.
+	 * @throws IOException
+	 *             if the provider could not be asked or the content could not be opened.
+	 */
+	public static String getType(ContentResolver resolver, Uri uri) throws IOException
+	{
+		String type = null;
+		if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme()))
+		{
+			try
+			{
+				type = resolver.getType(uri);
+			}
+			catch (RuntimeException e)
+			{
+				// the provider crashed or is not available, treat this like a failed read
+				throw new IOException("Can't get the type of " + uri, e);
+			}
+		}
+
+		if (type != null && type.indexOf('/') > 0 && !UNKNOWN.equalsIgnoreCase(type) && !type.endsWith("/*"))
+		{
+			return type.toLowerCase(Locale.US);
+		}
+		return sniff(resolver, uri);
+	}
+
+
+	/**
+	 * Returns the MIME type of the content of the given {@link Uri}, based on its first bytes.
+	 */
+	private static String sniff(ContentResolver resolver, Uri uri) throws IOException
+	{
+		InputStream in = resolver.openInputStream(uri);
+		if (in == null)
+		{
+			throw new FileNotFoundException("Can't open " + uri);
+		}
+
+		byte[] header = new byte[HEADER_SIZE];
+		int length = 0;
+		try
+		{
+			int read;
+			while (length < HEADER_SIZE && (read = in.read(header, length, HEADER_SIZE - length)) > 0)
+			{
+				length += read;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return sniff(header, length);
+	}
+
+
+	/**
+	 * Returns the MIME type of content that starts with the given bytes.
+	 *
+	 * @param header
+	 *            The first bytes of the content.
+	 * @param length
+	 *            The number of valid bytes in <code>header</code>.
+	 * @return The MIME type or {@link #UNKNOWN}.
+	 */
+	static String sniff(byte[] header, int length)
+	{
+		if (startsWith(header, length, 0, 0xff, 0xd8, 0xff))
+		{
+			return "image/jpeg";
+		}
+		if (startsWith(header, length, 0, 0x89, 'P', 'N', 'G'))
+		{
+			return "image/png";
+		}
+		if (startsWith(header, length, 0, 'G', 'I', 'F', '8'))
+		{
+			return "image/gif";
+		}
+		if (startsWith(header, length, 0, 'R', 'I', 'F', 'F') && startsWith(header, length, 8, 'W', 'E', 'B', 'P'))
+		{
+			return "image/webp";
+		}
+		if (startsWith(header, length, 0, 'B', 'M'))
+		{
+			return "image/bmp";
+		}
+		if (startsWith(header, length, 0, '%', 'P', 'D', 'F'))
+		{
+			return "application/pdf";
+		}
+		if (startsWith(header, length, 4, 'f', 't', 'y', 'p'))
+		{
+			// ISO base media file, the brand tells what it contains
+			if (startsWith(header, length, 8, '3', 'g'))
+			{
+				return "video/3gpp";
+			}
+			if (startsWith(header, length, 8, 'i', 's', 'o') || startsWith(header, length, 8, 'm', 'p', '4') || startsWith(header, length, 8, 'a', 'v', 'c', '1')
+				|| startsWith(header, length, 8, 'M', '4', 'V') || startsWith(header, length, 8, 'd', 'a', 's', 'h'))
+			{
+				return "video/mp4";
+			}
+			if (startsWith(header, length, 8, 'q', 't', ' ', ' '))
+			{
+				return "video/quicktime";
+			}
+			// HEIF and AVIF images can't be decoded before Android P, other brands are unknown
+			return UNKNOWN;
+		}
+		if (startsWith(header, length, 0, 0x1a, 0x45, 0xdf, 0xa3))
+		{
+			return "video/webm";
+		}
+		return UNKNOWN;
+	}
+
+
+	private static boolean startsWith(byte[] header, int length, int offset, int... signature)
+	{
+		if (length < offset + signature.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < signature.length; ++i)
+		{
+			if ((header[offset + i] & 0xff) != signature[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.pdf.PdfRenderer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+
+
+/**
+ * The {@link PreviewDecoder} for PDF documents. It renders the first page using a {@link PdfRenderer}, directly in the size of the preview. Only available on
+ * Lollipop and newer.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class PdfPreviewDecoder implements PreviewDecoder
+{
+	private final static String MIMETYPE_PDF = "application/pdf";
+
+	/**
+	 * The resolution to render pages at if no {@link PreviewOptions} are given. PDF sizes are given in points of 1/72 inch.
+	 */
+	private final static float DEFAULT_SCALE = 2f;
+
+
+	@Override
+	public boolean canDecode(String mimeType)
+	{
+		return MIMETYPE_PDF.equals(mimeType);
+	}
+
+
+	@Override
+	public Bitmap decode(Context context, Uri uri, String mimeType, PreviewOptions options) throws IOException, DecodingBitmapException
+	{
+		ParcelFileDescriptor fileDescriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+		if (fileDescriptor == null)
+		{
+			throw new FileNotFoundException("Can't open " + uri);
+		}
+
+		PdfRenderer renderer;
+		try
+		{
+			renderer = new PdfRenderer(fileDescriptor);
+		}
+		catch (IOException e)
+		{
+			// the renderer closes the descriptor only if it has been created
+			fileDescriptor.close();
+			throw new DecodingBitmapException("Could not open the document: " + e.getMessage());
+		}
+		catch (SecurityException e)
+		{
+			fileDescriptor.close();
+			throw new DecodingBitmapException("The document is password protected.");
+		}
+
+		try
+		{
+			if (renderer.getPageCount() == 0)
+			{
+				throw new DecodingBitmapException("The document has no pages.");
+			}
+
+			PdfRenderer.Page page = renderer.openPage(0);
+			try
+			{
+				return render(page, options);
+			}
+			finally
+			{
+				page.close();
+			}
+		}
+		finally
+		{
+			renderer.close();
+		}
+	}
+
+
+	/**
+	 * Render the given page, scaled and cropped to the given {@link PreviewOptions}.
+	 */
+	private Bitmap render(PdfRenderer.Page page, PreviewOptions options)
+	{
+		int pageWidth = page.getWidth();
+		int pageHeight = page.getHeight();
+
+		float scale;
+		int left = 0;
+		int top = 0;
+		int width;
+		int height;
+		if (options == null)
+		{
+			scale = DEFAULT_SCALE;
+			width = Math.round(pageWidth * scale);
+			height = Math.round(pageHeight * scale);
+		}
+		else
+		{
+			// render only the visible region, in the requested size
+			Rect region = ImagePreviewDecoder.cropRegion(pageWidth, pageHeight, options);
+			scale = Math.max((float) options.getWidth() / region.width(), (float) options.getHeight() / region.height());
+			left = region.left;
+			top = region.top;
+			width = Math.max(1, Math.round(region.width() * scale));
+			height = Math.max(1, Math.round(region.height() * scale));
+		}
+
+		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		// pages are transparent, but documents are meant to be shown on white paper
+		bitmap.eraseColor(Color.WHITE);
+
+		Matrix matrix = new Matrix();
+		matrix.setTranslate(-left, -top);
+		matrix.postScale(scale, scale);
+		page.render(bitmap, null, matrix, PdfRenderer.Page.RENDER_MODE_FOR_DISPLAY);
+		return bitmap;
+	}
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dmfs.android.cloudattach.sdk.PreviewOptions.CropMode;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+
+/**
+ * A memory cache for decoded previews. The cache is limited by the number of bytes held by the cached {@link Bitmap}s and evicts the least recently used
+ * entries first.
+ * <p>
+ * Each entry carries the version of the preview as reported by the resolver (if any) and the time it has been validated the last time. Entries older than
+ * {@link #FRESHNESS_WINDOW} should be revalidated before they are used.
+ * </p>
+ * <p>
+ * The cache knows which sizes (variants) of a preview it holds. A request for a size that's not cached can be served by downscaling a larger variant, see
+ * {@link #getScaledVariant(String, PreviewOptions)}, or bridged with a smaller variant, see {@link #getSmallerVariant(String, PreviewOptions)}.
+ * </p>
+ * <p>
+ * The {@link CloudAttachClient} registers the cache for {@link ComponentCallbacks2}, so it shrinks when the system is running low on memory. It's refilled lazily by subsequent
+ * requests.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class PreviewCache implements ComponentCallbacks2
+{
+	/**
+	 * The time in milliseconds a cached preview is considered fresh after it has been validated.
+	 */
+	public final static long FRESHNESS_WINDOW = 5 * 60 * 1000;
+
+	/**
+	 * A cached preview.
+	 */
+	final static class Entry
+	{
+		public final Bitmap bitmap;
+		public final String version;
+		private final String urlKey;
+		private final PreviewOptions options;
+		private long validated;
+
+
+		Entry(String urlKey, PreviewOptions options, Bitmap bitmap, String version, long validated)
+		{
+			this.urlKey = urlKey;
+			this.options = options;
+			this.bitmap = bitmap;
+			this.version = version;
+			this.validated = validated;
+		}
+
+
+		/**
+		 * Returns whether this entry has been validated within the {@link PreviewCache#FRESHNESS_WINDOW}.
+		 *
+		 * @return <code>true</code> if the entry can be used without revalidation.
+		 */
+		public synchronized boolean isFresh()
+		{
+			return System.currentTimeMillis() - validated < FRESHNESS_WINDOW;
+		}
+
+
+		String urlKey()
+		{
+			return urlKey;
+		}
+
+
+		PreviewOptions options()
+		{
+			return options;
+		}
+
+
+		synchronized long validated()
+		{
+			return validated;
+		}
+
+
+		/**
+		 * Mark this entry as validated right now.
+		 */
+		public synchronized void validate()
+		{
+			validated = System.currentTimeMillis();
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(32, 0.75f, true);
+
+	/**
+	 * Interface of a listener that's notified when an entry is evicted to make room for another one.
+	 */
+	interface EvictionListener
+	{
+		/**
+		 * Called when an entry has been evicted. This is called while the cache is locked, so it must return quickly.
+		 *
+		 * @param key
+		 *            The cache key of the entry.
+		 * @param entry
+		 *            The evicted {@link Entry}.
+		 */
+		abstract void onEvicted(String key, Entry entry);
+	}
+
+	/**
+	 * The cached variants by the key of their URL.
+	 */
+	private final Map<String, List<Entry>> mVariants = new HashMap<String, List<Entry>>();
+	private final int mMaxSize;
+	private int mSize;
+	private EvictionListener mEvictionListener;
+	private int mHitCount;
+	private int mMissCount;
+	private long mTrimmedBytes;
+
+
+	/**
+	 * Returns the cache key of a preview of the given URL with the given {@link PreviewOptions}.
+	 *
+	 * @param urlKey
+	 *            The key of the URL as returned by {@link ResolvedUrlCache#key(android.net.Uri)}.
+	 * @param options
+	 *            The {@link PreviewOptions} or <code>null</code>.
+	 * @return The cache key.
+	 */
+	public static String key(String urlKey, PreviewOptions options)
+	{
+		return options == null ? urlKey : urlKey + "#" + options.key();
+	}
+
+
+	/**
+	 * Returns the fraction of a cache to retain when {@link ComponentCallbacks2#onTrimMemory(int)} has been called with the given level.
+	 *
+	 * @param level
+	 *            The trim memory level.
+	 * @return The fraction of the cache to keep, between <code>0</code> and <code>1</code>.
+	 */
+	static float retainFraction(int level)
+	{
+		if (level >= TRIM_MEMORY_COMPLETE)
+		{
+			return 0f;
+		}
+		if (level >= TRIM_MEMORY_MODERATE)
+		{
+			return 0.25f;
+		}
+		if (level >= TRIM_MEMORY_UI_HIDDEN)
+		{
+			return 0.5f;
+		}
+		if (level >= TRIM_MEMORY_RUNNING_CRITICAL)
+		{
+			return 0.25f;
+		}
+		if (level >= TRIM_MEMORY_RUNNING_LOW)
+		{
+			return 0.5f;
+		}
+		if (level >= TRIM_MEMORY_RUNNING_MODERATE)
+		{
+			return 0.75f;
+		}
+		return 1f;
+	}
+
+
+	/**
+	 * Constructor for {@link PreviewCache}.
+	 *
+	 * @param maxSize
+	 *            The maximum number of bytes to cache.
+	 */
+	PreviewCache(int maxSize)
+	{
+		mMaxSize = maxSize;
+	}
+
+
+	/**
+	 * Set the {@link EvictionListener} that's notified when entries are evicted to make room for other entries. Entries released in response to memory trim
+	 * requests are not reported.
+	 *
+	 * @param listener
+	 *            The {@link EvictionListener} or <code>null</code>.
+	 */
+	public synchronized void setEvictionListener(EvictionListener listener)
+	{
+		mEvictionListener = listener;
+	}
+
+
+	/**
+	 * Returns the cached preview for the given key.
+	 *
+	 * @param key
+	 *            The cache key.
+	 * @return The cached {@link Entry} or <code>null</code> if there is no such preview in the cache.
+	 */
+	public synchronized Entry get(String key)
+	{
+		Entry entry = mEntries.get(key);
+		if (entry != null)
+		{
+			mHitCount++;
+		}
+		else
+		{
+			mMissCount++;
+		}
+		return entry;
+	}
+
+
+	/**
+	 * Add a preview to the cache.
+	 *
+	 * @param urlKey
+	 *            The key of the URL as returned by {@link ResolvedUrlCache#key(android.net.Uri)}.
+	 * @param options
+	 *            The {@link PreviewOptions} the preview has been decoded with or <code>null</code> if it's in full size.
+	 * @param bitmap
+	 *            The preview {@link Bitmap}.
+	 * @param version
+	 *            The version of the preview or <code>null</code> if the resolver didn't return a version.
+	 */
+	public synchronized void put(String urlKey, PreviewOptions options, Bitmap bitmap, String version)
+	{
+		put(urlKey, options, bitmap, version, System.currentTimeMillis());
+	}
+
+
+	/**
+	 * Add a preview that has been validated before to the cache, keeping the time of the validation.
+	 *
+	 * @param urlKey
+	 *            The key of the URL as returned by {@link ResolvedUrlCache#key(android.net.Uri)}.
+	 * @param options
+	 *            The {@link PreviewOptions} the preview has been decoded with or <code>null</code> if it's in full size.
+	 * @param bitmap
+	 *            The preview {@link Bitmap}.
+	 * @param version
+	 *            The version of the preview or <code>null</code> if the resolver didn't return a version.
+	 * @param validated
+	 *            The time of the last validation of the preview.
+	 * @return <code>true</code> if the preview has been added, <code>false</code> if it's too large for this cache.
+	 */
+	public synchronized boolean restore(String urlKey, PreviewOptions options, Bitmap bitmap, String version, long validated)
+	{
+		put(urlKey, options, bitmap, version, validated);
+		return bitmap.getByteCount() <= mMaxSize;
+	}
+
+
+	private Entry put(String urlKey, PreviewOptions options, Bitmap bitmap, String version, long validated)
+	{
+		// keep a copy, the options of the caller may change
+		PreviewOptions optionsCopy = options == null ? null : new PreviewOptions(options.getWidth(), options.getHeight()).setCropMode(options.getCropMode());
+		Entry entry = new Entry(urlKey, optionsCopy, bitmap, version, validated);
+
+		int size = bitmap.getByteCount();
+		if (size > mMaxSize)
+		{
+			// this would evict everything else
+			return entry;
+		}
+
+		Entry previous = mEntries.put(key(urlKey, options), entry);
+		if (previous != null)
+		{
+			mSize -= previous.bitmap.getByteCount();
+			removeVariant(previous);
+		}
+
+		List<Entry> variants = mVariants.get(urlKey);
+		if (variants == null)
+		{
+			variants = new ArrayList<Entry>(2);
+			mVariants.put(urlKey, variants);
+		}
+		variants.add(entry);
+
+		mSize += size;
+		trim(mMaxSize, mEvictionListener);
+		return entry;
+	}
+
+
+	/**
+	 * Returns a preview in the size of the given {@link PreviewOptions}, downscaled from the smallest cached variant that's large enough. The result is cached
+	 * and inherits version and validation time from the variant it has been created from.
+	 * <p>
+	 * This scales a {@link Bitmap} in memory, which is much cheaper than decoding the preview again but not free.
+	 * </p>
+	 *
+	 * @param urlKey
+	 *            The key of the URL as returned by {@link ResolvedUrlCache#key(android.net.Uri)}.
+	 * @param options
+	 *            The {@link PreviewOptions} of the requested preview.
+	 * @return The new {@link Entry}, the {@link Entry} of the variant if it doesn't need to be scaled or <code>null</code> if no cached variant is large
+	 *         enough.
+	 */
+	public Entry getScaledVariant(String urlKey, PreviewOptions options)
+	{
+		Entry best = null;
+		Rect bestRegion = null;
+		synchronized (this)
+		{
+			List<Entry> variants = mVariants.get(urlKey);
+			if (variants == null)
+			{
+				return null;
+			}
+
+			for (Entry variant : variants)
+			{
+				Rect region = region(variant, options);
+				if (region != null && region.width() >= options.getWidth() && region.height() >= options.getHeight()
+					&& (best == null || area(variant) < area(best)))
+				{
+					best = variant;
+					bestRegion = region;
+				}
+			}
+		}
+
+		if (best == null)
+		{
+			return null;
+		}
+
+		// scale outside of the lock, this may take a few milliseconds
+		Bitmap bitmap = ImagePreviewDecoder.scale(best.bitmap, bestRegion, options);
+		if (bitmap == best.bitmap)
+		{
+			// the variant fits as it is, don't store the same bitmap twice, just mark it as used
+			synchronized (this)
+			{
+				mEntries.get(key(best.urlKey, best.options));
+			}
+			return best;
+		}
+		synchronized (this)
+		{
+			long validated;
+			synchronized (best)
+			{
+				validated = best.validated;
+			}
+			return put(urlKey, options, bitmap, best.version, validated);
+		}
+	}
+
+
+	/**
+	 * Returns the largest cached variant that shows the same part of the preview as requested by the given {@link PreviewOptions} but is too small. It can be
+	 * shown until the requested preview has been loaded.
+	 *
+	 * @param urlKey
+	 *            The key of the URL as returned by {@link ResolvedUrlCache#key(android.net.Uri)}.
+	 * @param options
+	 *            The {@link PreviewOptions} of the requested preview.
+	 * @return The {@link Entry} of the variant or <code>null</code> if there is no such variant.
+	 */
+	public synchronized Entry getSmallerVariant(String urlKey, PreviewOptions options)
+	{
+		List<Entry> variants = mVariants.get(urlKey);
+		if (variants == null)
+		{
+			return null;
+		}
+
+		Entry best = null;
+		for (Entry variant : variants)
+		{
+			// only variants that show the entire requested region are suitable
+			if (variant.options != null && region(variant, options) != null && (best == null || area(variant) > area(best)))
+			{
+				best = variant;
+			}
+		}
+		return best;
+	}
+
+
+	/**
+	 * Returns the region of the {@link Bitmap} of the given variant that shows what's requested by the given {@link PreviewOptions} or <code>null</code> if
+	 * the variant has been cropped differently.
+	 */
+	private static Rect region(Entry variant, PreviewOptions options)
+	{
+		int width = variant.bitmap.getWidth();
+		int height = variant.bitmap.getHeight();
+		if (variant.options == null || variant.options.getCropMode() == CropMode.NONE)
+		{
+			// the variant shows the entire image, so it can be cropped like the original
+			return ImagePreviewDecoder.cropRegion(width, height, options);
+		}
+		if (variant.options.getCropMode() == options.getCropMode()
+			&& (long) variant.options.getWidth() * options.getHeight() == (long) variant.options.getHeight() * options.getWidth())
+		{
+			// same crop, just another size
+			return new Rect(0, 0, width, height);
+		}
+		return null;
+	}
+
+
+	private static long area(Entry entry)
+	{
+		return (long) entry.bitmap.getWidth() * entry.bitmap.getHeight();
+	}
+
+
+	private void removeVariant(Entry entry)
+	{
+		List<Entry> variants = mVariants.get(entry.urlKey);
+		if (variants != null)
+		{
+			variants.remove(entry);
+			if (variants.isEmpty())
+			{
+				mVariants.remove(entry.urlKey);
+			}
+		}
+	}
+
+
+	/**
+	 * Evict the least recently used entries until the cache size is at most the given number of bytes.
+	 *
+	 * @param size
+	 *            The maximum size of the cache after this call.
+	 * @return The number of bytes that have been evicted.
+	 */
+	public synchronized int trimToSize(int size)
+	{
+		return trim(size, null);
+	}
+
+
+	private int trim(int size, EvictionListener listener)
+	{
+		int trimmed = 0;
+		Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+		while (mSize > size && iterator.hasNext())
+		{
+			Map.Entry<String, Entry> mapEntry = iterator.next();
+			Entry entry = mapEntry.getValue();
+			int entrySize = entry.bitmap.getByteCount();
+			iterator.remove();
+			removeVariant(entry);
+			if (listener != null)
+			{
+				listener.onEvicted(mapEntry.getKey(), entry);
+			}
+			mSize -= entrySize;
+			trimmed += entrySize;
+		}
+		return trimmed;
+	}
+
+
+	public synchronized int size()
+	{
+		return mSize;
+	}
+
+
+	public int maxSize()
+	{
+		return mMaxSize;
+	}
+
+
+	public synchronized int hitCount()
+	{
+		return mHitCount;
+	}
+
+
+	public synchronized int missCount()
+	{
+		return mMissCount;
+	}
+
+
+	/**
+	 * Returns the total number of bytes that have been released in response to memory trim requests.
+	 *
+	 * @return The number of trimmed bytes.
+	 */
+	public synchronized long trimmedBytes()
+	{
+		return mTrimmedBytes;
+	}
+
+
+	@Override
+	public synchronized void onTrimMemory(int level)
+	{
+		mTrimmedBytes += trimToSize((int) (mSize * retainFraction(level)));
+	}
+
+
+	@Override
+	public synchronized void onLowMemory()
+	{
+		mTrimmedBytes += trimToSize(0);
+	}
+
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig)
+	{
+		// nothing to do
+	}
+}
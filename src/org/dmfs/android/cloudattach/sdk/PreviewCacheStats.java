@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+/**
+ * A snapshot of the state of the preview memory cache, its compressed tier, the disk cache, the bitmap pool and the preview loader. Get an instance by calling
+ * {@link PreviewUtils#getCacheStats(android.content.Context)}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class PreviewCacheStats
+{
+	private final int mHitCount;
+	private final int mMissCount;
+	private final int mCacheSize;
+	private final int mCacheMaxSize;
+	private final long mCacheTrimmedBytes;
+	private final int mCompressedHitCount;
+	private final int mCompressedMissCount;
+	private final int mCompressedSize;
+	private final int mCompressedMaxSize;
+	private final long mCompressedTrimmedBytes;
+	private final int mDiskHitCount;
+	private final int mDiskMissCount;
+	private final long mDiskSize;
+	private final long mDiskMaxSize;
+	private final int mPoolSize;
+	private final int mPoolMaxSize;
+	private final long mPoolTrimmedBytes;
+	private final int mLoadConcurrencyLimit;
+	private final int mRunningLoads;
+	private final int mQueuedLoads;
+
+
+	PreviewCacheStats(PreviewCache cache, CompressedPreviewCache compressedCache, DiskPreviewCache diskCache, BitmapPool pool, PreviewScheduler scheduler)
+	{
+		synchronized (cache)
+		{
+			mHitCount = cache.hitCount();
+			mMissCount = cache.missCount();
+			mCacheSize = cache.size();
+			mCacheMaxSize = cache.maxSize();
+			mCacheTrimmedBytes = cache.trimmedBytes();
+		}
+		synchronized (compressedCache)
+		{
+			mCompressedHitCount = compressedCache.hitCount();
+			mCompressedMissCount = compressedCache.missCount();
+			mCompressedSize = compressedCache.size();
+			mCompressedMaxSize = compressedCache.maxSize();
+			mCompressedTrimmedBytes = compressedCache.trimmedBytes();
+		}
+		synchronized (diskCache)
+		{
+			mDiskHitCount = diskCache.hitCount();
+			mDiskMissCount = diskCache.missCount();
+			mDiskSize = diskCache.size();
+			mDiskMaxSize = diskCache.maxSize();
+		}
+		synchronized (pool)
+		{
+			mPoolSize = pool.size();
+			mPoolMaxSize = pool.maxSize();
+			mPoolTrimmedBytes = pool.trimmedBytes();
+		}
+		synchronized (scheduler)
+		{
+			mLoadConcurrencyLimit = scheduler.concurrencyLimit();
+			mRunningLoads = scheduler.runningCount();
+			mQueuedLoads = scheduler.queuedCount();
+		}
+	}
+
+
+	/**
+	 * Returns the number of previews that have been served from the memory cache.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public int getHitCount()
+	{
+		return mHitCount;
+	}
+
+
+	/**
+	 * Returns the number of previews that were not found in the memory cache.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public int getMissCount()
+	{
+		return mMissCount;
+	}
+
+
+	/**
+	 * Returns the number of bytes currently held by the memory cache.
+	 *
+	 * @return The cache size in bytes.
+	 */
+	public int getCacheSize()
+	{
+		return mCacheSize;
+	}
+
+
+	/**
+	 * Returns the maximum number of bytes the memory cache may hold.
+	 *
+	 * @return The maximum cache size in bytes.
+	 */
+	public int getCacheMaxSize()
+	{
+		return mCacheMaxSize;
+	}
+
+
+	/**
+	 * Returns the total number of bytes the memory cache has released in response to memory trim requests.
+	 *
+	 * @return The number of trimmed bytes.
+	 */
+	public long getCacheTrimmedBytes()
+	{
+		return mCacheTrimmedBytes;
+	}
+
+
+	/**
+	 * Returns the number of previews that were not found in the memory cache but could be restored from their compressed form.
+	 *
+	 * @return The number of hits in the compressed tier.
+	 */
+	public int getCompressedHitCount()
+	{
+		return mCompressedHitCount;
+	}
+
+
+	/**
+	 * Returns the number of previews that were found neither in the memory cache nor in its compressed tier.
+	 *
+	 * @return The number of misses in the compressed tier.
+	 */
+	public int getCompressedMissCount()
+	{
+		return mCompressedMissCount;
+	}
+
+
+	/**
+	 * Returns the number of bytes of compressed previews currently held by the compressed tier of the memory cache.
+	 *
+	 * @return The size of the compressed tier in bytes.
+	 */
+	public int getCompressedSize()
+	{
+		return mCompressedSize;
+	}
+
+
+	/**
+	 * Returns the maximum number of bytes the compressed tier of the memory cache may hold.
+	 *
+	 * @return The maximum size of the compressed tier in bytes.
+	 */
+	public int getCompressedMaxSize()
+	{
+		return mCompressedMaxSize;
+	}
+
+
+	/**
+	 * Returns the total number of bytes the compressed tier of the memory cache has released in response to memory trim requests.
+	 *
+	 * @return The number of trimmed bytes.
+	 */
+	public long getCompressedTrimmedBytes()
+	{
+		return mCompressedTrimmedBytes;
+	}
+
+
+	/**
+	 * Returns the number of previews that were not found in memory but in the disk cache.
+	 *
+	 * @return The number of hits in the disk cache.
+	 */
+	public int getDiskHitCount()
+	{
+		return mDiskHitCount;
+	}
+
+
+	/**
+	 * Returns the number of previews that were not found in any cache.
+	 *
+	 * @return The number of misses in the disk cache.
+	 */
+	public int getDiskMissCount()
+	{
+		return mDiskMissCount;
+	}
+
+
+	/**
+	 * Returns the number of bytes of previews currently stored in the disk cache.
+	 *
+	 * @return The size of the disk cache in bytes.
+	 */
+	public long getDiskSize()
+	{
+		return mDiskSize;
+	}
+
+
+	/**
+	 * Returns the maximum number of bytes the disk cache may hold.
+	 *
+	 * @return The maximum size of the disk cache in bytes.
+	 */
+	public long getDiskMaxSize()
+	{
+		return mDiskMaxSize;
+	}
+
+
+	/**
+	 * Returns the number of bytes currently held by the bitmap pool.
+	 *
+	 * @return The pool size in bytes.
+	 */
+	public int getPoolSize()
+	{
+		return mPoolSize;
+	}
+
+
+	/**
+	 * Returns the maximum number of bytes the bitmap pool may hold.
+	 *
+	 * @return The maximum pool size in bytes.
+	 */
+	public int getPoolMaxSize()
+	{
+		return mPoolMaxSize;
+	}
+
+
+	/**
+	 * Returns the total number of bytes the bitmap pool has released in response to memory trim requests.
+	 *
+	 * @return The number of trimmed bytes.
+	 */
+	public long getPoolTrimmedBytes()
+	{
+		return mPoolTrimmedBytes;
+	}
+
+
+	/**
+	 * Returns the number of previews that may be loaded at the same time. This limit is adapted to the observed latency and throughput of the preview
+	 * providers.
+	 *
+	 * @return The current concurrency limit.
+	 */
+	public int getLoadConcurrencyLimit()
+	{
+		return mLoadConcurrencyLimit;
+	}
+
+
+	/**
+	 * Returns the number of previews that are being loaded right now.
+	 *
+	 * @return The number of running loads.
+	 */
+	public int getRunningLoads()
+	{
+		return mRunningLoads;
+	}
+
+
+	/**
+	 * Returns the number of previews that are waiting to be loaded.
+	 *
+	 * @return The number of queued loads.
+	 */
+	public int getQueuedLoads()
+	{
+		return mQueuedLoads;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+
+/**
+ * Interface of a decoder that turns the content of a preview {@link Uri} into a {@link Bitmap}. The decoder is selected by the MIME type of the content, which
+ * is determined before any data is read. Register custom decoders with {@link CloudAttachClient.Builder#addDecoder(PreviewDecoder)}.
+ * <p>
+ * Decoders are called on a background thread.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public interface PreviewDecoder
+{
+	/**
+	 * Returns whether this decoder can decode content of the given MIME type.
+	 *
+	 * @param mimeType
+	 *            The MIME type of the content, like <code>image/jpeg</code>.
+	 * @return <code>true</code> if this decoder should be used for the content.
+	 */
+	abstract boolean canDecode(String mimeType);
+
+
+	/**
+	 * Decode a preview of the content of the given {@link Uri}.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @param uri
+	 *            The content {@link Uri} of the preview.
+	 * @param mimeType
+	 *            The MIME type of the content.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> to decode the preview in full size.
+	 * @return The decoded {@link Bitmap}, never <code>null</code>.
+	 * @throws IOException
+	 *             if the content could not be read. Reading is retried according to the {@link RetryPolicy} of the client.
+	 * @throws DecodingBitmapException
+	 *             if the content could not be decoded.
+	 */
+	abstract Bitmap decode(Context context, Uri uri, String mimeType, PreviewOptions options) throws IOException, DecodingBitmapException;
+
+}
@@ -17,21 +17,22 @@
 
 package org.dmfs.android.cloudattach.sdk;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
 
 import org.dmfs.android.cloudattach.sdk.PreviewLoaderTask.Preview;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 
 
 /**
- * Background task to load a preview from the given content {@link Uri}.
+ * Background task to load a preview from the given content {@link Uri}. The preview is decoded by the {@link PreviewDecoder} for the type of the content.
  * 
  * @author Tristan Heinig <tristan@dmfs.org>
  * @author Marten Gajda <marten@dmfs.org>
@@ -40,6 +41,13 @@ public class PreviewLoaderTask extends AsyncTask<Preview, Void, Preview>
 {
 	private WeakReference<Context> mContext;
 	private WeakReference<PreviewLoaderCallback> mCallbackRef;
+	private final PreviewOptions mOptions;
+	private String mUrlKey;
+	private String mVersion;
+	private PreviewCache.Entry mStale;
+	private RetryPolicy mRetryPolicy = RetryPolicy.NONE;
+	private CloudAttachClient mClient;
+	private Preview mRequest;
 
 	/**
 	 * Internal helper to store request and result.
@@ -48,8 +56,9 @@ public class PreviewLoaderTask extends AsyncTask<Preview, Void, Preview>
 	{
 		public final long id;
 		public final Uri uri;
-		private AssetFileDescriptor fileDescriptor;
+		private Bitmap bitmap;
 		private Exception error;
+		private boolean unchanged;
 
 
 		public Preview(long id, Uri uri)
@@ -77,6 +86,22 @@ public class PreviewLoaderTask extends AsyncTask<Preview, Void, Preview>
 	 *            Handler for result and errors, must not be <code>null</code>.
 	 */
 	public PreviewLoaderTask(Context context, PreviewLoaderCallback callback)
+	{
+		this(context, null, callback);
+	}
+
+
+	/**
+	 * Constructor for {@link PreviewLoaderTask}.
+	 * 
+	 * @param context
+	 *            A {@link Context}.
+	 * @param options
+	 *            The {@link PreviewOptions} that determine size and crop mode of the preview or <code>null</code> to load the preview in full size.
+	 * @param callback
+	 *            Handler for result and errors, must not be <code>null</code>.
+	 */
+	public PreviewLoaderTask(Context context, PreviewOptions options, PreviewLoaderCallback callback)
 	{
 		if (context == null)
 		{
@@ -89,6 +114,67 @@ public class PreviewLoaderTask extends AsyncTask<Preview, Void, Preview>
 
 		mContext = new WeakReference<Context>(context);
 		mCallbackRef = new WeakReference<PreviewLoaderCallback>(callback);
+		mOptions = options;
+	}
+
+
+	/**
+	 * Set the {@link CloudAttachClient} whose caches and metrics this task uses. By default the default client is used.
+	 * 
+	 * @param client
+	 *            The {@link CloudAttachClient}.
+	 * @return This instance.
+	 */
+	PreviewLoaderTask setClient(CloudAttachClient client)
+	{
+		mClient = client;
+		return this;
+	}
+
+
+	/**
+	 * Set the key of the URL to store the loaded preview under in the {@link PreviewCache}. By default the result is not cached.
+	 * 
+	 * @param urlKey
+	 *            The key of the URL as returned by {@link ResolvedUrlCache#key(Uri)}.
+	 * @param version
+	 *            The version of the preview as returned by the resolver, may be <code>null</code>.
+	 * @return This instance.
+	 */
+	PreviewLoaderTask setUrlKey(String urlKey, String version)
+	{
+		mUrlKey = urlKey;
+		mVersion = version;
+		return this;
+	}
+
+
+	/**
+	 * Make this task revalidate the given stale cache entry. The callback is only called if the loaded preview differs from the stale one. Errors are not
+	 * reported.
+	 * 
+	 * @param stale
+	 *            The stale {@link PreviewCache.Entry}.
+	 * @return This instance.
+	 */
+	PreviewLoaderTask setStaleEntry(PreviewCache.Entry stale)
+	{
+		mStale = stale;
+		return this;
+	}
+
+
+	/**
+	 * Set the {@link RetryPolicy} for failures to read the preview from the provider. By default failures are not retried.
+	 * 
+	 * @param retryPolicy
+	 *            The {@link RetryPolicy}.
+	 * @return This instance.
+	 */
+	PreviewLoaderTask setRetryPolicy(RetryPolicy retryPolicy)
+	{
+		mRetryPolicy = retryPolicy;
+		return this;
 	}
 
 
@@ -108,7 +194,32 @@ public class PreviewLoaderTask extends AsyncTask<Preview, Void, Preview>
 			throw new IllegalArgumentException("uri must not be null");
 		}
 
-		execute(new Preview(id, uri));
+		mRequest = new Preview(id, uri);
+		execute(mRequest);
+		return this;
+	}
+
+
+	/**
+	 * Execute this task for the given uri on the given {@link Executor}.
+	 * 
+	 * @param executor
+	 *            The {@link Executor} to run the task on.
+	 * @param id
+	 *            An id for reference. This will be returned to the callback when the preview was loaded or in case of an error.
+	 * @param uri
+	 *            The {@link Uri} to load the preview from.
+	 * @return This instance.
+	 */
+	PreviewLoaderTask execute(Executor executor, long id, Uri uri)
+	{
+		if (uri == null)
+		{
+			throw new IllegalArgumentException("uri must not be null");
+		}
+
+		mRequest = new Preview(id, uri);
+		executeOnExecutor(executor, mRequest);
 		return this;
 	}
 
@@ -130,18 +241,101 @@ public class PreviewLoaderTask extends AsyncTask<Preview, Void, Preview>
 			return preview;
 		}
 
+		CloudAttachClient client = mClient == null ? CloudAttachClient.getDefault(context) : mClient;
+		long start = SystemClock.elapsedRealtime();
 		try
 		{
-			preview.fileDescriptor = context.getContentResolver().openAssetFileDescriptor(preview.uri, "r");
+			preview.bitmap = decodeWithRetry(context, client, preview.uri);
+			if (mStale != null && mStale.bitmap.sameAs(preview.bitmap))
+			{
+				// the preview didn't change, keep the cached one
+				mStale.validate();
+				client.bitmapPool().put(preview.bitmap);
+				preview.bitmap = null;
+				preview.unchanged = true;
+			}
+			else if (mUrlKey != null)
+			{
+				client.previewCache().put(mUrlKey, mOptions, preview.bitmap, mVersion);
+				client.persist(mUrlKey, mOptions, preview.bitmap, mVersion);
+			}
 		}
-		catch (FileNotFoundException e)
+		catch (IOException e)
 		{
 			preview.error = e;
 		}
+		catch (DecodingBitmapException e)
+		{
+			preview.error = e;
+		}
+		catch (OutOfMemoryError e)
+		{
+			preview.error = new DecodingBitmapException("Not enough memory to decode the preview.");
+		}
+		client.metrics().onPreviewLoaded(preview.uri.getAuthority(), SystemClock.elapsedRealtime() - start, preview.error != null);
 		return preview;
 	}
 
 
+	/**
+	 * Decode the preview, retrying according to the {@link RetryPolicy} if the provider fails to deliver the data. Decoding errors are not retried.
+	 * <p>
+	 * The {@link PreviewDecoder} is selected by the MIME type of the content before any data is read, so unsupported content is rejected early. Local
+	 * content is served from precomputed thumbnails if possible.
+	 * </p>
+	 */
+	private Bitmap decodeWithRetry(Context context, CloudAttachClient client, Uri uri) throws IOException, DecodingBitmapException
+	{
+		if (LocalThumbnails.isLocal(uri))
+		{
+			Bitmap thumbnail = LocalThumbnails.load(context, uri, mOptions);
+			if (thumbnail != null)
+			{
+				return thumbnail;
+			}
+		}
+
+		long start = SystemClock.elapsedRealtime();
+		int attempts = 0;
+		PreviewDecoder decoder = null;
+		String mimeType = null;
+		while (true)
+		{
+			try
+			{
+				if (decoder == null)
+				{
+					mimeType = MimeTypeSniffer.getType(context.getContentResolver(), uri);
+					decoder = client.decoderFor(mimeType);
+					if (decoder == null)
+					{
+						throw new DecodingBitmapException("Unsupported preview type " + mimeType);
+					}
+				}
+				return decoder.decode(context, uri, mimeType, mOptions);
+			}
+			catch (IOException e)
+			{
+				// the provider may still be starting up or waiting for the network
+				long delay = mRetryPolicy.nextDelay(++attempts, SystemClock.elapsedRealtime() - start);
+				if (delay < 0 || isCancelled())
+				{
+					throw e;
+				}
+
+				try
+				{
+					Thread.sleep(delay);
+				}
+				catch (InterruptedException interrupted)
+				{
+					throw e;
+				}
+			}
+		}
+	}
+
+
 	@Override
 	protected void onPostExecute(Preview preview)
 	{
@@ -152,27 +346,35 @@ public class PreviewLoaderTask extends AsyncTask<Preview, Void, Preview>
 			return;
 		}
 
-		if (preview.error != null)
+		if (preview.unchanged)
 		{
-			callback.onError(preview.id, preview.error);
+			// the callback already has this preview
 			return;
 		}
 
-		if (preview.fileDescriptor == null)
+		if (preview.error != null)
 		{
-			// is this even possible?
-			callback.onError(preview.id, new FileNotFoundException("asset file descriptor was null"));
+			if (mStale == null)
+			{
+				callback.onError(preview.id, preview.error);
+			}
+			// else: the callback already has the stale preview, keep it
 			return;
 		}
 
-		Bitmap bitmap = BitmapFactory.decodeFileDescriptor(preview.fileDescriptor.getFileDescriptor());
-		if (bitmap == null)
+		callback.onPreviewLoaded(preview.id, preview.bitmap);
+	}
+
+
+	@Override
+	protected void onCancelled(Preview preview)
+	{
+		// for instance because the executor rejected the task, don't leave the callback waiting
+		PreviewLoaderCallback callback = mCallbackRef.get();
+		if (callback != null && mRequest != null && mStale == null)
 		{
-			callback.onError(preview.id, new DecodingBitmapException("Could not decode FileDescriptor to Bitmap."));
-			return;
+			callback.onError(mRequest.id, new CancellationException("Loading the preview has been cancelled."));
 		}
-
-		callback.onPreviewLoaded(preview.id, bitmap);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+/**
+ * Describes how a preview should be loaded. Previews are decoded at the smallest size that still covers the requested dimensions. With a {@link CropMode}
+ * other than {@link CropMode#NONE} only the part of the image that's actually shown is decoded.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class PreviewOptions
+{
+	/**
+	 * The part of the image to decode if the aspect ratio of the image doesn't match the requested aspect ratio.
+	 */
+	public enum CropMode
+	{
+		/**
+		 * Decode the entire image.
+		 */
+		NONE,
+
+		/**
+		 * Decode the center of the image only.
+		 */
+		CENTER,
+
+		/**
+		 * Decode the top of the image only (horizontally centered). Useful for document previews.
+		 */
+		TOP;
+	}
+
+	private final int mWidth;
+	private final int mHeight;
+	private CropMode mCropMode = CropMode.NONE;
+
+
+	/**
+	 * Constructor for {@link PreviewOptions}.
+	 *
+	 * @param width
+	 *            The width of the preview in pixels.
+	 * @param height
+	 *            The height of the preview in pixels.
+	 */
+	public PreviewOptions(int width, int height)
+	{
+		if (width <= 0 || height <= 0)
+		{
+			throw new IllegalArgumentException("Preview dimensions must be positive.");
+		}
+		mWidth = width;
+		mHeight = height;
+	}
+
+
+	/**
+	 * Set the {@link CropMode} of the preview. The default is {@link CropMode#NONE}.
+	 *
+	 * @param cropMode
+	 *            The {@link CropMode}, must not be <code>null</code>.
+	 * @return This instance.
+	 */
+	public PreviewOptions setCropMode(CropMode cropMode)
+	{
+		if (cropMode == null)
+		{
+			throw new IllegalArgumentException("CropMode must not be null.");
+		}
+		mCropMode = cropMode;
+		return this;
+	}
+
+
+	/**
+	 * Returns the requested width of the preview in pixels.
+	 *
+	 * @return The width.
+	 */
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+
+	/**
+	 * Returns the requested height of the preview in pixels.
+	 *
+	 * @return The height.
+	 */
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+
+	/**
+	 * Returns the {@link CropMode} of the preview.
+	 *
+	 * @return The {@link CropMode}.
+	 */
+	public CropMode getCropMode()
+	{
+		return mCropMode;
+	}
+
+
+	/**
+	 * Returns a {@link String} that identifies the size and crop mode of these options. Two previews of the same {@link android.net.Uri} with options
+	 * returning the same key are identical.
+	 *
+	 * @return The key.
+	 */
+	String key()
+	{
+		return mWidth + "x" + mHeight + (mCropMode == CropMode.NONE ? "" : ":" + mCropMode.name());
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+
+
+/**
+ * A headless {@link Fragment} that keeps preview requests alive across configuration changes. In-flight requests continue while the {@link Activity} is
+ * recreated and their results are delivered to the callback of the new {@link Activity}. Results that arrive while no callback is attached are kept until a
+ * callback is set.
+ * <p>
+ * Interim previews are forwarded only to callbacks that implement {@link InterimPreviewLoaderCallback} and are not kept while no callback is attached. They
+ * don't complete a request.
+ * </p>
+ *
+ * <h2>Example</h2>
+ *
+ * <pre>
+ * <code>
+ * protected void onCreate(Bundle savedInstanceState)
+ * {
+ * 	super.onCreate(savedInstanceState);
+ * 	mPreviewRequests = PreviewRequestFragment.get(this);
+ * 	mPreviewRequests.setCallback(mPreviewCallback);
+ * }
+ *
+ * ...
+ *
+ * mPreviewRequests.getPreview(0, "https://db.tt/g8RaiVYH", null);
+ * </code>
+ * </pre>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class PreviewRequestFragment extends Fragment implements InterimPreviewLoaderCallback
+{
+	private final static String TAG = PreviewRequestFragment.class.getName();
+
+	/**
+	 * Internal helper to store a result until a callback is attached.
+	 */
+	private final static class Result
+	{
+		public final Bitmap preview;
+		public final Exception error;
+
+
+		public Result(Bitmap preview, Exception error)
+		{
+			this.preview = preview;
+			this.error = error;
+		}
+	}
+
+	private final Set<Long> mInFlight = new HashSet<Long>();
+	private final Map<Long, Result> mPendingResults = new LinkedHashMap<Long, Result>();
+	private PreviewLoaderCallback mCallback;
+	private Context mAppContext;
+
+
+	/**
+	 * Returns the {@link PreviewRequestFragment} of the given {@link Activity}, adding a new one if the {@link Activity} doesn't have one yet.
+	 *
+	 * @param activity
+	 *            The {@link Activity}.
+	 * @return The {@link PreviewRequestFragment}.
+	 */
+	public static PreviewRequestFragment get(Activity activity)
+	{
+		FragmentManager fragmentManager = activity.getFragmentManager();
+		PreviewRequestFragment fragment = (PreviewRequestFragment) fragmentManager.findFragmentByTag(TAG);
+		if (fragment == null)
+		{
+			fragment = new PreviewRequestFragment();
+			fragmentManager.beginTransaction().add(fragment, TAG).commit();
+			// make sure subsequent calls find this instance
+			fragmentManager.executePendingTransactions();
+		}
+		return fragment;
+	}
+
+
+	@Override
+	public void onAttach(Activity activity)
+	{
+		super.onAttach(activity);
+		// requests must not hold on to the Activity, they outlive it
+		mAppContext = activity.getApplicationContext();
+	}
+
+
+	@Override
+	public void onCreate(Bundle savedInstanceState)
+	{
+		super.onCreate(savedInstanceState);
+		setRetainInstance(true);
+	}
+
+
+	@Override
+	public void onDetach()
+	{
+		super.onDetach();
+		// don't leak the old Activity, results will be kept until a new callback has been set
+		mCallback = null;
+	}
+
+
+	/**
+	 * Set the callback to deliver results to. Any results that arrived while no callback was set are delivered immediately.
+	 *
+	 * @param callback
+	 *            The {@link PreviewLoaderCallback} or <code>null</code> to keep results until a callback is set.
+	 */
+	public void setCallback(PreviewLoaderCallback callback)
+	{
+		mCallback = callback;
+		if (callback == null)
+		{
+			return;
+		}
+
+		Iterator<Map.Entry<Long, Result>> iterator = mPendingResults.entrySet().iterator();
+		while (iterator.hasNext() && mCallback == callback)
+		{
+			Map.Entry<Long, Result> entry = iterator.next();
+			iterator.remove();
+			deliver(entry.getKey(), entry.getValue());
+		}
+	}
+
+
+	/**
+	 * Loads a preview for an attachment, unless a request with the same id is already in progress. The attachment URL is taken from the result {@link Intent}
+	 * of a former {@link AttachmentUtils#startAttachmentActivity()} call.
+	 *
+	 * @param id
+	 *            An id that identifies the request.
+	 * @param activityResultIntent
+	 *            Result of the former {@link AttachmentUtils#startAttachmentActivity()} call.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> to load the preview in full size.
+	 */
+	public void getPreview(long id, Intent activityResultIntent, PreviewOptions options)
+	{
+		getPreview(id, AttachmentUtils.getUrlFromResult(activityResultIntent), options);
+	}
+
+
+	/**
+	 * Loads a preview for the given attachment URL, unless a request with the same id is already in progress. See
+	 * {@link PreviewUtils#getPreview(Context, long, String, PreviewOptions, PreviewLoaderCallback)}.
+	 *
+	 * @param id
+	 *            An id that identifies the request.
+	 * @param url
+	 *            URL of the attachment.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> to load the preview in full size.
+	 */
+	public void getPreview(long id, String url, PreviewOptions options)
+	{
+		getPreview(id, Uri.parse(url), options);
+	}
+
+
+	/**
+	 * Loads a preview for the given attachment URL, unless a request with the same id is already in progress. See
+	 * {@link PreviewUtils#getPreview(Context, long, Uri, PreviewOptions, PreviewLoaderCallback)}.
+	 *
+	 * @param id
+	 *            An id that identifies the request.
+	 * @param url
+	 *            URL of the attachment.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> to load the preview in full size.
+	 */
+	public void getPreview(long id, Uri url, PreviewOptions options)
+	{
+		if (mInFlight.contains(id))
+		{
+			// already loading, the result will be delivered to the current callback
+			return;
+		}
+
+		Result pending = mPendingResults.remove(id);
+		if (pending != null)
+		{
+			// the request completed while no callback was attached
+			deliver(id, pending);
+			return;
+		}
+
+		// cached previews are delivered synchronously, so the id must be in flight before the request starts
+		mInFlight.add(id);
+		try
+		{
+			PreviewUtils.getPreview(mAppContext, id, url, options, this);
+		}
+		catch (RuntimeException e)
+		{
+			// the request has not been started, don't block later requests with this id
+			mInFlight.remove(id);
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Drop the request with the given id if it's held back while loading is paused, see {@link CloudAttachClient#cancelPending(PreviewLoaderCallback, long)}.
+	 * A dropped request is not in flight anymore, so it can be started again. Requests that are already loading are not affected.
+	 *
+	 * @param id
+	 *            The id of the request.
+	 */
+	public void cancelPending(long id)
+	{
+		if (mInFlight.contains(id) && CloudAttachClient.getDefault(mAppContext).cancelPending(this, id))
+		{
+			mInFlight.remove(id);
+		}
+	}
+
+
+	/**
+	 * Returns whether a request with the given id is in progress.
+	 *
+	 * @param id
+	 *            The id of the request.
+	 * @return <code>true</code> if the request has not completed yet.
+	 */
+	public boolean isLoading(long id)
+	{
+		return mInFlight.contains(id);
+	}
+
+
+	@Override
+	public void onError(long id, Exception exception)
+	{
+		complete(id, new Result(null, exception));
+	}
+
+
+	@Override
+	public void onNoPreviewAppFound(long id)
+	{
+		complete(id, new Result(null, null));
+	}
+
+
+	@Override
+	public void onPreviewLoaded(long id, Bitmap preview)
+	{
+		complete(id, new Result(preview, null));
+	}
+
+
+	@Override
+	public void onInterimPreviewLoaded(long id, Bitmap preview)
+	{
+		// the request is still in flight, the final result follows
+		if (mInFlight.contains(id) && mCallback instanceof InterimPreviewLoaderCallback)
+		{
+			((InterimPreviewLoaderCallback) mCallback).onInterimPreviewLoaded(id, preview);
+		}
+	}
+
+
+	private void complete(long id, Result result)
+	{
+		mInFlight.remove(id);
+		if (mCallback == null)
+		{
+			mPendingResults.put(id, result);
+			return;
+		}
+		deliver(id, result);
+	}
+
+
+	private void deliver(long id, Result result)
+	{
+		if (result.preview != null)
+		{
+			mCallback.onPreviewLoaded(id, result.preview);
+		}
+		else if (result.error != null)
+		{
+			mCallback.onError(id, result.error);
+		}
+		else
+		{
+			mCallback.onNoPreviewAppFound(id);
+		}
+	}
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+
+/**
+ * Schedules preview loading tasks fairly across preview providers. Each task belongs to a key (the authority of the content {@link android.net.Uri} it loads
+ * from). Only a few tasks of the same key run at the same time and free worker slots are handed out round-robin across keys, so a slow provider can't block
+ * the previews of other providers.
+ * <p>
+ * The total number of tasks that run at the same time is adapted to the observed latency and throughput by a {@link ConcurrencyLimiter}, within the bounds
+ * given to the constructor.
+ * </p>
+ * <p>
+ * If the {@link ExecutorService} rejects a task while other tasks are running, the task is queued again and started when one of them has finished.
+ * Otherwise the task is failed by cancelling it, if it's a {@link Future} (like the tasks of an {@link android.os.AsyncTask}), or dropped.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class PreviewScheduler
+{
+	final static int MIN_CONCURRENT = 1;
+	final static int MAX_CONCURRENT = 8;
+	final static int MAX_PER_KEY = 2;
+
+	/**
+	 * The number of tasks to run at the same time before any latency has been observed.
+	 */
+	private final static int INITIAL_CONCURRENT = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private final ConcurrencyLimiter mLimiter;
+	private final int mMaxPerKey;
+	private final ExecutorService mWorkers;
+	private final boolean mOwnsWorkers;
+
+	/**
+	 * The keys with queued tasks in round-robin order.
+	 */
+	private final LinkedList<String> mKeys = new LinkedList<String>();
+	private final Map<String, ArrayDeque<Runnable>> mQueues = new HashMap<String, ArrayDeque<Runnable>>();
+	private final Map<String, Integer> mRunning = new HashMap<String, Integer>();
+	private int mTotalRunning;
+	private boolean mPaused;
+	private boolean mShutdown;
+
+
+	/**
+	 * Constructor for {@link PreviewScheduler} that runs tasks on a cached thread pool with background priority.
+	 *
+	 * @param minConcurrent
+	 *            The lower bound of the number of tasks to run at the same time.
+	 * @param maxConcurrent
+	 *            The upper bound of the number of tasks to run at the same time.
+	 * @param maxPerKey
+	 *            The maximum number of tasks of the same key to run at the same time.
+	 */
+	PreviewScheduler(int minConcurrent, int maxConcurrent, int maxPerKey)
+	{
+		this(minConcurrent, maxConcurrent, maxPerKey, true, Executors.newCachedThreadPool(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, "CloudAttach preview loader");
+			}
+		}));
+	}
+
+
+	/**
+	 * Constructor for {@link PreviewScheduler}.
+	 *
+	 * @param minConcurrent
+	 *            The lower bound of the number of tasks to run at the same time.
+	 * @param maxConcurrent
+	 *            The upper bound of the number of tasks to run at the same time.
+	 * @param maxPerKey
+	 *            The maximum number of tasks of the same key to run at the same time.
+	 * @param workers
+	 *            The {@link ExecutorService} that runs the tasks.
+	 */
+	PreviewScheduler(int minConcurrent, int maxConcurrent, int maxPerKey, ExecutorService workers)
+	{
+		this(minConcurrent, maxConcurrent, maxPerKey, false, workers);
+	}
+
+
+	private PreviewScheduler(int minConcurrent, int maxConcurrent, int maxPerKey, boolean ownsWorkers, ExecutorService workers)
+	{
+		mOwnsWorkers = ownsWorkers;
+		mLimiter = new ConcurrencyLimiter(minConcurrent, maxConcurrent, INITIAL_CONCURRENT);
+		mMaxPerKey = maxPerKey;
+		mWorkers = workers;
+	}
+
+
+	/**
+	 * Returns an {@link Executor} that schedules tasks under the given key.
+	 *
+	 * @param key
+	 *            The key, usually the authority of a content {@link android.net.Uri}.
+	 * @return An {@link Executor}.
+	 */
+	public Executor forKey(final String key)
+	{
+		return new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				PreviewScheduler.this.execute(key == null ? "" : key, command);
+			}
+		};
+	}
+
+
+	/**
+	 * Schedule the given task under the given key.
+	 *
+	 * @param key
+	 *            The key of the task.
+	 * @param task
+	 *            The task to run.
+	 */
+	public synchronized void execute(String key, Runnable task)
+	{
+		ArrayDeque<Runnable> queue = mQueues.get(key);
+		if (queue == null)
+		{
+			queue = new ArrayDeque<Runnable>();
+			mQueues.put(key, queue);
+			mKeys.addLast(key);
+		}
+		queue.addLast(task);
+		dispatch();
+	}
+
+
+	/**
+	 * Pause or resume starting queued tasks. Running tasks are not affected.
+	 *
+	 * @param paused
+	 *            <code>true</code> to hold back queued tasks, <code>false</code> to start them again.
+	 */
+	public synchronized void setPaused(boolean paused)
+	{
+		mPaused = paused;
+		if (!paused)
+		{
+			dispatch();
+		}
+	}
+
+
+	/**
+	 * Shut the scheduler down. Queued tasks are still run, even if the scheduler has been paused. The thread pool of the scheduler is shut down when all tasks
+	 * have been completed. Executors passed to the constructor are not shut down.
+	 */
+	public synchronized void shutdown()
+	{
+		mShutdown = true;
+		setPaused(false);
+		shutdownIfIdle();
+	}
+
+
+	private void shutdownIfIdle()
+	{
+		if (mShutdown && mOwnsWorkers && mTotalRunning == 0 && mKeys.isEmpty())
+		{
+			mWorkers.shutdown();
+		}
+	}
+
+
+	/**
+	 * Start queued tasks as long as there are free slots.
+	 */
+	private synchronized void dispatch()
+	{
+		while (!mPaused)
+		{
+			String key = nextKey();
+			if (key == null)
+			{
+				// all queued tasks belong to keys that are at their limit
+				return;
+			}
+			if (mTotalRunning >= mLimiter.limit())
+			{
+				// a task could run if the limit was higher
+				mLimiter.onLimited();
+				return;
+			}
+
+			ArrayDeque<Runnable> queue = mQueues.get(key);
+			final Runnable task = queue.removeFirst();
+			if (queue.isEmpty())
+			{
+				mQueues.remove(key);
+				mKeys.remove(key);
+			}
+			else
+			{
+				// move the key to the end, so other keys get the next slots
+				mKeys.remove(key);
+				mKeys.addLast(key);
+			}
+
+			final String taskKey = key;
+			Integer running = mRunning.get(key);
+			mRunning.put(key, running == null ? 1 : running + 1);
+			mTotalRunning++;
+
+			try
+			{
+				mWorkers.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						long start = SystemClock.elapsedRealtime();
+						try
+						{
+							task.run();
+						}
+						finally
+						{
+							finished(taskKey, SystemClock.elapsedRealtime() - start);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				release(key);
+				if (mTotalRunning > 0 && !mWorkers.isShutdown())
+				{
+					// the executor is saturated, try again when a running task has finished
+					requeue(key, task);
+					return;
+				}
+				// nothing would retry the task
+				if (task instanceof Future)
+				{
+					((Future<?>) task).cancel(false);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Put a task back to the front of the queue of its key.
+	 */
+	private void requeue(String key, Runnable task)
+	{
+		ArrayDeque<Runnable> queue = mQueues.get(key);
+		if (queue == null)
+		{
+			queue = new ArrayDeque<Runnable>();
+			mQueues.put(key, queue);
+		}
+		else
+		{
+			mKeys.remove(key);
+		}
+		queue.addFirst(task);
+		mKeys.addFirst(key);
+	}
+
+
+	/**
+	 * Free the slot of a task of the given key.
+	 */
+	private void release(String key)
+	{
+		int running = mRunning.get(key) - 1;
+		if (running == 0)
+		{
+			mRunning.remove(key);
+		}
+		else
+		{
+			mRunning.put(key, running);
+		}
+		mTotalRunning--;
+	}
+
+
+	/**
+	 * Returns the first key in round-robin order that has queued tasks and is below its limit.
+	 */
+	private String nextKey()
+	{
+		Iterator<String> iterator = mKeys.iterator();
+		while (iterator.hasNext())
+		{
+			String key = iterator.next();
+			Integer running = mRunning.get(key);
+			if (running == null || running < mMaxPerKey)
+			{
+				return key;
+			}
+		}
+		return null;
+	}
+
+
+	private synchronized void finished(String key, long latency)
+	{
+		release(key);
+		mLimiter.onCompleted(latency, SystemClock.elapsedRealtime());
+		dispatch();
+		shutdownIfIdle();
+	}
+
+
+	/**
+	 * Returns the current number of tasks that may run at the same time.
+	 *
+	 * @return The concurrency limit.
+	 */
+	public synchronized int concurrencyLimit()
+	{
+		return mLimiter.limit();
+	}
+
+
+	/**
+	 * Returns the number of tasks that are running right now.
+	 *
+	 * @return The number of running tasks.
+	 */
+	public synchronized int runningCount()
+	{
+		return mTotalRunning;
+	}
+
+
+	/**
+	 * Returns the number of tasks that are waiting for a free slot.
+	 *
+	 * @return The number of queued tasks.
+	 */
+	public synchronized int queuedCount()
+	{
+		int count = 0;
+		for (ArrayDeque<Runnable> queue : mQueues.values())
+		{
+			count += queue.size();
+		}
+		return count;
+	}
+}
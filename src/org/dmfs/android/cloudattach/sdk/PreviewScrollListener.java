@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import android.content.Context;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+
+/**
+ * An {@link OnScrollListener} that pauses loading previews while a list is flung and resumes when it comes to rest or is touched again. No loads are started
+ * while the list moves, previews in the memory cache are still shown.
+ * <p>
+ * Held back requests are started when scrolling settles. Call {@link CloudAttachClient#cancelPending(PreviewLoaderCallback, long)} (or
+ * {@link PreviewRequestFragment#cancelPending(long)} if the requests are made through a {@link PreviewRequestFragment}) when a row is bound to another item,
+ * so only the rows that are still visible are loaded.
+ * </p>
+ *
+ * <h2>Example</h2>
+ *
+ * <pre>
+ * <code>
+ * listView.setOnScrollListener(new PreviewScrollListener(context));
+ * </code>
+ * </pre>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class PreviewScrollListener implements OnScrollListener
+{
+	private final CloudAttachClient mClient;
+	private final OnScrollListener mDelegate;
+
+
+	/**
+	 * Constructor for a {@link PreviewScrollListener} that pauses the default {@link CloudAttachClient}.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 */
+	public PreviewScrollListener(Context context)
+	{
+		this(CloudAttachClient.getDefault(context), null);
+	}
+
+
+	/**
+	 * Constructor for {@link PreviewScrollListener}.
+	 *
+	 * @param client
+	 *            The {@link CloudAttachClient} to pause.
+	 * @param delegate
+	 *            Another {@link OnScrollListener} to forward all events to, may be <code>null</code>.
+	 */
+	public PreviewScrollListener(CloudAttachClient client, OnScrollListener delegate)
+	{
+		if (client == null)
+		{
+			throw new IllegalArgumentException("Client must not be null.");
+		}
+		mClient = client;
+		mDelegate = delegate;
+	}
+
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState)
+	{
+		if (scrollState == SCROLL_STATE_FLING)
+		{
+			mClient.pause();
+		}
+		else
+		{
+			mClient.resume();
+		}
+
+		if (mDelegate != null)
+		{
+			mDelegate.onScrollStateChanged(view, scrollState);
+		}
+	}
+
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+	{
+		if (mDelegate != null)
+		{
+			mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+		}
+	}
+}
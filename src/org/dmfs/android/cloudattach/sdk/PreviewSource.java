@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.Bundle;
+
+
+/**
+ * The source of a preview. If the size of the preview is known, the provider is asked for a pre-scaled image via
+ * {@link ContentResolver#openTypedAssetFileDescriptor(Uri, String, Bundle)} first. Providers that keep thumbnails can serve them instead of the original. If
+ * the provider doesn't support that, the original is opened via {@link ContentResolver#openAssetFileDescriptor(Uri, String)}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class PreviewSource
+{
+	/**
+	 * The key of the requested size in the options of {@link ContentResolver#openTypedAssetFileDescriptor(Uri, String, Bundle)}. This equals
+	 * <code>ContentResolver.EXTRA_SIZE</code> which is public since KitKat only.
+	 */
+	private final static String EXTRA_SIZE = "android.content.extra.SIZE";
+
+	private final static String MIMETYPE_IMAGE = "image/*";
+
+	private final ContentResolver mResolver;
+	private final Uri mUri;
+	private final PreviewOptions mOptions;
+	private boolean mTypedUnsupported;
+
+
+	/**
+	 * Constructor for {@link PreviewSource}.
+	 *
+	 * @param resolver
+	 *            A {@link ContentResolver}.
+	 * @param uri
+	 *            The content {@link Uri} of the preview.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> if the preview is loaded in full size.
+	 */
+	public PreviewSource(ContentResolver resolver, Uri uri, PreviewOptions options)
+	{
+		mResolver = resolver;
+		mUri = uri;
+		mOptions = options;
+		// without a size there is nothing to gain from a typed request
+		mTypedUnsupported = options == null;
+	}
+
+
+	/**
+	 * Opens a new {@link InputStream} of the preview data. The caller is responsible for closing it.
+	 *
+	 * @return An {@link InputStream}.
+	 * @throws IOException
+	 *             if the preview could not be opened.
+	 */
+	public InputStream open() throws IOException
+	{
+		AssetFileDescriptor fileDescriptor = null;
+		if (!mTypedUnsupported)
+		{
+			Bundle opts = new Bundle();
+			opts.putParcelable(EXTRA_SIZE, new Point(mOptions.getWidth(), mOptions.getHeight()));
+			try
+			{
+				fileDescriptor = mResolver.openTypedAssetFileDescriptor(mUri, MIMETYPE_IMAGE, opts);
+			}
+			catch (FileNotFoundException e)
+			{
+				// the provider can't serve an image of this type, don't ask again
+				mTypedUnsupported = true;
+			}
+			catch (UnsupportedOperationException e)
+			{
+				mTypedUnsupported = true;
+			}
+		}
+
+		if (fileDescriptor == null)
+		{
+			fileDescriptor = mResolver.openAssetFileDescriptor(mUri, "r");
+		}
+
+		if (fileDescriptor == null)
+		{
+			throw new FileNotFoundException("asset file descriptor was null");
+		}
+		return fileDescriptor.createInputStream();
+	}
+
+
+	/**
+	 * Returns the content {@link Uri} of the preview.
+	 *
+	 * @return The {@link Uri}.
+	 */
+	public Uri getUri()
+	{
+		return mUri;
+	}
+}
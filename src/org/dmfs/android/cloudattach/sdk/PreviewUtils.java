@@ -20,11 +20,9 @@ package org.dmfs.android.cloudattach.sdk;
 import java.net.URI;
 
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.Bundle;
 
 
 /**
@@ -46,8 +44,11 @@ import android.os.Bundle;
  * </p>
  * <h2>Resolving the preview URL</h2>
  * <p>
- * This is done by sending an ordered broadcast to all installed attachment upload apps. The fist app that can handle the given URL will respond with a content
- * {@link Uri} that can be used to load a preview.
+ * This is done by sending a broadcast to the installed attachment upload apps, one after the other. The fist app that can handle the given URL will respond
+ * with a content {@link Uri} that can be used to load a preview.
+ * </p>
+ * <p>
+ * Apps that keep failing or respond very slowly are skipped for a while, so one bad app doesn't slow down every preview.
  * </p>
  * <p>
  * There are four methods available to perform this step (each taking the preview URL in a different way):
@@ -65,6 +66,76 @@ import android.os.Bundle;
  * {@link #loadPreview(Context, long, Uri, PreviewLoaderCallback)} to perform this step in a background task. The given callback will receive the image data or
  * an error.
  * </p>
+ * <p>
+ * Background tasks are scheduled per preview provider (the authority of the content {@link Uri}). Only a few requests to the same provider run at the same
+ * time, so a slow provider can't stall previews from other providers. The total number of requests that run at the same time adapts to the observed latency
+ * and throughput, see {@link PreviewCacheStats#getLoadConcurrencyLimit()}.
+ * </p>
+ * <p>
+ * Errors returned by a resolver and failures to read from a provider are retried with an exponential backoff. Only the stage that failed is retried. Use
+ * {@link #setRetryPolicies(RetryPolicy, RetryPolicy)} to change the {@link RetryPolicy}s.
+ * </p>
+ * <h2>Preview size</h2>
+ * <p>
+ * By default previews are loaded in full size. Pass {@link PreviewOptions} to load a preview that just covers the size of the view that shows it. Use
+ * {@link PreviewOptions#setCropMode(org.dmfs.android.cloudattach.sdk.PreviewOptions.CropMode)} to decode only the visible part of large images, like panoramas
+ * or scanned documents.
+ * </p>
+ * <h2>Preview types</h2>
+ * <p>
+ * Besides images, previews of videos (a single frame) and PDF documents (the first page, Lollipop and newer) are supported. The type of the content is
+ * determined before any data is read, so unsupported content fails early with a {@link DecodingBitmapException}. Add a {@link PreviewDecoder} via
+ * {@link CloudAttachClient.Builder#addDecoder(PreviewDecoder)} to support other types.
+ * </p>
+ * <h2>Local content</h2>
+ * <p>
+ * The <code>getPreview</code> methods also take <code>content://</code> and <code>file://</code> {@link Uri}s, like the ones picked for an attachment. They
+ * are not resolved but loaded directly. If available, the precomputed thumbnails of the {@link android.provider.MediaStore} or of the document provider are
+ * used instead of decoding the original.
+ * </p>
+ * 
+ * <h2>Caching</h2>
+ * <p>
+ * Previews loaded by one of the <code>getPreview</code> methods are kept in a memory cache. The cache shrinks when the system is running low on memory. Use
+ * {@link #getCacheStats(Context)} to inspect the state of the cache.
+ * </p>
+ * <p>
+ * Cached previews are used without asking the resolver for a few minutes. After that they are revalidated: the version returned by the resolver in
+ * {@link #EXTRAS_VERSION} is sent back in {@link #EXTRAS_CACHED_VERSION}. A resolver returning {@link #RESULT_NOT_MODIFIED} saves reading and decoding the
+ * preview again.
+ * </p>
+ * <p>
+ * Pass {@link CachePolicy#STALE_WHILE_REVALIDATE} to show stale previews immediately and revalidate them in the background.
+ * </p>
+ * <p>
+ * Previews evicted from the memory cache are compressed and kept in a second tier in a direct buffer. A compressed preview takes only a fraction of the
+ * memory of a decoded one, so this tier holds many more previews in less memory. Restoring a preview from there takes a few milliseconds in the background
+ * instead of resolving and loading it again. See {@link CloudAttachClient.Builder#setCompressedCacheSize(int)}.
+ * </p>
+ * <p>
+ * Loaded previews are also written to a disk cache, so they are shown right away after the app has been restarted. Aliases and resolved URLs are persisted
+ * too. See {@link CloudAttachClient.Builder#setDiskCacheSize(long)}.
+ * </p>
+ * <p>
+ * Previews of the same attachment in different sizes share the cache. A preview that's smaller than a cached one is scaled down from it without asking the
+ * resolver or provider. While a larger preview is loaded, a smaller cached one is delivered to callbacks that implement {@link InterimPreviewLoaderCallback}.
+ * </p>
+ * <p>
+ * Attachment URLs are normalized before they are used as cache keys, so different forms of a URL share the same cache entry. Resolvers can return the
+ * canonical form of a URL in {@link #EXTRAS_CANONICAL_URL} to let aliases like short links share it too.
+ * </p>
+ * <h2>Lists</h2>
+ * <p>
+ * Set a {@link PreviewScrollListener} on lists that show previews. It pauses loading while the list is flung, so rows that just fly by don't compete with the visible ones.
+ * The held back requests are started when the list comes to rest. A new request with the same callback and id replaces a held back one, call
+ * {@link CloudAttachClient#cancelPending(PreviewLoaderCallback, long)} or {@link PreviewRequestFragment#cancelPending(long)} to drop the request of a row
+ * that has been recycled.
+ * </p>
+ * <h2>Configuration changes</h2>
+ * <p>
+ * Callbacks are only weakly referenced, so requests started by an {@link Activity} are lost when it's recreated. Use a {@link PreviewRequestFragment} to keep
+ * requests alive across configuration changes.
+ * </p>
  * 
  * <h2>Example</h2>
  * <p>
@@ -110,6 +181,29 @@ public final class PreviewUtils
 	 */
 	public static final String EXTRAS_MESSAGE = "org.dmfs.android.cloudattach.extra.MESSAGE";
 
+	/**
+	 * Key of the version of a preview in the result extras of an {@link #ACTION_BROADCAST} broadcast. Resolvers may return any opaque {@link String}, like an
+	 * ETag or a revision id, that changes whenever the preview changes.
+	 */
+	public static final String EXTRAS_VERSION = "org.dmfs.android.cloudattach.extra.VERSION";
+
+	/**
+	 * Key of the version of a cached preview in the extras of an {@link #ACTION_BROADCAST} broadcast. If the preview has not changed since that version,
+	 * resolvers should set the result code to {@link #RESULT_NOT_MODIFIED}.
+	 */
+	public static final String EXTRAS_CACHED_VERSION = "org.dmfs.android.cloudattach.extra.CACHED_VERSION";
+
+	/**
+	 * Result code of an {@link #ACTION_BROADCAST} broadcast that indicates the preview has not changed since the version given in
+	 * {@link #EXTRAS_CACHED_VERSION}.
+	 */
+	public static final int RESULT_NOT_MODIFIED = 304;
+
+	/**
+	 * Key of the canonical URL of an attachment in the result extras of an {@link #ACTION_BROADCAST} broadcast. Resolvers should return it when the resolved
+	 * URL is just an alias, like a short link. All aliases of a canonical URL share the same resolved {@link Uri} and the same cached preview.
+	 */
+	public static final String EXTRAS_CANONICAL_URL = "org.dmfs.android.cloudattach.extra.CANONICAL_URL";
 
 	/**
 	 * "No instances" constructor.
@@ -197,39 +291,86 @@ public final class PreviewUtils
 	 */
 	public static void getPreview(final Context context, long id, Uri url, final PreviewLoaderCallback callback) throws NullPointerException
 	{
-		if (context == null)
-		{
-			throw new IllegalArgumentException("Context must not be null");
-		}
-		if (callback == null)
-		{
-			throw new IllegalArgumentException("Callback must not be null");
-		}
+		getPreview(context, id, url, null, callback);
+	}
 
-		resolveUrl(context, id, url, new ResolveUrlCallback()
-		{
 
-			@Override
-			public void onResult(long id, Uri uri)
-			{
-				// we got a content Uri, continue loading the preview
-				loadPreview(context, id, uri, callback);
-			}
+	/**
+	 * Loads a preview for the given attachment URL. The result will be delivered to the given callback, along with the id provided to this method.
+	 * 
+	 * @param context
+	 *            A {@link Context}.
+	 * @param id
+	 *            An id to be used as a reference when the result is delivered.
+	 * @param urlString
+	 *            URL of the attachment.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> to load the preview in full size.
+	 * @param callback
+	 *            A callback to handle result and errors.
+	 * @throws IllegalArgumentException
+	 *             if one of the given parameters is invalid or <code>null</code>.
+	 */
+	public static void getPreview(final Context context, long id, String urlString, PreviewOptions options, final PreviewLoaderCallback callback)
+		throws NullPointerException
+	{
+		getPreview(context, id, Uri.parse(urlString), options, callback);
+	}
 
 
-			@Override
-			public void onError(long id, Exception e)
-			{
-				callback.onError(id, e);
-			}
+	/**
+	 * Loads a preview for the given attachment URL. The result will be delivered to the given callback, along with the id provided to this method.
+	 * 
+	 * @param context
+	 *            A {@link Context}.
+	 * @param id
+	 *            An id to be used as a reference when the result is delivered.
+	 * @param url
+	 *            URL of the attachment.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> to load the preview in full size.
+	 * @param callback
+	 *            A callback to handle result and errors.
+	 * @throws IllegalArgumentException
+	 *             if one of the given parameters is invalid or <code>null</code>.
+	 */
+	public static void getPreview(final Context context, long id, Uri url, final PreviewOptions options, final PreviewLoaderCallback callback)
+		throws NullPointerException
+	{
+		getPreview(context, id, url, options, CachePolicy.REVALIDATE, callback);
+	}
 
 
-			@Override
-			public void onNoPreviewAppFound(long id)
-			{
-				callback.onNoPreviewAppFound(id);
-			}
-		});
+	/**
+	 * Loads a preview for the given attachment URL. The result will be delivered to the given callback, along with the id provided to this method.
+	 * <p>
+	 * With {@link CachePolicy#STALE_WHILE_REVALIDATE} a stale cached preview is delivered immediately and revalidated in the background. In that case the
+	 * callback may be called a second time with the updated preview.
+	 * </p>
+	 * 
+	 * @param context
+	 *            A {@link Context}.
+	 * @param id
+	 *            An id to be used as a reference when the result is delivered.
+	 * @param url
+	 *            URL of the attachment.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> to load the preview in full size.
+	 * @param cachePolicy
+	 *            The {@link CachePolicy} for stale cached previews.
+	 * @param callback
+	 *            A callback to handle result and errors.
+	 * @throws IllegalArgumentException
+	 *             if one of the given parameters is invalid or <code>null</code>.
+	 */
+	public static void getPreview(final Context context, long id, final Uri url, final PreviewOptions options, CachePolicy cachePolicy,
+		final PreviewLoaderCallback callback) throws NullPointerException
+	{
+		if (context == null)
+		{
+			throw new IllegalArgumentException("Context must not be null");
+		}
+		CloudAttachClient.getDefault(context).getPreview(id, url, options, cachePolicy, callback);
 	}
 
 
@@ -313,63 +454,67 @@ public final class PreviewUtils
 	 *             if one of the given parameters is invalid or <code>null</code>.
 	 */
 	public static void resolveUrl(Context context, final long id, Uri url, final ResolveUrlCallback callback) throws NullPointerException
+	{
+		resolveUrl(context, id, url, null, callback);
+	}
+
+
+	/**
+	 * Resolve the given attachment URL to a content {@link Uri} that points to a preview of the attachment, unless the preview has not changed since the given
+	 * version. The result or any error is delivered to the given callback.
+	 * <p>
+	 * If a cached version is given, the callback must be a {@link VersionedResolveUrlCallback}. Its {@link VersionedResolveUrlCallback#onNotModified(long)}
+	 * method is called if the resolver reports that the preview has not changed.
+	 * </p>
+	 * 
+	 * @param context
+	 *            A {@link Context}.
+	 * @param id
+	 *            An id to be used as a reference when the result is delivered.
+	 * @param url
+	 *            URL of the attachment.
+	 * @param cachedVersion
+	 *            The version of a cached preview of the attachment or <code>null</code>.
+	 * @param callback
+	 *            Interface to handle result and errors.
+	 * @throws IllegalArgumentException
+	 *             if one of the given parameters is invalid or <code>null</code>.
+	 */
+	public static void resolveUrl(Context context, final long id, final Uri url, String cachedVersion, final ResolveUrlCallback callback)
+		throws NullPointerException
 	{
 		if (context == null)
 		{
 			throw new IllegalArgumentException("Context must not be null.");
 		}
-		if (url == null)
-		{
-			throw new IllegalArgumentException("Url must not be null.");
-		}
-		if (callback == null)
-		{
-			throw new IllegalArgumentException("Callback must not be null.");
-		}
+		CloudAttachClient.getDefault(context).resolveUrl(id, url, cachedVersion, callback);
+	}
 
-		try
-		{
-			if (!"https".equalsIgnoreCase(url.getScheme()) && !"http".equalsIgnoreCase(url.getScheme()))
-			{
-				throw new IllegalArgumentException("Unsupported URL schema. Only http and https URLs are supported.");
-			}
-
-			Intent broadcast = new Intent(ACTION_BROADCAST, url);
-
-			// send the broadcast and handle the result
-			context.sendOrderedBroadcast(broadcast, null, new BroadcastReceiver()
-			{
-				@Override
-				public void onReceive(Context context, Intent intent)
-				{
-					if (getResultCode() == Activity.RESULT_OK)
-					{
-						callback.onResult(id, Uri.parse(getResultData()));
-					}
-					else
-					{
-						Bundle extras = getResultExtras(false);
-						if (extras != null)
-						{
-							callback.onError(id, new Exception(extras.getString(EXTRAS_MESSAGE)));
-						}
-						else
-						{
-							callback.onNoPreviewAppFound(id);
-						}
-					}
-				}
-			}, null, Activity.RESULT_CANCELED, null, null);
-		}
-		catch (Exception e)
+
+	/**
+	 * Set the {@link RetryPolicy}s for the two stages of loading a preview. Only the stage that failed is retried. By default each stage is tried up to three
+	 * times within five seconds.
+	 * 
+	 * @param resolveRetryPolicy
+	 *            The {@link RetryPolicy} for errors returned by a resolver.
+	 * @param loadRetryPolicy
+	 *            The {@link RetryPolicy} for errors when reading the preview from the provider.
+	 * @deprecated Use {@link CloudAttachClient.Builder#setRetryPolicies(RetryPolicy, RetryPolicy)}. This method changes the default {@link CloudAttachClient}
+	 *             and all clients built afterwards.
+	 */
+	@Deprecated
+	public static void setRetryPolicies(RetryPolicy resolveRetryPolicy, RetryPolicy loadRetryPolicy)
+	{
+		if (resolveRetryPolicy == null || loadRetryPolicy == null)
 		{
-			callback.onError(id, e);
+			throw new IllegalArgumentException("RetryPolicy must not be null.");
 		}
+		CloudAttachClient.setDefaultRetryPolicies(resolveRetryPolicy, loadRetryPolicy);
 	}
 
 
 	/**
-	 * Load the preview from the given content {@link Uri}. The preview is loaded asynchronously and the result is delivered to the given
+	 * Load the preview from the given content {@link Uri} in full size. The preview is loaded asynchronously and the result is delivered to the given
 	 * {@link PreviewLoaderCallback}.
 	 * 
 	 * @param context
@@ -383,31 +528,48 @@ public final class PreviewUtils
 	 *             if one of the given parameters is invalid or <code>null</code>.
 	 */
 	public static PreviewLoaderTask loadPreview(Context context, long id, Uri uri, PreviewLoaderCallback callback) throws NullPointerException
+	{
+		return loadPreview(context, id, uri, null, callback);
+	}
+
+
+	/**
+	 * Load the preview from the given content {@link Uri}. The preview is loaded asynchronously and the result is delivered to the given
+	 * {@link PreviewLoaderCallback}.
+	 * 
+	 * @param context
+	 *            A {@link Context}.
+	 * @param uri
+	 *            The content {@link Uri} of the preview provider.
+	 * @param options
+	 *            The {@link PreviewOptions} of the preview or <code>null</code> to load the preview in full size.
+	 * @param callback
+	 *            Interface to handle result and errors.
+	 * @return The background task.
+	 * @throws IllegalArgumentException
+	 *             if one of the given parameters is invalid or <code>null</code>.
+	 */
+	public static PreviewLoaderTask loadPreview(Context context, long id, Uri uri, PreviewOptions options, PreviewLoaderCallback callback)
+		throws NullPointerException
 	{
 		if (context == null)
 		{
 			throw new IllegalArgumentException("Context must not be null.");
 		}
-		if (uri == null)
-		{
-			throw new IllegalArgumentException("Uri must not be null.");
-		}
-		if (callback == null)
-		{
-			throw new IllegalArgumentException("Callback must not be null.");
-		}
+		return CloudAttachClient.getDefault(context).loadPreview(id, uri, options, callback);
+	}
 
-		try
-		{
-			PreviewLoaderTask task = new PreviewLoaderTask(context, callback);
-			task.execute(id, uri);
-			return task;
-		}
-		catch (Exception e)
-		{
-			callback.onError(id, e);
-		}
-		return null;
+
+	/**
+	 * Returns a snapshot of the current state of the preview memory cache, the bitmap pool and the preview loader.
+	 * 
+	 * @param context
+	 *            A {@link Context}.
+	 * @return A {@link PreviewCacheStats} instance.
+	 */
+	public static PreviewCacheStats getCacheStats(Context context)
+	{
+		return CloudAttachClient.getDefault(context).getCacheStats();
 	}
 
 }
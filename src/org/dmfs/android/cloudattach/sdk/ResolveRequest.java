@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+
+/**
+ * A request to resolve an attachment URL. The {@link PreviewUtils#ACTION_BROADCAST} broadcast is sent to one resolver package at a time, in the order of
+ * their priority, until one of them returns a result. Resolvers whose circuit is open in the {@link ResolverCircuitBreaker} are skipped, so a crashing or
+ * failing resolver doesn't slow down every request.
+ * <p>
+ * If a resolver returned an error and no other resolver returned a result, the whole request is retried according to the given {@link RetryPolicy}.
+ * </p>
+ * <p>
+ * A resolver that doesn't respond within the resolve timeout of the {@link CloudAttachClient} counts as failed and the next one is asked. A late result of
+ * that resolver is ignored.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class ResolveRequest
+{
+	private final static Handler HANDLER = new Handler(Looper.getMainLooper());
+
+	private final CloudAttachClient mClient;
+	private final Context mContext;
+	private final long mId;
+	private final Uri mUrl;
+	private final String mCachedVersion;
+	private final ResolveUrlCallback mCallback;
+	private final RetryPolicy mRetryPolicy;
+	private final long mStart;
+	private int mAttempts;
+
+	/**
+	 * The resolver packages of the current attempt and the index of the next one to ask.
+	 */
+	private List<String> mPackages;
+	private int mNext;
+	private boolean mFailed;
+	private String mLastError;
+	private boolean mSkipped;
+
+	/**
+	 * Incremented with every broadcast, so results and timeouts of a previous broadcast can be told apart.
+	 */
+	private int mToken;
+
+	/**
+	 * The timeout of the current broadcast, removed from the handler when the resolver responds.
+	 */
+	private Runnable mTimeout;
+
+
+	/**
+	 * Constructor for {@link ResolveRequest}.
+	 *
+	 * @param client
+	 *            The {@link CloudAttachClient} that provides the caches, the {@link RetryPolicy} and the timeout.
+	 * @param id
+	 *            An id to be used as a reference when the result is delivered.
+	 * @param url
+	 *            The URL of the attachment.
+	 * @param cachedVersion
+	 *            The version of a cached preview or <code>null</code>.
+	 * @param callback
+	 *            The callback to deliver the result to.
+	 */
+	ResolveRequest(CloudAttachClient client, long id, Uri url, String cachedVersion, ResolveUrlCallback callback)
+	{
+		mClient = client;
+		mContext = client.context();
+		mId = id;
+		mUrl = url;
+		mCachedVersion = cachedVersion;
+		mCallback = callback;
+		mRetryPolicy = client.resolveRetryPolicy();
+		mStart = SystemClock.elapsedRealtime();
+	}
+
+
+	/**
+	 * Start the request. Must be called on the main thread.
+	 */
+	void start()
+	{
+		mPackages = resolverPackages();
+		mNext = 0;
+		mFailed = false;
+		mLastError = null;
+		mSkipped = false;
+
+		if (mPackages.isEmpty())
+		{
+			mCallback.onNoPreviewAppFound(mId);
+			return;
+		}
+		next();
+	}
+
+
+	/**
+	 * Returns the packages that handle {@link PreviewUtils#ACTION_BROADCAST} for the URL, in the order of their priority.
+	 */
+	private List<String> resolverPackages()
+	{
+		List<ResolveInfo> receivers = mContext.getPackageManager().queryBroadcastReceivers(new Intent(PreviewUtils.ACTION_BROADCAST, mUrl), 0);
+		List<String> result = new ArrayList<String>(receivers.size());
+		for (ResolveInfo receiver : receivers)
+		{
+			String packageName = receiver.activityInfo.packageName;
+			if (!result.contains(packageName))
+			{
+				result.add(packageName);
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Send the broadcast to the next resolver that's not excluded by the circuit breaker or finish the request if there is none.
+	 */
+	private void next()
+	{
+		ResolverCircuitBreaker breaker = mClient.circuitBreaker();
+		while (mNext < mPackages.size())
+		{
+			String packageName = mPackages.get(mNext++);
+			if (breaker.allowRequest(packageName))
+			{
+				send(packageName);
+				return;
+			}
+			mSkipped = true;
+		}
+
+		// no resolver returned a result
+		if (mFailed)
+		{
+			// the resolver failed, this is often transient, so retry the resolve step only
+			long delay = mRetryPolicy.nextDelay(++mAttempts, SystemClock.elapsedRealtime() - mStart);
+			if (delay >= 0)
+			{
+				HANDLER.postDelayed(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						start();
+					}
+				}, delay);
+				return;
+			}
+			mCallback.onError(mId, new Exception(mLastError));
+		}
+		else if (mSkipped)
+		{
+			mCallback.onError(mId, new Exception("Preview apps are temporarily unavailable."));
+		}
+		else
+		{
+			mCallback.onNoPreviewAppFound(mId);
+		}
+	}
+
+
+	/**
+	 * Send the broadcast to the given package and handle the result.
+	 */
+	private void send(final String packageName)
+	{
+		Intent broadcast = new Intent(PreviewUtils.ACTION_BROADCAST, mUrl);
+		broadcast.setPackage(packageName);
+		if (mCachedVersion != null)
+		{
+			broadcast.putExtra(PreviewUtils.EXTRAS_CACHED_VERSION, mCachedVersion);
+		}
+
+		final int token = ++mToken;
+		final long sent = SystemClock.elapsedRealtime();
+		mContext.sendOrderedBroadcast(broadcast, null, new BroadcastReceiver()
+		{
+			@Override
+			public void onReceive(Context receiverContext, Intent intent)
+			{
+				if (token != mToken)
+				{
+					// the resolver timed out or the request has been restarted
+					return;
+				}
+				mToken++;
+				HANDLER.removeCallbacks(mTimeout);
+				mTimeout = null;
+
+				long latency = SystemClock.elapsedRealtime() - sent;
+				int resultCode = getResultCode();
+				Bundle extras = getResultExtras(false);
+
+				if (resultCode == Activity.RESULT_OK)
+				{
+					record(packageName, false, latency);
+					if (extras != null && extras.getString(PreviewUtils.EXTRAS_CANONICAL_URL) != null)
+					{
+						mClient.resolvedUrls().putAlias(mUrl, Uri.parse(extras.getString(PreviewUtils.EXTRAS_CANONICAL_URL)));
+					}
+
+					if (mCallback instanceof VersionedResolveUrlCallback)
+					{
+						((VersionedResolveUrlCallback) mCallback).onResult(mId, Uri.parse(getResultData()),
+							extras == null ? null : extras.getString(PreviewUtils.EXTRAS_VERSION));
+					}
+					else
+					{
+						mCallback.onResult(mId, Uri.parse(getResultData()));
+					}
+				}
+				else if (resultCode == PreviewUtils.RESULT_NOT_MODIFIED && mCallback instanceof VersionedResolveUrlCallback)
+				{
+					record(packageName, false, latency);
+					((VersionedResolveUrlCallback) mCallback).onNotModified(mId);
+				}
+				else if (extras != null)
+				{
+					// the resolver failed, try the next one
+					record(packageName, true, latency);
+					mFailed = true;
+					mLastError = extras.getString(PreviewUtils.EXTRAS_MESSAGE);
+					next();
+				}
+				else
+				{
+					// the resolver can't handle this URL, try the next one
+					record(packageName, false, latency);
+					next();
+				}
+			}
+		}, null, Activity.RESULT_CANCELED, null, null);
+
+		final long timeout = mClient.resolveTimeout();
+		mTimeout = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (token != mToken)
+				{
+					// the resolver responded in time
+					return;
+				}
+				mToken++;
+				mTimeout = null;
+
+				record(packageName, true, timeout);
+				mFailed = true;
+				mLastError = "Preview app " + packageName + " didn't respond.";
+				next();
+			}
+		};
+		HANDLER.postDelayed(mTimeout, timeout);
+	}
+
+
+	/**
+	 * Record the outcome of a broadcast in the circuit breaker and the metrics of the client.
+	 */
+	private void record(String packageName, boolean failed, long latency)
+	{
+		mClient.circuitBreaker().record(packageName, failed, latency);
+		mClient.metrics().onResolved(packageName, latency, failed);
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.net.Uri;
+
+
+/**
+ * Maps attachment URLs to canonical URL keys and canonical URL keys to the content {@link Uri}s they have been resolved to.
+ * <p>
+ * Resolvers can return the canonical URL of an attachment in {@link PreviewUtils#EXTRAS_CANONICAL_URL}. The URL that has been resolved is then remembered as
+ * an alias of the canonical URL, so all aliases share the same resolved {@link Uri} and the same cached preview.
+ * </p>
+ * <p>
+ * Once {@link #open(File, Executor)} has been called, aliases and resolved URLs are also stored in a {@link MappedIndex}, so they survive a restart of the
+ * app. Entries that don't fit into a record are kept in memory only. Lookups read the index directly without taking its lock, so they never wait for a
+ * write. Writes are done in the background because the index is synced to disk.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class ResolvedUrlCache
+{
+	private final static int MAX_ALIASES = 512;
+	private final static int MAX_RESOLVED = 512;
+
+	/**
+	 * The number of records in the persistent index, aliases and resolved URLs combined.
+	 */
+	private final static int INDEX_CAPACITY = 1024;
+
+	/**
+	 * The maximum size of an encoded alias or resolved URL.
+	 */
+	private final static int INDEX_PAYLOAD_SIZE = 476;
+
+	private final static String ALIAS_PREFIX = "a:";
+	private final static String RESOLVED_PREFIX = "r:";
+
+	/**
+	 * A resolved URL.
+	 */
+	final static class Entry
+	{
+		public final Uri contentUri;
+		public final String version;
+		private final long mResolved;
+
+
+		public Entry(Uri contentUri, String version)
+		{
+			this(contentUri, version, System.currentTimeMillis());
+		}
+
+
+		Entry(Uri contentUri, String version, long resolved)
+		{
+			this.contentUri = contentUri;
+			this.version = version;
+			mResolved = resolved;
+		}
+
+
+		/**
+		 * Returns whether this entry has been resolved within the {@link PreviewCache#FRESHNESS_WINDOW}.
+		 *
+		 * @return <code>true</code> if the content {@link Uri} can be used without resolving the URL again.
+		 */
+		public boolean isFresh()
+		{
+			return System.currentTimeMillis() - mResolved < PreviewCache.FRESHNESS_WINDOW;
+		}
+	}
+
+	private final Map<String, String> mAliases = new LinkedHashMap<String, String>(32, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+		{
+			return size() > MAX_ALIASES;
+		}
+	};
+
+	private final Map<String, Entry> mResolved = new LinkedHashMap<String, Entry>(32, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+		{
+			return size() > MAX_RESOLVED;
+		}
+	};
+
+
+	private MappedIndex mIndex;
+	private Executor mWriteExecutor;
+
+
+	/**
+	 * Open the persistent index in the given file. Until this has been called, all entries are kept in memory only.
+	 * <p>
+	 * Note: this performs I/O and must not be called on the main thread.
+	 * </p>
+	 *
+	 * @param file
+	 *            The index file.
+	 * @param writeExecutor
+	 *            The {@link Executor} to write to the index on.
+	 */
+	public void open(File file, Executor writeExecutor)
+	{
+		MappedIndex index;
+		try
+		{
+			index = MappedIndex.open(file, INDEX_CAPACITY, INDEX_PAYLOAD_SIZE);
+		}
+		catch (IOException e)
+		{
+			// memory only
+			return;
+		}
+
+		synchronized (this)
+		{
+			mWriteExecutor = writeExecutor;
+			mIndex = index;
+		}
+	}
+
+
+	/**
+	 * Returns the key of the given attachment URL. URLs that point to the same attachment return the same key.
+	 *
+	 * @param url
+	 *            The attachment URL.
+	 * @return The key.
+	 */
+	public synchronized String key(Uri url)
+	{
+		String canonical = UrlCanonicalizer.canonicalize(url);
+		String alias = mAliases.get(canonical);
+		if (alias == null && mIndex != null)
+		{
+			String[] stored = load(ALIAS_PREFIX, canonical, 1, null);
+			if (stored != null)
+			{
+				alias = stored[0];
+				mAliases.put(canonical, alias);
+			}
+		}
+		return alias == null ? canonical : alias;
+	}
+
+
+	/**
+	 * Remember the given URL as an alias of the given canonical URL.
+	 *
+	 * @param url
+	 *            The URL that has been resolved.
+	 * @param canonicalUrl
+	 *            The canonical URL returned by the resolver.
+	 */
+	public synchronized void putAlias(Uri url, Uri canonicalUrl)
+	{
+		String alias = UrlCanonicalizer.canonicalize(url);
+		String canonical = key(canonicalUrl);
+		if (!alias.equals(canonical))
+		{
+			mAliases.put(alias, canonical);
+			store(ALIAS_PREFIX, alias, System.currentTimeMillis(), canonical);
+		}
+	}
+
+
+	/**
+	 * Returns the resolved content {@link Uri} for the given key.
+	 *
+	 * @param key
+	 *            A key returned by {@link #key(Uri)}.
+	 * @return The {@link Entry} or <code>null</code> if the URL has not been resolved yet.
+	 */
+	public synchronized Entry get(String key)
+	{
+		Entry entry = mResolved.get(key);
+		if (entry == null && mIndex != null)
+		{
+			// the stamp of the record is the time the URL has been resolved
+			long[] resolved = new long[1];
+			String[] stored = load(RESOLVED_PREFIX, key, 2, resolved);
+			if (stored != null)
+			{
+				entry = new Entry(Uri.parse(stored[0]), stored[1].length() == 0 ? null : stored[1], resolved[0]);
+				mResolved.put(key, entry);
+			}
+		}
+		return entry;
+	}
+
+
+	/**
+	 * Store the content {@link Uri} the URL with the given key has been resolved to.
+	 *
+	 * @param key
+	 *            A key returned by {@link #key(Uri)}.
+	 * @param contentUri
+	 *            The content {@link Uri}.
+	 * @param version
+	 *            The version returned by the resolver or <code>null</code>.
+	 */
+	public synchronized void put(String key, Uri contentUri, String version)
+	{
+		Entry entry = new Entry(contentUri, version);
+		mResolved.put(key, entry);
+		store(RESOLVED_PREFIX, key, entry.mResolved, contentUri.toString(), version == null ? "" : version);
+	}
+
+
+	/**
+	 * Load the values stored for the given key from the persistent index. This doesn't take the lock of the index, a record that's being written at the same
+	 * time is treated as missing. The record is marked as recently used in the background.
+	 *
+	 * @param stamp
+	 *            An array to return the stamp of the record in or <code>null</code>.
+	 * @return The values or <code>null</code> if the key is not in the index.
+	 */
+	private String[] load(String prefix, String key, int valueCount, long[] stamp)
+	{
+		final MappedIndex index = mIndex;
+		final long hash = MappedIndex.hash(prefix + key);
+		MappedIndex.Record record = index.get(hash);
+		if (record == null)
+		{
+			return null;
+		}
+
+		String[] values = new String[valueCount];
+		try
+		{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.payload));
+			if (!key.equals(in.readUTF()))
+			{
+				// hash collision
+				return null;
+			}
+			for (int i = 0; i < valueCount; ++i)
+			{
+				values[i] = in.readUTF();
+			}
+		}
+		catch (IOException e)
+		{
+			// not what we've stored, the record will be replaced by the next store
+			return null;
+		}
+
+		if (stamp != null)
+		{
+			stamp[0] = record.stamp;
+		}
+
+		try
+		{
+			mWriteExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					synchronized (index)
+					{
+						int position = index.find(hash);
+						if (position >= 0)
+						{
+							index.touch(position, System.currentTimeMillis());
+						}
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the record is just not marked as used
+		}
+		return values;
+	}
+
+
+	/**
+	 * Store the given key and values in the persistent index in the background, if they fit into a record.
+	 */
+	private void store(String prefix, String key, final long stamp, String... values)
+	{
+		if (mIndex == null)
+		{
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(INDEX_PAYLOAD_SIZE);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try
+		{
+			out.writeUTF(key);
+			for (String value : values)
+			{
+				out.writeUTF(value);
+			}
+		}
+		catch (IOException e)
+		{
+			// can't happen with a ByteArrayOutputStream
+			return;
+		}
+
+		if (bytes.size() > INDEX_PAYLOAD_SIZE)
+		{
+			return;
+		}
+
+		final MappedIndex index = mIndex;
+		final long hash = MappedIndex.hash(prefix + key);
+		final byte[] payload = bytes.toByteArray();
+		try
+		{
+			mWriteExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					synchronized (index)
+					{
+						index.put(hash, stamp, payload.length, payload, System.currentTimeMillis());
+					}
+					index.force();
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the entry is kept in memory only
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+
+/**
+ * A circuit breaker per resolver package. It keeps track of the outcome of the last requests to each resolver. Responses slower than {@link #SLOW_RESPONSE}
+ * count as failures. If too many of the recent requests to a resolver failed, the circuit opens and the resolver is skipped for {@link #COOL_DOWN}
+ * milliseconds. After that a single probe request is let through (half-open state). If it succeeds the circuit closes again, otherwise it stays open for
+ * another cool-down period.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class ResolverCircuitBreaker
+{
+	/**
+	 * The number of recent requests to take into account.
+	 */
+	private final static int WINDOW = 10;
+
+	/**
+	 * The minimum number of requests before a circuit can open.
+	 */
+	private final static int MIN_REQUESTS = 4;
+
+	/**
+	 * The failure rate at which a circuit opens.
+	 */
+	private final static float FAILURE_RATE = 0.5f;
+
+	/**
+	 * The time in milliseconds a resolver is skipped after its circuit opened.
+	 */
+	final static long COOL_DOWN = 30 * 1000;
+
+	/**
+	 * The response time in milliseconds above which a response counts as a failure.
+	 */
+	final static long SLOW_RESPONSE = 5 * 1000;
+
+	/**
+	 * The state of the circuit of a single resolver.
+	 */
+	private final static class Circuit
+	{
+		private final boolean[] mFailures = new boolean[WINDOW];
+		private int mCount;
+		private int mNext;
+		private int mFailureCount;
+		private boolean mOpen;
+		private boolean mProbing;
+		private long mOpenUntil;
+
+
+		void add(boolean failed)
+		{
+			if (mCount == WINDOW)
+			{
+				// drop the oldest outcome
+				if (mFailures[mNext])
+				{
+					mFailureCount--;
+				}
+			}
+			else
+			{
+				mCount++;
+			}
+			mFailures[mNext] = failed;
+			if (failed)
+			{
+				mFailureCount++;
+			}
+			mNext = (mNext + 1) % WINDOW;
+		}
+
+
+		void reset()
+		{
+			mCount = 0;
+			mNext = 0;
+			mFailureCount = 0;
+			mOpen = false;
+			mProbing = false;
+		}
+
+
+		void open(long now)
+		{
+			mOpen = true;
+			mProbing = false;
+			mOpenUntil = now + COOL_DOWN;
+		}
+	}
+
+	private final Map<String, Circuit> mCircuits = new HashMap<String, Circuit>();
+
+
+	/**
+	 * Returns whether a request may be sent to the given resolver package. If this returns <code>true</code> the caller must send the request and report the
+	 * outcome via {@link #record(String, boolean, long)}.
+	 *
+	 * @param packageName
+	 *            The package name of the resolver.
+	 * @return <code>true</code> if the request may be sent, <code>false</code> if the resolver should be skipped.
+	 */
+	public synchronized boolean allowRequest(String packageName)
+	{
+		Circuit circuit = mCircuits.get(packageName);
+		if (circuit == null || !circuit.mOpen)
+		{
+			return true;
+		}
+
+		if (SystemClock.elapsedRealtime() < circuit.mOpenUntil || circuit.mProbing)
+		{
+			return false;
+		}
+
+		// half-open, let a single probe through
+		circuit.mProbing = true;
+		return true;
+	}
+
+
+	/**
+	 * Record the outcome of a request to the given resolver package.
+	 *
+	 * @param packageName
+	 *            The package name of the resolver.
+	 * @param failed
+	 *            Whether the resolver returned an error.
+	 * @param latency
+	 *            The response time in milliseconds.
+	 */
+	public synchronized void record(String packageName, boolean failed, long latency)
+	{
+		failed |= latency >= SLOW_RESPONSE;
+		long now = SystemClock.elapsedRealtime();
+
+		Circuit circuit = mCircuits.get(packageName);
+		if (circuit == null)
+		{
+			if (!failed)
+			{
+				// nothing to track yet
+				return;
+			}
+			circuit = new Circuit();
+			mCircuits.put(packageName, circuit);
+		}
+
+		if (circuit.mOpen)
+		{
+			if (circuit.mProbing)
+			{
+				if (failed)
+				{
+					circuit.open(now);
+				}
+				else
+				{
+					circuit.reset();
+				}
+			}
+			// else: a late response to a request sent before the circuit opened
+			return;
+		}
+
+		circuit.add(failed);
+		if (circuit.mCount >= MIN_REQUESTS && circuit.mFailureCount >= circuit.mCount * FAILURE_RATE)
+		{
+			circuit.open(now);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.util.Random;
+
+
+/**
+ * Determines how often and when a failed stage of loading a preview is retried. The delay between two attempts grows exponentially and is randomized
+ * (jittered) so that many failing requests don't retry at the same time. Retries stop when either the maximum number of attempts or the maximum total retry
+ * time is reached.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class RetryPolicy
+{
+	/**
+	 * A {@link RetryPolicy} that never retries.
+	 */
+	public final static RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+
+	private final static Random RANDOM = new Random();
+
+	private final int mMaxAttempts;
+	private final long mInitialDelay;
+	private final long mMaxDelay;
+	private final long mMaxTotalTime;
+
+
+	/**
+	 * Constructor for {@link RetryPolicy}.
+	 *
+	 * @param maxAttempts
+	 *            The maximum number of attempts, including the first one.
+	 * @param initialDelay
+	 *            The base delay before the first retry in milliseconds. It's doubled with every retry.
+	 * @param maxDelay
+	 *            The maximum base delay between two attempts in milliseconds.
+	 * @param maxTotalTime
+	 *            The maximum time in milliseconds between the first attempt and the start of the last retry.
+	 */
+	public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, long maxTotalTime)
+	{
+		if (maxAttempts < 1)
+		{
+			throw new IllegalArgumentException("maxAttempts must be at least 1.");
+		}
+		if (initialDelay < 0 || maxDelay < initialDelay || maxTotalTime < 0)
+		{
+			throw new IllegalArgumentException("Invalid delays.");
+		}
+		mMaxAttempts = maxAttempts;
+		mInitialDelay = initialDelay;
+		mMaxDelay = maxDelay;
+		mMaxTotalTime = maxTotalTime;
+	}
+
+
+	/**
+	 * Returns the delay before the next attempt.
+	 *
+	 * @param attempts
+	 *            The number of attempts that have failed so far.
+	 * @param elapsed
+	 *            The time in milliseconds since the first attempt.
+	 * @return The delay in milliseconds or <code>-1</code> if there should be no further attempt.
+	 */
+	long nextDelay(int attempts, long elapsed)
+	{
+		if (attempts >= mMaxAttempts)
+		{
+			return -1;
+		}
+
+		long backoff = mMaxDelay;
+		if (attempts - 1 < 31 && mInitialDelay << (attempts - 1) < mMaxDelay)
+		{
+			backoff = mInitialDelay << (attempts - 1);
+		}
+
+		// "equal jitter": wait at least half of the backoff
+		long delay = backoff / 2 + (backoff > 1 ? (long) (RANDOM.nextDouble() * (backoff / 2)) : 0);
+		if (elapsed + delay > mMaxTotalTime)
+		{
+			return -1;
+		}
+		return delay;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import android.net.Uri;
+
+
+/**
+ * Normalizes attachment URLs, so different forms of the same URL map to the same cache key. It lower-cases scheme and host, removes default ports, fragments
+ * and query parameters that don't identify the attachment and applies a few host specific rules.
+ * <p>
+ * Aliases that can't be detected statically (like short links) are learned from the resolvers, see {@link ResolvedUrlCache}.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class UrlCanonicalizer
+{
+	private final static Set<String> DROPBOX_HOSTS = new HashSet<String>(Arrays.asList("dropbox.com", "www.dropbox.com"));
+	private final static String DROPBOX_HOST = "www.dropbox.com";
+
+	private final static Set<String> DRIVE_HOSTS = new HashSet<String>(Arrays.asList("drive.google.com", "docs.google.com"));
+	private final static String DRIVE_HOST = "drive.google.com";
+
+	/**
+	 * Query parameters that only control how Dropbox presents a file.
+	 */
+	private final static Set<String> DROPBOX_IGNORED_PARAMS = new HashSet<String>(Arrays.asList("dl", "raw"));
+
+	/**
+	 * Query parameters that only control how Drive presents a file.
+	 */
+	private final static Set<String> DRIVE_IGNORED_PARAMS = new HashSet<String>(Arrays.asList("usp", "authuser"));
+
+
+	/**
+	 * "No instances" constructor.
+	 */
+	private UrlCanonicalizer()
+	{
+	}
+
+
+	/**
+	 * Returns the canonical form of the given URL.
+	 *
+	 * @param url
+	 *            The URL.
+	 * @return The canonical URL as a {@link String}.
+	 */
+	public static String canonicalize(Uri url)
+	{
+		String host = url.getHost();
+		String scheme = url.getScheme();
+		if (host == null || scheme == null)
+		{
+			// nothing we can normalize
+			return url.toString();
+		}
+
+		scheme = scheme.toLowerCase(Locale.US);
+		host = host.toLowerCase(Locale.US);
+		int port = url.getPort();
+		String path = url.getEncodedPath();
+		List<String> query = queryParams(url.getEncodedQuery());
+
+		Set<String> ignoredParams = Collections.emptySet();
+		if (DROPBOX_HOSTS.contains(host))
+		{
+			scheme = "https";
+			host = DROPBOX_HOST;
+			port = -1;
+			ignoredParams = DROPBOX_IGNORED_PARAMS;
+		}
+		else if (DRIVE_HOSTS.contains(host))
+		{
+			scheme = "https";
+			host = DRIVE_HOST;
+			port = -1;
+			ignoredParams = DRIVE_IGNORED_PARAMS;
+			path = drivePath(path, query);
+		}
+
+		if (("https".equals(scheme) && port == 443) || ("http".equals(scheme) && port == 80))
+		{
+			port = -1;
+		}
+
+		StringBuilder result = new StringBuilder(64);
+		result.append(scheme).append("://").append(host);
+		if (port >= 0)
+		{
+			result.append(':').append(port);
+		}
+		result.append(path == null || path.length() == 0 ? "/" : path);
+
+		List<String> params = new ArrayList<String>(query.size());
+		for (String param : query)
+		{
+			String name = Uri.decode(paramName(param));
+			if (!name.startsWith("utm_") && !ignoredParams.contains(name))
+			{
+				params.add(param);
+			}
+		}
+
+		if (!params.isEmpty())
+		{
+			// the order of the parameters doesn't matter
+			Collections.sort(params);
+			char separator = '?';
+			for (String param : params)
+			{
+				result.append(separator).append(param);
+				separator = '&';
+			}
+		}
+		return result.toString();
+	}
+
+
+	/**
+	 * Returns the canonical path of a Drive file. Drive links come as <code>/open?id=&lt;id&gt;</code> or <code>/file/d/&lt;id&gt;/view</code>, both are
+	 * converted to <code>/file/d/&lt;id&gt;</code>. The <code>id</code> parameter is removed from the given query parameters.
+	 */
+	private static String drivePath(String path, List<String> query)
+	{
+		if ("/open".equals(path))
+		{
+			for (String param : query)
+			{
+				if ("id".equals(paramName(param)))
+				{
+					query.remove(param);
+					return "/file/d/" + param.substring(3);
+				}
+			}
+			return path;
+		}
+
+		if (path != null && path.startsWith("/file/d/"))
+		{
+			int end = path.indexOf('/', 8);
+			if (end > 0)
+			{
+				// drop /view, /edit, /preview
+				return path.substring(0, end);
+			}
+		}
+		return path;
+	}
+
+
+	private static List<String> queryParams(String encodedQuery)
+	{
+		List<String> result = new ArrayList<String>();
+		if (encodedQuery == null || encodedQuery.length() == 0)
+		{
+			return result;
+		}
+		for (String param : encodedQuery.split("&"))
+		{
+			if (param.length() > 0)
+			{
+				result.add(param);
+			}
+		}
+		return result;
+	}
+
+
+	private static String paramName(String param)
+	{
+		int eq = param.indexOf('=');
+		return eq < 0 ? param : param.substring(0, eq);
+	}
+}
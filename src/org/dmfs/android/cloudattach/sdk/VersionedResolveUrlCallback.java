@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import android.net.Uri;
+
+
+/**
+ * A {@link ResolveUrlCallback} that receives the version of the preview. Pass an instance to
+ * {@link PreviewUtils#resolveUrl(android.content.Context, long, Uri, String, ResolveUrlCallback)} to revalidate a cached preview.
+ * <p>
+ * If the resolver returns a result, {@link #onResult(long, Uri, String)} is called instead of {@link #onResult(long, Uri)}.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public interface VersionedResolveUrlCallback extends ResolveUrlCallback
+{
+	/**
+	 * Called when a handler that can load the given URL has been found.
+	 *
+	 * @param id
+	 *            The id that has been passed to the resolver method.
+	 * @param result
+	 *            The content {@link Uri} of the preview.
+	 * @param version
+	 *            The version of the preview or <code>null</code> if the resolver didn't return a version.
+	 */
+	abstract void onResult(long id, Uri result, String version);
+
+
+	/**
+	 * Called when the resolver reports that the preview has not changed since the version that has been passed to the resolver method.
+	 *
+	 * @param id
+	 *            The id that has been passed to the resolver method.
+	 */
+	abstract void onNotModified(long id);
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.android.cloudattach.sdk;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+
+
+/**
+ * The {@link PreviewDecoder} for videos. It extracts a single representative frame using a {@link MediaMetadataRetriever}, which reads only the parts of the
+ * video it needs.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class VideoPreviewDecoder implements PreviewDecoder
+{
+
+	@Override
+	public boolean canDecode(String mimeType)
+	{
+		return mimeType.startsWith("video/");
+	}
+
+
+	@Override
+	public Bitmap decode(Context context, Uri uri, String mimeType, PreviewOptions options) throws IOException, DecodingBitmapException
+	{
+		MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+		try
+		{
+			try
+			{
+				retriever.setDataSource(context, uri);
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new IOException("Can't open video " + uri, e);
+			}
+
+			Bitmap frame = retriever.getFrameAtTime(-1);
+			if (frame == null)
+			{
+				throw new DecodingBitmapException("Could not extract a frame of the video.");
+			}
+			return ImagePreviewDecoder.fit(frame, options);
+		}
+		catch (RuntimeException e)
+		{
+			// MediaMetadataRetriever throws RuntimeExceptions for broken or unsupported videos
+			throw new DecodingBitmapException("Could not decode the video: " + e.getMessage());
+		}
+		finally
+		{
+			retriever.release();
+		}
+	}
+}
@@ -18,7 +18,10 @@
 package org.dmfs.android.cloudattach.sdk.ui;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 import org.dmfs.android.cloudattach.sdk.R;
 import org.dmfs.xmlobjects.ElementDescriptor;
@@ -41,41 +44,90 @@ import android.content.res.XmlResourceParser;
 
 /**
  * Holds the information about a specific attachment uploader app.
+ * <p>
+ * The list of known apps is parsed from the <code>xml/cloudattach_sdk_apps.xml</code> resource only once per process (and again if the locale changes). Apps
+ * can override the list by providing their own version of that resource or by calling {@link #setList(List)}.
+ * </p>
  * 
  * @author Marten Gajda <marten@dmfs.org>
  */
 public class App
 {
-	final static XmlContext CONTEXT = new XmlContext();
+	/**
+	 * Holds the {@link ElementDescriptor}s, so they are not registered before the list is parsed for the first time.
+	 */
+	private final static class Descriptors
+	{
+		final static XmlContext CONTEXT = new XmlContext();
 
-	private final static String NAMESPACE = "http://dmfs.org/ns/cloudattach";
+		private final static String NAMESPACE = "http://dmfs.org/ns/cloudattach";
 
-	final static ElementDescriptor<App> APP = ElementDescriptor.register(QualifiedName.get(NAMESPACE, "app"), new ReflectionObjectBuilder<App>(App.class),
-		CONTEXT);
-	final static ElementDescriptor<List<App>> APP_LIST = ElementDescriptor.register(QualifiedName.get(NAMESPACE, "app-list"), new ListObjectBuilder<App>(APP),
-		CONTEXT);
+		final static ElementDescriptor<App> APP = ElementDescriptor.register(QualifiedName.get(NAMESPACE, "app"), new ReflectionObjectBuilder<App>(App.class),
+			CONTEXT);
+		final static ElementDescriptor<List<App>> APP_LIST = ElementDescriptor.register(QualifiedName.get(NAMESPACE, "app-list"),
+			new ListObjectBuilder<App>(APP), CONTEXT);
+	}
 
+	/**
+	 * The list parsed from the resources and the locale it has been parsed for.
+	 */
+	private static List<App> sParsedList;
+	private static Locale sParsedLocale;
 
 	/**
-	 * Load the list of known attachment apps from the resources.
+	 * The list set by {@link #setList(List)}.
+	 */
+	private static List<App> sCustomList;
+
+
+	/**
+	 * Load the list of known attachment apps from the resources. The list is parsed only once and returned from memory afterwards.
 	 * 
 	 * @param context
 	 *            A {@link Context}.
-	 * @return A {@link List} of {@link App} instances.
+	 * @return An unmodifiable {@link List} of {@link App} instances.
 	 * @throws XmlPullParserException
 	 * @throws IOException
 	 * @throws XmlObjectPullParserException
 	 */
-	public static List<App> loadList(Context context) throws XmlPullParserException, IOException, XmlObjectPullParserException
+	public static synchronized List<App> loadList(Context context) throws XmlPullParserException, IOException, XmlObjectPullParserException
 	{
-		Resources res = context.getResources();
+		if (sCustomList != null)
+		{
+			return sCustomList;
+		}
 
-		XmlResourceParser xmlParser = res.getXml(R.xml.cloudattach_sdk_apps);
+		Resources res = context.getResources();
+		Locale locale = res.getConfiguration().locale;
+		if (sParsedList == null || !locale.equals(sParsedLocale))
+		{
+			// titles and descriptions are resolved when parsing, so parse again if the locale has changed
+			XmlResourceParser xmlParser = res.getXml(R.xml.cloudattach_sdk_apps);
+			try
+			{
+				XmlObjectPull pullParser = new XmlObjectPull(xmlParser, new AndroidParserContext(res));
+				pullParser.setContext(Descriptors.CONTEXT);
+				sParsedList = Collections.unmodifiableList(pullParser.pull(Descriptors.APP_LIST, null, new XmlPath()));
+				sParsedLocale = locale;
+			}
+			finally
+			{
+				xmlParser.close();
+			}
+		}
+		return sParsedList;
+	}
 
-		XmlObjectPull pullParser = new XmlObjectPull(xmlParser, new AndroidParserContext(res));
-		pullParser.setContext(CONTEXT);
 
-		return pullParser.pull(APP_LIST, null, new XmlPath());
+	/**
+	 * Override the list of known attachment apps. This skips parsing the resources entirely.
+	 * 
+	 * @param apps
+	 *            The {@link List} of {@link App}s or <code>null</code> to use the list from the resources.
+	 */
+	public static synchronized void setList(List<App> apps)
+	{
+		sCustomList = apps == null ? null : Collections.unmodifiableList(new ArrayList<App>(apps));
 	}
 
 	/**
@@ -102,4 +154,33 @@ public class App
 	@Attribute(name = "iconId")
 	@ResolveInt(false)
 	int iconId;
+
+
+	/**
+	 * Constructor used by the XML parser.
+	 */
+	public App()
+	{
+	}
+
+
+	/**
+	 * Constructor for {@link App}, to be used with {@link #setList(List)}.
+	 * 
+	 * @param packageName
+	 *            The package name of the app.
+	 * @param title
+	 *            The title of the app.
+	 * @param description
+	 *            The description of the app.
+	 * @param iconId
+	 *            The resource id of the app icon.
+	 */
+	public App(String packageName, String title, String description, int iconId)
+	{
+		this.packageName = packageName;
+		this.title = title;
+		this.description = description;
+		this.iconId = iconId;
+	}
 }
@@ -17,9 +17,11 @@
 
 package org.dmfs.android.cloudattach.sdk.ui;
 
+import java.util.Collections;
 import java.util.List;
 
 import android.content.Context;
+import android.database.DataSetObservable;
 import android.database.DataSetObserver;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -30,7 +32,7 @@ import android.widget.TextView;
 
 
 /**
- * An adapter for {@link App}s.
+ * An adapter for {@link App}s. The list of apps can be replaced at any time, registered {@link DataSetObserver}s are notified.
  * 
  * @author Tristan Heinig <tristan@dmfs.org>
  * @author Marten Gajda <marten@dmfs.org>
@@ -38,9 +40,34 @@ import android.widget.TextView;
 class AppAdapter implements ListAdapter
 {
 
+	/**
+	 * Holds the views of an item, so they don't have to be looked up on every bind.
+	 */
+	private final static class ViewHolder
+	{
+		final ImageView icon;
+		final TextView title;
+		final TextView description;
+
+
+		ViewHolder(View view)
+		{
+			icon = (ImageView) view.findViewById(android.R.id.icon);
+			title = (TextView) view.findViewById(android.R.id.title);
+			description = (TextView) view.findViewById(android.R.id.text1);
+		}
+	}
+
 	private final int mAppViewRessource;
-	private final List<App> mAppList;
+	private List<App> mAppList;
 	private final LayoutInflater mInflater;
+	private final DataSetObservable mDataSetObservable = new DataSetObservable();
+
+
+	public AppAdapter(Context context, int appViewResourceId)
+	{
+		this(context, appViewResourceId, Collections.<App> emptyList());
+	}
 
 
 	public AppAdapter(Context context, int appViewResourceId, List<App> appList)
@@ -51,20 +78,40 @@ class AppAdapter implements ListAdapter
 	}
 
 
+	/**
+	 * Replace the list of apps and notify all observers.
+	 * 
+	 * @param appList
+	 *            The new {@link List} of {@link App}s.
+	 */
+	public void setApps(List<App> appList)
+	{
+		mAppList = appList;
+		mDataSetObservable.notifyChanged();
+	}
+
+
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent)
 	{
 		View result = convertView;
+		ViewHolder holder;
 		if (result == null)
 		{
 			result = mInflater.inflate(mAppViewRessource, parent, false);
+			holder = new ViewHolder(result);
+			result.setTag(holder);
+		}
+		else
+		{
+			holder = (ViewHolder) result.getTag();
 		}
 
 		App app = getItem(position);
 
-		((ImageView) result.findViewById(android.R.id.icon)).setImageResource(app.iconId);
-		((TextView) result.findViewById(android.R.id.title)).setText(app.title);
-		((TextView) result.findViewById(android.R.id.text1)).setText(app.description);
+		holder.icon.setImageResource(app.iconId);
+		holder.title.setText(app.title);
+		holder.description.setText(app.description);
 
 		return result;
 	}
@@ -94,7 +141,8 @@ class AppAdapter implements ListAdapter
 	@Override
 	public boolean hasStableIds()
 	{
-		return true;
+		// the list may change
+		return false;
 	}
 
 
@@ -106,16 +154,16 @@ class AppAdapter implements ListAdapter
 
 
 	@Override
-	public void registerDataSetObserver(DataSetObserver arg0)
+	public void registerDataSetObserver(DataSetObserver observer)
 	{
-		// at present we don't support that
+		mDataSetObservable.registerObserver(observer);
 	}
 
 
 	@Override
-	public void unregisterDataSetObserver(DataSetObserver arg0)
+	public void unregisterDataSetObserver(DataSetObserver observer)
 	{
-		// at present we don't support that
+		mDataSetObservable.unregisterObserver(observer);
 	}
 
 
@@ -18,6 +18,8 @@
 package org.dmfs.android.cloudattach.sdk.ui;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.dmfs.android.cloudattach.sdk.R;
@@ -28,8 +30,13 @@ import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.FragmentManager;
 import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -43,6 +50,10 @@ import android.widget.ListView;
 
 /**
  * A dialog that asks the user to install an attachment upload app. It loads the list of known apps from the <code>xml/cloudattach_sdk_apps.xml</code> resource.
+ * <p>
+ * The list is loaded in the background. Apps that are already installed are not shown. The list is updated when a package is installed or removed while the
+ * dialog is visible.
+ * </p>
  * 
  * @author Tristan Heinig <tristan@dmfs.org>
  * @author Marten Gajda <marten@dmfs.org>
@@ -50,7 +61,80 @@ import android.widget.ListView;
 public class AttachmentAppsDialog extends DialogFragment implements OnItemClickListener, OnClickListener
 {
 	private ListView list;
-	private List<App> mAppList;
+	private AppAdapter mAdapter;
+	private LoadAppsTask mLoadAppsTask;
+
+	private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver()
+	{
+		@Override
+		public void onReceive(Context context, Intent intent)
+		{
+			loadApps();
+		}
+	};
+
+	/**
+	 * Loads the list of apps that are not installed yet.
+	 */
+	private final static class LoadAppsTask extends AsyncTask<Void, Void, List<App>>
+	{
+		private final Context mContext;
+		private final WeakReference<AttachmentAppsDialog> mDialog;
+
+
+		public LoadAppsTask(AttachmentAppsDialog dialog)
+		{
+			mContext = dialog.getActivity().getApplicationContext();
+			mDialog = new WeakReference<AttachmentAppsDialog>(dialog);
+		}
+
+
+		@Override
+		protected List<App> doInBackground(Void... params)
+		{
+			List<App> result = new ArrayList<App>();
+			try
+			{
+				PackageManager packageManager = mContext.getPackageManager();
+				for (App app : App.loadList(mContext))
+				{
+					try
+					{
+						packageManager.getPackageInfo(app.packageName, 0);
+						// already installed
+					}
+					catch (PackageManager.NameNotFoundException e)
+					{
+						result.add(app);
+					}
+				}
+			}
+			catch (XmlPullParserException e)
+			{
+				e.printStackTrace();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			catch (XmlObjectPullParserException e)
+			{
+				e.printStackTrace();
+			}
+			return result;
+		}
+
+
+		@Override
+		protected void onPostExecute(List<App> result)
+		{
+			AttachmentAppsDialog dialog = mDialog.get();
+			if (dialog != null && dialog.mAdapter != null)
+			{
+				dialog.mAdapter.setApps(result);
+			}
+		}
+	}
 
 
 	@Override
@@ -68,26 +152,59 @@ public class AttachmentAppsDialog extends DialogFragment implements OnItemClickL
 	{
 		super.onActivityCreated(savedInstanceState);
 
-		try
-		{
-			// load the lost of apps
-			mAppList = App.loadList(getActivity());
-			AppAdapter adapter = new AppAdapter(getActivity(), R.layout.cloudattach_view_listitem_app, mAppList);
-			list.setAdapter(adapter);
-			list.setOnItemClickListener(this);
-		}
-		catch (XmlPullParserException e)
-		{
-			e.printStackTrace();
-		}
-		catch (IOException e)
+		mAdapter = new AppAdapter(getActivity(), R.layout.cloudattach_view_listitem_app);
+		list.setAdapter(mAdapter);
+		list.setOnItemClickListener(this);
+	}
+
+
+	@Override
+	public void onStart()
+	{
+		super.onStart();
+
+		// update the list when an app is installed or removed
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+		filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+		filter.addDataScheme("package");
+		getActivity().registerReceiver(mPackageReceiver, filter);
+
+		// load the list of apps, it might have changed while we were stopped
+		loadApps();
+	}
+
+
+	@Override
+	public void onStop()
+	{
+		getActivity().unregisterReceiver(mPackageReceiver);
+		if (mLoadAppsTask != null)
 		{
-			e.printStackTrace();
+			mLoadAppsTask.cancel(false);
+			mLoadAppsTask = null;
 		}
-		catch (XmlObjectPullParserException e)
+		super.onStop();
+	}
+
+
+	@Override
+	public void onDestroyView()
+	{
+		mAdapter = null;
+		super.onDestroyView();
+	}
+
+
+	private void loadApps()
+	{
+		if (mLoadAppsTask != null)
 		{
-			e.printStackTrace();
+			mLoadAppsTask.cancel(false);
 		}
+		mLoadAppsTask = new LoadAppsTask(this);
+		mLoadAppsTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 	}
 
 
@@ -105,7 +222,7 @@ public class AttachmentAppsDialog extends DialogFragment implements OnItemClickL
 	public void onItemClick(AdapterView<?> parent, View view, int position, long id)
 	{
 		// an app has been clicked, fire the Play Store intent
-		App app = mAppList.get(position);
+		App app = (App) parent.getItemAtPosition(position);
 		try
 		{
 			Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("market://details?id=" + app.packageName));